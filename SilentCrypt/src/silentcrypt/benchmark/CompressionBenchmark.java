@@ -0,0 +1,88 @@
+package silentcrypt.benchmark;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import silentcrypt.comm.communique.Datatype;
+import silentcrypt.util.DeflateUtil;
+import silentcrypt.util.Lz4Util;
+import silentcrypt.util.RsaUtil;
+import silentcrypt.util.U;
+
+/**
+ * Measures the compression ratio and throughput of {@link DeflateUtil} for typical fields of each Datatype, with and
+ * without the {@link DeflateUtil#DEFAULT_DICTIONARY}, and of {@link Lz4Util}. Ratios are compressed size over original
+ * size, so smaller is better, and anything at or above 1.0 was stored rather than compressed.
+ * <p>
+ * Usage: <code>CompressionBenchmark [iterations]</code>
+ *
+ * @author Michael Wells
+ */
+public class CompressionBenchmark
+{
+	public static void main(String... strings) throws DataFormatException
+	{
+		int iterations = strings.length > 0 ? Integer.parseInt(strings[0]) : 2000;
+
+		U.p("--- Compression Benchmark: " + iterations + " iterations ---");
+		Random rand = new Random(0);
+		byte[] blob = new byte[4096];
+		rand.nextBytes(blob);
+
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < 50; i++)
+			names.append("User").append(i).append("Channel").append(i % 5);
+
+		run("STRING (chat message)", Datatype.STRING.encode("Hello everyone, has anyone seen the latest build of the client? It fails to start for me."),
+				iterations);
+		run("STRING (reject reason)", Datatype.STRING.encode("Unknown user; client must authenticate."), iterations);
+		run("STRING (channel name)", Datatype.STRING.encode("General"), iterations);
+		run("STRING (channel list)", Datatype.STRING.encode(names.toString()), iterations);
+		run("BINARY_BLOB (random)", Datatype.BINARY_BLOB.encode(blob), iterations);
+		run("RsaKey", Datatype.RsaKey.encode(RsaUtil.generateKeyPair(2048).getPublicRsa()), iterations);
+		run("INSTANT", Datatype.INSTANT.encode(Instant.now()), iterations);
+	}
+
+	private static void run(String name, ByteBuffer field, int iterations) throws DataFormatException
+	{
+		byte[] data = U.toBytes(field);
+		byte[] dict = DeflateUtil.DEFAULT_DICTIONARY;
+		U.p(String.format("%-24s %6d bytes", name, data.length));
+		U.p("    Deflate:            " + measure(data, b -> DeflateUtil.compress(b, null), b -> DeflateUtil.decompress(b, null), iterations));
+		U.p("    Deflate dictionary: " + measure(data, b -> DeflateUtil.compress(b, dict), b -> DeflateUtil.decompress(b, dict), iterations));
+		U.p("    LZ4:                " + measure(data, Lz4Util::compress, Lz4Util::decompress, iterations));
+	}
+
+	private interface Codec
+	{
+		ByteBuffer apply(ByteBuffer b) throws DataFormatException;
+	}
+
+	private static String measure(byte[] data, Codec compressor, Codec decompressor, int iterations) throws DataFormatException
+	{
+		// Warm up before timing anything.
+		for (int i = 0; i < iterations / 10 + 1; i++)
+			decompressor.apply(compressor.apply(ByteBuffer.wrap(data)));
+
+		ByteBuffer compressed = null;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			compressed = compressor.apply(ByteBuffer.wrap(data));
+		double compress = mbPerSecond(data.length, iterations, System.nanoTime() - start);
+
+		int size = compressed.remaining();
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			decompressor.apply(compressed.duplicate());
+		double decompress = mbPerSecond(data.length, iterations, System.nanoTime() - start);
+
+		return String.format("ratio %.2f, %7.1f MB/s in, %7.1f MB/s out", (double) size / data.length, compress, decompress);
+	}
+
+	private static double mbPerSecond(int size, int iterations, long nanos)
+	{
+		return (double) size * iterations / (1024 * 1024) / (nanos / 1e9);
+	}
+}
@@ -0,0 +1,76 @@
+package silentcrypt.benchmark;
+
+import java.security.Security;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.RSAEngine;
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import silentcrypt.util.RsaKeyPair;
+import silentcrypt.util.RsaUtil;
+import silentcrypt.util.U;
+
+/**
+ * Measures the fixed overhead {@link RsaUtil} used to pay on every call (registering the BouncyCastle provider and
+ * creating a new engine) against the cost of the calls themselves, which now reuse each thread's engines.
+ * <p>
+ * Usage: <code>RsaBenchmark [keyBits] [iterations]</code>
+ *
+ * @author Michael Wells
+ */
+public class RsaBenchmark
+{
+	public static void main(String... strings) throws InvalidCipherTextException
+	{
+		int bits = strings.length > 0 ? Integer.parseInt(strings[0]) : RsaUtil.DEFAULT_KEY_SIZE;
+		int iterations = strings.length > 1 ? Integer.parseInt(strings[1]) : 200;
+
+		U.p("--- RSA Benchmark: " + bits + " bit key, " + iterations + " iterations ---");
+		RsaKeyPair key = RsaUtil.generateKeyPair(bits);
+		byte[] data = U.toBytes("Top Secret Message!");
+
+		// Warm up both paths before timing anything.
+		run(key, data, iterations / 10 + 1);
+		legacySetup(key.getPublicRsa(), iterations / 10 + 1);
+
+		double setup = legacySetup(key.getPublicRsa(), iterations);
+		double[] calls = run(key, data, iterations);
+		U.p(String.format("Per call setup, before: %.1f us", setup));
+		U.p(String.format("Public key encrypt: %.1f us (previously about %.1f us)", calls[0], calls[0] + setup));
+		U.p(String.format("Private key decrypt: %.1f us (previously about %.1f us)", calls[1], calls[1] + setup));
+	}
+
+	/**
+	 * @return the average time, in microseconds, of the setup each call used to perform.
+	 */
+	private static double legacySetup(RSAKeyParameters key, int iterations)
+	{
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+		{
+			Security.addProvider(new BouncyCastleProvider());
+			new RSAEngine().init(true, key);
+		}
+		return (System.nanoTime() - start) / 1e3 / iterations;
+	}
+
+	/**
+	 * @return the average time, in microseconds, of an encryption with the public key and of a decryption with the
+	 *         private key.
+	 */
+	private static double[] run(RsaKeyPair key, byte[] data, int iterations) throws InvalidCipherTextException
+	{
+		byte[] encrypted = null;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			encrypted = RsaUtil.encrypt(data, key.getPublicRsa());
+		double encrypt = (System.nanoTime() - start) / 1e3 / iterations;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			RsaUtil.decrypt(encrypted, key.getPrivateRsa());
+		double decrypt = (System.nanoTime() - start) / 1e3 / iterations;
+		return new double[] { encrypt, decrypt };
+	}
+}
@@ -0,0 +1,106 @@
+package silentcrypt.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import silentcrypt.comm.communique.Communique;
+import silentcrypt.comm.communique.CommuniqueDecoder;
+import silentcrypt.comm.incoming.ConnectionMultiplexer;
+import silentcrypt.comm.incoming.DispatchExecutor;
+import silentcrypt.comm.incoming.DispatchExecutor.Saturation;
+import silentcrypt.util.Threads;
+import silentcrypt.util.U;
+
+/**
+ * Compares the platform thread model against virtual threads for the blocking connection handler style used by
+ * {@link silentcrypt.comm.server.Host}. Each simulated connection gets its own handler thread which blocks waiting for
+ * bytes, decodes them, and hands the resulting Communiques to a multiplexer.
+ * <p>
+ * Usage: <code>ThreadModelBenchmark [connections] [messagesPerConnection]</code>
+ * <p>
+ * The virtual run needs a JVM with virtual threads (Java 21 or later). On older JVMs only the platform run is made.
+ *
+ * @author Michael Wells
+ */
+public class ThreadModelBenchmark
+{
+	private static final byte[] END = new byte[0];
+
+	public static void main(String... strings) throws InterruptedException
+	{
+		int connections = strings.length > 0 ? Integer.parseInt(strings[0]) : 10000;
+		int messages = strings.length > 1 ? Integer.parseInt(strings[1]) : 20;
+
+		U.p("--- Thread Model Benchmark: " + connections + " connections, " + messages + " messages each ---");
+		run("platform", false, connections, messages);
+		if (Threads.isVirtualSupported())
+			run("virtual", true, connections, messages);
+		else
+			U.p("Virtual threads are not supported by this JVM; skipping virtual run.");
+	}
+
+	private static void run(String name, boolean virtual, int connections, int messages) throws InterruptedException
+	{
+		Threads.setVirtual(virtual);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		System.gc();
+		threads.resetPeakThreadCount();
+
+		DispatchExecutor dispatcher;
+		if (virtual)
+			dispatcher = DispatchExecutor.perTask(connections, Saturation.BLOCK);
+		else
+			dispatcher = DispatchExecutor.bounded(Math.max(2, Runtime.getRuntime().availableProcessors() * 2), 1024, Saturation.BLOCK);
+
+		CountDownLatch done = new CountDownLatch(connections * messages);
+		ConnectionMultiplexer multiplexer = new ConnectionMultiplexer().setDispatcher(dispatcher);
+		multiplexer.listen((c, reply) -> {
+			c.getField(0).data(String.class);
+			done.countDown();
+		});
+
+		byte[] msg = Communique.of("benchmark", "payload").bytes();
+		List<BlockingQueue<byte[]>> sockets = new ArrayList<>(connections);
+		long start = System.nanoTime();
+		for (int i = 0; i < connections; i++)
+		{
+			BlockingQueue<byte[]> socket = new ArrayBlockingQueue<>(4);
+			sockets.add(socket);
+			Threads.start("Simulated connection #" + i, true, () -> handle(socket, multiplexer));
+		}
+		long started = System.nanoTime();
+
+		// Feed each connection in turn, as interleaved network traffic would.
+		for (int m = 0; m < messages; m++)
+			for (BlockingQueue<byte[]> socket : sockets)
+				socket.put(msg);
+		for (BlockingQueue<byte[]> socket : sockets)
+			socket.put(END);
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		dispatcher.shutdown();
+		double seconds = elapsed / 1e9;
+		U.p(String.format("[%s] startup %.1f ms, total %.1f ms, %.0f msgs/s, peak platform threads %d", name, (started - start) / 1e6, elapsed / 1e6,
+				connections * (double) messages / seconds, threads.getPeakThreadCount()));
+	}
+
+	private static void handle(BlockingQueue<byte[]> socket, ConnectionMultiplexer multiplexer)
+	{
+		CommuniqueDecoder decoder = new CommuniqueDecoder();
+		try
+		{
+			for (byte[] data = socket.take(); data != END; data = socket.take())
+				decoder.decode(ByteBuffer.wrap(data), c -> multiplexer.distribute(c, U.emptyConsumer()));
+		} catch (InterruptedException e)
+		{
+			U.e("Simulated connection interrupted.", e);
+		}
+	}
+}
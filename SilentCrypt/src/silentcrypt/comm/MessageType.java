@@ -1,14 +1,12 @@
 package silentcrypt.comm;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 import silentcrypt.comm.communique.Communique;
+import silentcrypt.comm.communique.CommuniqueView;
 import silentcrypt.comm.communique.Datatype;
 import silentcrypt.comm.communique.Encoding;
+import silentcrypt.comm.exception.DecodingException;
 
 public enum MessageType
 {
@@ -91,11 +89,18 @@ public enum MessageType
 	 */
 	CLIENT_MESSAGE(17, 4);
 
-	private static final Map<Short, MessageType> reverse;
+	// Indexed by id + 1, since ids start at -1.
+	private static final MessageType[]				reverse;
+	private static final ThreadLocal<CommuniqueView>	views	= ThreadLocal.withInitial(CommuniqueView::new);
 
 	static
 	{
-		reverse = Collections.unmodifiableMap(Arrays.stream(MessageType.values()).collect(Collectors.toMap(d -> d.id, d -> d)));
+		int max = 0;
+		for (MessageType t : MessageType.values())
+			max = Math.max(max, t.id);
+		reverse = new MessageType[max + 2];
+		for (MessageType t : MessageType.values())
+			reverse[t.id + 1] = t;
 	}
 
 	/**
@@ -106,7 +111,9 @@ public enum MessageType
 	 */
 	public static MessageType get(int id)
 	{
-		return MessageType.reverse.get(id);
+		if (id < -1 || id + 1 >= MessageType.reverse.length)
+			return null;
+		return MessageType.reverse[id + 1];
 	}
 
 	/**
@@ -115,7 +122,7 @@ public enum MessageType
 	 */
 	public static boolean isKnown(short id)
 	{
-		return MessageType.reverse.containsKey(id);
+		return get(id) != null;
 	}
 
 	/**
@@ -124,17 +131,32 @@ public enum MessageType
 	 * fields, and the first two fields are guaranteed to be unencrypted, and the first field describes a valid message
 	 * type.
 	 *
+	 * <p>
+	 * Messages which were received are checked through a {@link CommuniqueView} of their bytes, which allocates nothing
+	 * and leaves their fields packed. If their field declarations are malformed this method returns null.
+	 *
 	 * @param c
 	 * @return
 	 */
 	public static MessageType get(Communique c)
 	{
+		try
+		{
+			CommuniqueView view = c.view(MessageType.views.get());
+			if (view != null)
+				return get(view);
+		} catch (DecodingException e)
+		{
+			// The sender controls these bytes, so a malformed message is not worth logging.
+			return null;
+		}
+
 		if (c.fieldCount() < 2)
 			return null;
 
-		if (c.getField(0).getEncoding() != Encoding.Uncompressed || c.getField(0).getDatatype() != Datatype.STRING)
+		if (!c.getField(0).getEncodingChain().is(Encoding.Uncompressed) || c.getField(0).getDatatype() != Datatype.STRING)
 			return null;
-		if (c.getField(1).getEncoding() != Encoding.Uncompressed || c.getField(1).getDatatype() != Datatype.STRING)
+		if (!c.getField(1).getEncodingChain().is(Encoding.Uncompressed) || c.getField(1).getDatatype() != Datatype.STRING)
 			return null;
 
 		MessageType type = get(c.getField(0).encodedData().getShort());
@@ -144,6 +166,29 @@ public enum MessageType
 		return type;
 	}
 
+	/**
+	 * As {@link #get(Communique)}, for a message which has not been unpacked.
+	 *
+	 * @param view
+	 * @return
+	 * @throws DecodingException
+	 *             if the message's field declarations are malformed.
+	 */
+	public static MessageType get(CommuniqueView view) throws DecodingException
+	{
+		if (view.fieldCount() < 2)
+			return null;
+
+		if (!view.is(0, Datatype.STRING) || !view.is(1, Datatype.STRING) || view.getSize(0) < Short.BYTES)
+			return null;
+
+		MessageType type = get(view.getRawShort(0));
+		if (type == null || view.fieldCount() < type.minimumFields)
+			return null;
+
+		return type;
+	}
+
 	private short	id;
 	private int		minimumFields;
 
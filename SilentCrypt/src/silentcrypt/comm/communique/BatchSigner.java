@@ -0,0 +1,138 @@
+package silentcrypt.comm.communique;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import silentcrypt.util.Threads;
+import silentcrypt.util.U;
+
+/**
+ * Collects outgoing messages and signs them in batches with {@link Communique#signBatch(List)}, so that a sender
+ * producing messages at a high rate performs one signature per batch instead of one per message. A batch is signed
+ * once it holds the maximum number of messages, or once its oldest message has waited for the batching window,
+ * whichever comes first. Signed messages are handed on in the order they were submitted.
+ * <p>
+ * The batching window is only enforced once {@link #start()} has been called.
+ *
+ * @author Michael Wells
+ */
+public class BatchSigner
+{
+	private final int					maxMessages;
+	private final long					windowNanos;
+	private final Consumer<Communique>	out;
+	private List<Communique>			pending		= new ArrayList<>();
+	private long						oldest		= 0;
+	private boolean						closed		= false;
+	private Thread						thread		= null;
+
+	/**
+	 * @param maxMessages
+	 *            the most messages signed together.
+	 * @param windowMillis
+	 *            the longest a message will wait for others to join its batch.
+	 * @param out
+	 *            receives each message once it is signed.
+	 */
+	public BatchSigner(int maxMessages, long windowMillis, Consumer<Communique> out)
+	{
+		if (maxMessages < 1)
+			throw new IllegalArgumentException("Batches must hold at least one message.");
+		this.maxMessages = maxMessages;
+		this.windowNanos = windowMillis * 1_000_000L;
+		this.out = out;
+	}
+
+	/**
+	 * Starts the background thread which signs batches once their window has passed. Does nothing if it is already
+	 * running, or if this signer has been closed.
+	 *
+	 * @return this object.
+	 */
+	public synchronized BatchSigner start()
+	{
+		if (this.thread == null && !this.closed)
+			this.thread = Threads.start("Batch Signer #" + hashCode(), true, this::run);
+		return this;
+	}
+
+	/**
+	 * Queues the given message to be signed with the next batch. Once this signer is closed, the message is signed and
+	 * sent immediately instead.
+	 *
+	 * @param c
+	 */
+	public synchronized void submit(Communique c)
+	{
+		if (this.closed)
+		{
+			this.pending.add(c);
+			flush();
+			return;
+		}
+		if (this.pending.isEmpty())
+		{
+			this.oldest = System.nanoTime();
+			notifyAll();
+		}
+		this.pending.add(c);
+		if (this.pending.size() >= this.maxMessages)
+			flush();
+	}
+
+	/**
+	 * Signs and sends every queued message immediately.
+	 */
+	public synchronized void flush()
+	{
+		if (this.pending.isEmpty())
+			return;
+		List<Communique> batch = this.pending;
+		this.pending = new ArrayList<>();
+		try
+		{
+			Communique.signBatch(batch);
+		} catch (IllegalStateException e)
+		{
+			U.e("Unable to sign batch of " + batch.size() + " messages.", e);
+			return;
+		}
+		// Sent while holding the lock, so that a later batch can never overtake this one.
+		batch.forEach(this.out);
+	}
+
+	/**
+	 * Signs and sends every queued message, then stops the background thread. Messages submitted afterwards are signed
+	 * individually.
+	 */
+	public synchronized void close()
+	{
+		this.closed = true;
+		flush();
+		notifyAll();
+	}
+
+	private synchronized void run()
+	{
+		while (!this.closed)
+			try
+			{
+				if (this.pending.isEmpty())
+					wait();
+				else
+				{
+					long remaining = this.oldest + this.windowNanos - System.nanoTime();
+					if (remaining > 0)
+						wait(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+					else
+						flush();
+				}
+			} catch (InterruptedException e)
+			{
+				U.e("Batch signer interrupted.", e);
+				flush();
+				return;
+			}
+	}
+}
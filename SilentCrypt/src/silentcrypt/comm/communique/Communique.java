@@ -1,33 +1,33 @@
 package silentcrypt.comm.communique;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.net.SocketException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.time.DateTimeException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.List;
 import java.util.Objects;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
-import java.util.zip.CRC32;
 
-import org.bouncycastle.crypto.InvalidCipherTextException;
-import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
 
 import silentcrypt.comm.exception.DecodingException;
 import silentcrypt.comm.exception.EncodingException;
-import silentcrypt.util.RsaUtil;
 import silentcrypt.util.U;
+import silentcrypt.util.Varint;
 
 /**
  * <p>
@@ -52,6 +52,12 @@ import silentcrypt.util.U;
  * <li>Signature Data</li>
  * </ul>
  * </li>
+ * <li>Optional Countersignature (added by a relaying server)
+ * <ul>
+ * <li>Integer Size of Countersignature</li>
+ * <li>Countersignature Data</li>
+ * </ul>
+ * </li>
  * <li>Field List
  * <ul>
  * <li>DataType ID - Short</li>
@@ -62,29 +68,70 @@ import silentcrypt.util.U;
  * <li>Field Data</li>
  * </ul>
  * </p>
+ * <p>
+ * This is the structure of {@link WireVersion#V4}. {@link WireVersion#V5} has the same structure, but writes every
+ * integer above as a varint, and the send time as a difference from the signing time. Messages are written as V4
+ * unless a version is given, such as one negotiated with the receiving connection, and either version can be read.
+ * </p>
  *
  * @author Andrew Binns
  * @author Michael Wells
  */
 public class Communique
 {
-	private static enum Flag
+	static enum Flag
 	{
 		/**
 		 * If set, little endian, if unset, assumed to be big endian.
 		 */
 		Endieness(0),
-		Signed(1);
+		Signed(1),
+		Countersigned(2),
+		/**
+		 * Two bits holding the ID of the {@link SignatureScheme} used for the signature.
+		 */
+		Scheme(3, 2),
+		/**
+		 * Two bits holding the ID of the {@link SignatureScheme} used for the countersignature.
+		 */
+		CountersignatureScheme(5, 2),
+		/**
+		 * If set, the signature is a {@link MerkleProof} placing this message in a batch whose root was signed once.
+		 */
+		Batched(7);
 
-		private int offset;
+		private int	offset;
+		private int	mask;
 
 		Flag(int offset)
+		{
+			this(offset, 1);
+		}
+
+		Flag(int offset, int width)
 		{
 			this.offset = offset;
+			this.mask = (1 << width) - 1;
+		}
+
+		boolean isSet(int flags)
+		{
+			return get(flags) != 0;
+		}
+
+		int get(int flags)
+		{
+			return flags >>> this.offset & this.mask;
+		}
+
+		int set(int flags, int value)
+		{
+			return flags & ~(this.mask << this.offset) | (value & this.mask) << this.offset;
 		}
 	}
 
 	public static final byte[] V_0_3 = U.toBytes("AERIS-COMM-0004");
+	public static final byte[] V_0_5 = { (byte) 0xAE, 'S', 'C', 0x05 };
 
 	/**
 	 * @param in
@@ -92,84 +139,29 @@ public class Communique
 	 */
 	public static Supplier<Communique> from(InputStream in)
 	{
-		DataInputStream input = new DataInputStream(new BufferedInputStream(in, 65536));
-		byte[] ver = Communique.getCurrentVersion();
-		int headLen = Communique.getMinHeaderSize();
+		CommuniqueDecoder decoder = new CommuniqueDecoder();
+		Deque<Communique> ready = new ArrayDeque<>();
+		byte[] buffer = new byte[65536];
 		return () -> {
-			byte[] data;
-			main: while (true)
-				try
-				{
-					// Wait until we've gotten the version data
-					for (byte b : ver)
-					{
-						int cur = input.read();
-						// Bad data; abort!
-						if (cur == -1)
-							return null;
-						// Potentially offset from a real message; keep looking.
-						if (cur != b)
-							continue main;
-					}
-					// Wait until we've gotten the rest of the header.
-					while (input.available() < headLen - ver.length)
-						U.sleep(5);
-
-					// read the rest of the header, since we've already read the version
-					data = new byte[headLen];
-					int expectedRemainder = headLen - ver.length;
-					if (input.read(data, ver.length, expectedRemainder) != expectedRemainder)
-						continue;
-					// backfill the version data that we already verified.
-					for (int i = 0; i < ver.length; i++)
-						data[i] = ver[i];
-
-					/*
-					 * Since we think we've gotten the beginnings of a communication, start parsing
-					 */
-					Communique c = new Communique();
-					c.readOnly = true;
-					try
-					{
-						c.parseHeaderData(ByteBuffer.wrap(data));
-						if (c.flag(Flag.Signed))
-						{
-							c.sig = new byte[input.readShort()];
-							input.read(c.sig);
-						}
-					} catch (DecodingException e)
-					{
-						U.e("Got malformed communique while parsing header: " + e.getMessage());
-						continue;
-					}
-
-					List<CommuniqueField> fields = new ArrayList<>(c.fieldCount);
-					Deque<Integer> fieldSizes = new ArrayDeque<>(c.fieldCount);
-					for (int i = 0; i < c.fieldCount; i++)
-					{
-						short type = input.readShort();
-						short encoding = input.readShort();
-						fieldSizes.add(input.readInt());
-						fields.add(new CommuniqueField(c.metaSpace, i, type, encoding));
-					}
-
-					for (CommuniqueField f : fields)
-					{
-						data = new byte[fieldSizes.pollFirst()];
-						input.read(data);
-						f.setData(ByteBuffer.wrap(data));
-					}
-
-					c.fields = fields;
-					return c;
-				} catch (SocketException e)
-				{
-					return null;
-				} catch (IOException e)
+			try
+			{
+				// Blocks only on the underlying read; completed messages are handed out as soon as they are decoded.
+				while (ready.isEmpty())
 				{
-					U.e("Error reading from stream.", e);
-					return null;
+					int read = in.read(buffer);
+					if (read < 0)
+						return null;
+					decoder.decode(ByteBuffer.wrap(buffer, 0, read), ready::add);
 				}
+				return ready.pollFirst();
+			} catch (SocketException e)
+			{
+				return null;
+			} catch (IOException e)
+			{
+				U.e("Error reading from stream.", e);
+				return null;
+			}
 		};
 	}
 
@@ -181,7 +173,8 @@ public class Communique
 	public Communique setMetaSpace(MetaSpace ms)
 	{
 		this.metaSpace = ms;
-		this.fields.forEach(f -> f.setMetaSpace(ms));
+		this.fields.stream().filter(Objects::nonNull).forEach(f -> f.setMetaSpace(ms));
+		invalidate();
 		return this;
 	}
 
@@ -196,7 +189,7 @@ public class Communique
 	/**
 	 * @return the minimum size of a field with no data in it.
 	 */
-	private static int getMinFieldDefSize()
+	static int getMinFieldDefSize()
 	{
 		int res = 0;
 		// Primitive datatype
@@ -212,7 +205,7 @@ public class Communique
 	/**
 	 * @return the minimum header size.
 	 */
-	private static int getMinHeaderSize()
+	static int getMinHeaderSize()
 	{
 		int res = 0;
 		// Version info
@@ -256,8 +249,12 @@ public class Communique
 		return ret;
 	}
 
-	private byte[]				version			= Communique.getCurrentVersion();
+	private WireVersion			version			= WireVersion.V4;
 	private byte[]				sig				= new byte[0];
+	private byte[]				countersig		= new byte[0];
+	private SignatureScheme		scheme			= SignatureScheme.Rsa;
+	private SignatureScheme		counterScheme	= SignatureScheme.Rsa;
+	private boolean				batched			= false;
 	private int					flags;
 	private long				connectionId	= 0L;
 	private transient MetaSpace	metaSpace		= new MetaSpace();
@@ -271,6 +268,18 @@ public class Communique
 	private Instant	sentTime;
 	private Instant	signingTime	= Instant.now();
 
+	// The serialized form of this message in each version, built on first use and discarded whenever the message changes.
+	private ByteBuffer[] compiled = new ByteBuffer[WireVersion.values().length];
+
+	// For received messages, the whole message as it was read, the original field data, and each field's declaration and
+	// where its data starts within it.
+	private ByteBuffer	source			= null;
+	private ByteBuffer	tail			= null;
+	private int[]		fieldOffsets	= null;
+	private short[]		fieldTypes		= null;
+	private short[]		fieldEncodings	= null;
+	private int[]		fieldSizes		= null;
+
 	/**
 	 * Creates an empty Communique with zero fields.
 	 */
@@ -280,7 +289,8 @@ public class Communique
 	}
 
 	/**
-	 * Creates a read only Communique which reads the given buffer to populate its fields.
+	 * Creates a read only Communique which reads the given buffer to populate its fields. Fields are only unpacked as
+	 * they are requested, so a message which is simply relayed never has its payload fields touched.
 	 *
 	 * @param data
 	 * @throws DecodingException
@@ -288,16 +298,53 @@ public class Communique
 	public Communique(ByteBuffer data) throws DecodingException
 	{
 		this.readOnly = true;
-		parseHeaderData(data);
-		if (flag(Flag.Signed))
-		{
-			this.sig = new byte[data.getShort()];
-			data.get(this.sig);
-		}
+		ByteBuffer source = data.slice();
+		int start = data.position();
+		if (WireVersion.V5.matches(data))
+			parseCompact(data);
+		else
+			try
+			{
+				parseHeaderData(data);
+				if (flag(Flag.Signed))
+					this.sig = readBlock(data, "signature", data.getInt());
+				if (flag(Flag.Countersigned))
+					this.countersig = readBlock(data, "countersignature", data.getInt());
 
-		ensureValidCapacityForFields(data);
+				ensureValidCapacityForFields(data);
 
-		this.fields = extractFields(data);
+				indexFields(data);
+			} catch (IllegalArgumentException | BufferUnderflowException | DateTimeException e)
+			{
+				throw new DecodingException("Malformed header.", e);
+			}
+		source.limit(data.position() - start);
+		this.source = source;
+		this.fields = new ArrayList<>(Collections.nCopies(this.fieldCount, null));
+	}
+
+	/**
+	 * Points the given view at the bytes this message was read from, so that routing code can read its fields without
+	 * unpacking them. This allocates nothing once the view has seen a message with as many fields.
+	 *
+	 * @param into
+	 * @return the view, or null if this message was not read from a buffer.
+	 * @throws DecodingException
+	 */
+	public CommuniqueView view(CommuniqueView into) throws DecodingException
+	{
+		if (this.source == null)
+			return null;
+		return into.wrap(this.source);
+	}
+
+	private static byte[] readBlock(ByteBuffer data, String name, int size) throws DecodingException
+	{
+		if (size < 0 || size > data.remaining())
+			throw new DecodingException("Malformed " + name + " size: " + size);
+		byte[] res = new byte[size];
+		data.get(res);
+		return res;
 	}
 
 	/**
@@ -337,6 +384,7 @@ public class Communique
 		if (this.readOnly)
 			throw new EncodingException("Please do not modify an existing communique.");
 		this.sig = new byte[0];
+		invalidate();
 		this.fieldCount++;
 		this.fields.add(new CommuniqueField(this.metaSpace, this.fields.size(), field.getDatatype().getId(), field.getDatatype().getId(), field.encodedData()));
 		return this;
@@ -355,6 +403,26 @@ public class Communique
 	}
 
 	public <T> Communique add(Datatype<T> datatype, Encoding encoding, T data)
+	{
+		Objects.requireNonNull(encoding);
+		return this.add(datatype, EncodingChain.of(encoding), data);
+	}
+
+	/**
+	 * Adds a field which is encoded by each stage of the given chain in turn, such as compression followed by
+	 * encryption.
+	 *
+	 * @param encoding
+	 * @param data
+	 * @return
+	 */
+	public <T> Communique add(EncodingChain encoding, T data) throws IllegalArgumentException
+	{
+		this.add(Datatype.get(data), encoding, data);
+		return this;
+	}
+
+	public <T> Communique add(Datatype<T> datatype, EncodingChain encoding, T data)
 	{
 		Objects.requireNonNull(datatype, "Invalid data type provided.");
 		Objects.requireNonNull(encoding);
@@ -362,8 +430,10 @@ public class Communique
 		if (this.readOnly)
 			throw new EncodingException("Please do not modify an existing communique.");
 		this.sig = new byte[0];
+		invalidate();
 		this.fieldCount++;
-		this.fields.add(new CommuniqueField(this.metaSpace, this.fields.size(), datatype.getId(), encoding.getId(), datatype.encode(data)));
+		// Encoding is deferred until the message is compiled, so that the MetaSpace keys it needs may be set afterwards.
+		this.fields.add(new CommuniqueField(this.metaSpace, this.fields.size(), datatype, encoding, data));
 		return this;
 	}
 
@@ -375,7 +445,7 @@ public class Communique
 	 */
 	public Communique ensureFields() throws EncodingException, DecodingException
 	{
-		for (CommuniqueField f : this.fields)
+		for (CommuniqueField f : getFields())
 		{
 			f.ensureData();
 			f.ensureEncodedData();
@@ -440,7 +510,7 @@ public class Communique
 						continue;
 
 					Datatype<?> fieldType = Datatype.get(fields[i].getType());
-					if (!Objects.equals(this.fields.get(i).getDatatype(), (fieldType)))
+					if (!Objects.equals(getField(i).getDatatype(), (fieldType)))
 						return false;
 				}
 			}
@@ -460,43 +530,178 @@ public class Communique
 		return classFieldCount == this.fieldCount;
 	}
 
-	private byte[] checksum()
+	private byte[] checksum(SignatureScheme scheme)
 	{
-		CRC32 algorithm = new CRC32();
+		return checksum(scheme.summary());
+	}
 
+	private byte[] checksum(SignatureScheme.Summary algorithm)
+	{
 		// A checksum for all fields plus a timestamp.
-		ByteBuffer checksum = ByteBuffer.allocate(Long.BYTES + Long.BYTES + Integer.BYTES);
-		for (CommuniqueField field : this.fields)
-			algorithm.update(field.encodedData());
-		checksum.putLong(algorithm.getValue());
+		if (this.tail != null)
+		{
+			// The field data of a received message is contiguous, so it can be summed without unpacking any fields.
+			algorithm.update(this.tail.duplicate());
+		} else
+			for (CommuniqueField field : this.fields)
+				algorithm.update(field.encodedData());
+		byte[] summary = algorithm.finish();
+		ByteBuffer checksum = ByteBuffer.allocate(summary.length + Long.BYTES + Integer.BYTES);
+		checksum.put(summary);
 		checksum.putLong(this.signingTime.getEpochSecond());
 		checksum.putInt(this.signingTime.getNano());
 		return checksum.array();
 	}
 
 	/**
-	 * @param key
+	 * Signs this message with the default scheme for its MetaSpace (see {@link SignatureScheme#getDefault(MetaSpace)}).
+	 *
 	 * @return this object
-	 * @throws InvalidCipherTextException
+	 * @throws IllegalStateException
 	 */
 	public Communique sign() throws IllegalStateException
 	{
-		try
+		return sign(SignatureScheme.getDefault(this.metaSpace));
+	}
+
+	/**
+	 * Signs this message with the given scheme, using the matching key from this message's MetaSpace.
+	 *
+	 * @param scheme
+	 * @return this object
+	 * @throws IllegalStateException
+	 */
+	public Communique sign(SignatureScheme scheme) throws IllegalStateException
+	{
+		if (this.readOnly)
+			throw new IllegalStateException("Cannot sign a read only message.");
+		this.signingTime = Instant.now();
+		this.sig = scheme.sign(checksum(scheme), this.metaSpace);
+		this.scheme = scheme;
+		this.batched = false;
+		invalidate();
+		return this;
+	}
+
+	/**
+	 * Signs every message in the given batch with a single signature. Each message's SHA-256 checksum becomes a leaf of
+	 * a Merkle tree, the root of the tree is signed once using the default scheme for the first message's MetaSpace,
+	 * and each message carries the proof of its place in the tree alongside the root signature. Receivers validate each
+	 * message as usual, but only need to verify each root signature once.
+	 *
+	 * @param batch
+	 * @throws IllegalStateException
+	 */
+	public static void signBatch(List<Communique> batch) throws IllegalStateException
+	{
+		if (batch.isEmpty())
+			return;
+		MetaSpace ms = batch.get(0).metaSpace;
+		SignatureScheme scheme = SignatureScheme.getDefault(ms);
+
+		byte[][] leaves = new byte[batch.size()][];
+		Instant last = null;
+		for (int i = 0; i < leaves.length; i++)
 		{
-			RSAKeyParameters key = this.metaSpace.get(MetaSpace.RSA_SELF).getPrivateRsa();
-			if (this.readOnly)
+			Communique c = batch.get(i);
+			if (c.readOnly)
 				throw new IllegalStateException("Cannot sign a read only message.");
-			this.signingTime = Instant.now();
-			this.sig = RsaUtil.encrypt(checksum(), key);
-			return this;
-		} catch (InvalidCipherTextException e)
+			// Receivers reject timestamps which don't move forward, so no two messages in a batch may share one.
+			Instant now = Instant.now();
+			c.signingTime = last == null || now.isAfter(last) ? now : last.plusNanos(1);
+			last = c.signingTime;
+			leaves[i] = MerkleProof.leaf(c.checksum(SignatureScheme.sha256()));
+		}
+
+		List<byte[][]> tree = MerkleProof.build(leaves);
+		byte[] rootSig = scheme.sign(tree.get(tree.size() - 1)[0], ms);
+		for (int i = 0; i < leaves.length; i++)
 		{
-			throw new IllegalStateException("Could not sign Communique.", e);
+			Communique c = batch.get(i);
+			c.sig = MerkleProof.encode(tree, i, rootSig);
+			c.scheme = scheme;
+			c.batched = true;
+			c.invalidate();
 		}
 	}
 
 	/**
-	 * @return true iff this message has been signed using the {@link #sign(RSAKeyParameters)} method.
+	 * @return true iff this message was signed as part of a batch.
+	 */
+	public boolean isBatched()
+	{
+		return this.batched;
+	}
+
+	/**
+	 * @return the scheme this message was signed with.
+	 */
+	public SignatureScheme getSignatureScheme()
+	{
+		return this.scheme;
+	}
+
+	/**
+	 * Prepares a received, signed message to be forwarded as is. The sender's signature and every field are left
+	 * untouched; the server instead adds a countersignature over the sender's signature using the default scheme for
+	 * this message's MetaSpace. When the message is next written only a new header is built, and the original field
+	 * bytes are written straight out of the buffer they were received in.
+	 *
+	 * @return this object
+	 * @throws IllegalStateException
+	 *             if this message was not received, is not signed, or could not be countersigned.
+	 */
+	public Communique relay() throws IllegalStateException
+	{
+		if (!this.readOnly || !isSigned())
+			throw new IllegalStateException("Only received, signed messages can be relayed.");
+		SignatureScheme scheme = SignatureScheme.getDefault(this.metaSpace);
+		this.countersig = scheme.sign(countersignChecksum(scheme), this.metaSpace);
+		this.counterScheme = scheme;
+		invalidate();
+		return this;
+	}
+
+	private byte[] countersignChecksum(SignatureScheme scheme)
+	{
+		SignatureScheme.Summary algorithm = scheme.summary();
+		algorithm.update(ByteBuffer.wrap(this.sig));
+		byte[] summary = algorithm.finish();
+		ByteBuffer checksum = ByteBuffer.allocate(summary.length + Integer.BYTES);
+		checksum.put(summary);
+		checksum.putInt(this.sig.length);
+		return checksum.array();
+	}
+
+	/**
+	 * @return true iff this message has been countersigned by a relaying server.
+	 */
+	public boolean isCountersigned()
+	{
+		return this.countersig.length != 0;
+	}
+
+	/**
+	 * @param key
+	 * @return True iff this message was countersigned with the complement of the given key over its current signature.
+	 */
+	public boolean validateCountersignature(AsymmetricKeyParameter key)
+	{
+		if (!isSigned() || !isCountersigned())
+			return false;
+		return this.counterScheme.verifyCached(countersignChecksum(this.counterScheme), this.countersig, key);
+	}
+
+	/**
+	 * @return the scheme this message was countersigned with.
+	 */
+	public SignatureScheme getCountersignatureScheme()
+	{
+		return this.counterScheme;
+	}
+
+	/**
+	 * @return true iff this message has been signed using the {@link #sign()} method.
 	 */
 	public boolean isSigned()
 	{
@@ -505,61 +710,144 @@ public class Communique
 
 	/**
 	 * @param key
-	 * @return True iff this message was signed with the complementary RSA key and the enclosed checksum matches.
-	 * @throws InvalidCipherTextException
+	 *            an RSA key for messages signed with {@link SignatureScheme#Rsa}, or an EC key for
+	 *            {@link SignatureScheme#EcdsaP256}.
+	 * @return True iff this message was signed with the complement of the given key and the enclosed checksum matches.
 	 */
-	public boolean validate(RSAKeyParameters key)
+	public boolean validate(AsymmetricKeyParameter key)
 	{
 		if (!isSigned())
 			return false;
+		if (!this.batched)
+			return this.scheme.verifyCached(checksum(this.scheme), this.sig, key);
 
-		// Compare checksums.
 		try
 		{
-			byte[] checksum = checksum();
-			byte[] sig = RsaUtil.decrypt(this.sig, key);
-
-			if (sig.length != checksum.length)
-				return false;
-
-			for (int i = 0; i < checksum.length; ++i)
-			{
-				if (sig[i] != checksum[i])
-					return false;
-			}
-		} catch (InvalidCipherTextException ex)
+			MerkleProof proof = MerkleProof.decode(this.sig);
+			// Every message in the batch shares the root signature, so only the first of them pays for verifying it.
+			return this.scheme.verifyCached(proof.root(checksum(SignatureScheme.sha256())), proof.getRootSignature(), key);
+		} catch (DecodingException e)
 		{
 			return false;
 		}
-
-		return true;
 	}
 
 	/**
-	 * @return a serialized verson of this Communique.
+	 * @return a serialized verson of this Communique. The returned array is a copy and may be modified freely.
 	 */
 	public byte[] bytes()
 	{
-		return compile().array();
+		return bytes(WireVersion.V4);
+	}
+
+	/**
+	 * @param version
+	 * @return a serialized verson of this Communique in the given version. The returned array is a copy and may be
+	 *         modified freely.
+	 */
+	public byte[] bytes(WireVersion version)
+	{
+		ByteBuffer[] data = buffers(version);
+		ByteBuffer res = ByteBuffer.allocate(Arrays.stream(data).mapToInt(ByteBuffer::remaining).sum());
+		for (ByteBuffer b : data)
+			res.put(b);
+		return res.array();
+	}
+
+	/**
+	 * Returns a read only view of the serialized form of this Communique. The message is only serialized once, no
+	 * matter how many times this is called, so the same bytes (including the send time) can be written to any number of
+	 * recipients without copying. The cached form is discarded if the message is modified or signed again.
+	 * <p>
+	 * Received messages are written as a new header followed by their original field bytes, and this method has to copy
+	 * those into one buffer. Prefer {@link #buffers()} when writing to a channel which supports gathering writes.
+	 *
+	 * @return a read only buffer positioned at the start of the serialized message.
+	 */
+	public ByteBuffer buffer()
+	{
+		return buffer(WireVersion.V4);
+	}
+
+	/**
+	 * @param version
+	 * @return a read only buffer positioned at the start of the message serialized in the given version. See
+	 *         {@link #buffer()}.
+	 */
+	public ByteBuffer buffer(WireVersion version)
+	{
+		if (this.tail == null)
+			return compiled(version).asReadOnlyBuffer();
+		return ByteBuffer.wrap(bytes(version)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return read only views of the serialized form of this Communique, which together make up the whole message and
+	 *         should be written in order. See {@link #buffer()}.
+	 */
+	public ByteBuffer[] buffers()
+	{
+		return buffers(WireVersion.V4);
+	}
+
+	/**
+	 * @param version
+	 * @return read only views of the serialized form of this Communique in the given version. See {@link #buffers()}.
+	 */
+	public ByteBuffer[] buffers(WireVersion version)
+	{
+		if (this.tail == null)
+			return new ByteBuffer[] { compiled(version).asReadOnlyBuffer() };
+		return new ByteBuffer[] { compiled(version).asReadOnlyBuffer(), this.tail.asReadOnlyBuffer() };
+	}
+
+	/**
+	 * @return the version this Communique was received in, or {@link WireVersion#V4} for those created locally.
+	 */
+	public WireVersion getWireVersion()
+	{
+		return this.version;
+	}
+
+	private synchronized ByteBuffer compiled(WireVersion version)
+	{
+		ByteBuffer res = this.compiled[version.ordinal()];
+		if (res == null)
+		{
+			res = version == WireVersion.V4 ? compile() : compileCompact();
+			res.flip();
+			this.compiled[version.ordinal()] = res;
+		}
+		return res;
+	}
+
+	private synchronized void invalidate()
+	{
+		Arrays.fill(this.compiled, null);
 	}
 
 	private void setFlag(Flag f)
 	{
-		this.flags |= 1 << f.offset;
+		this.flags = f.set(this.flags, 1);
 	}
 
 	private void clearFlag(Flag f)
 	{
-		this.flags &= ~(1 << f.offset);
+		this.flags = f.set(this.flags, 0);
 	}
 
 	private ByteBuffer compile()
 	{
 		int msgSize = 0;
 		msgSize += Communique.getMinHeaderSize();
-		msgSize += this.sig.length;
+		if (isSigned())
+			msgSize += Integer.BYTES + this.sig.length;
+		if (isCountersigned())
+			msgSize += Integer.BYTES + this.countersig.length;
 		msgSize += this.fieldCount * Communique.getMinFieldDefSize();
-		msgSize += this.fields.stream().mapToInt(CommuniqueField::getEncodedSize).sum();
+		// Received messages reuse their original field bytes, which are written separately.
+		if (this.tail == null)
+			msgSize += this.fields.stream().mapToInt(CommuniqueField::getEncodedSize).sum();
 		ByteBuffer res = ByteBuffer.allocate(msgSize);
 		// enable when DataInputStream actually supports endienness...
 		// if (false)
@@ -568,12 +856,12 @@ public class Communique
 		// else
 		// setFlag(Flag.Endieness);
 		res.order(ByteOrder.BIG_ENDIAN);
-		clearFlag(Flag.Endieness);
+		updateFlags();
 
 		// header data
 		res.put(Communique.getCurrentVersion());
 		U.toBuff(this.signingTime, res);
-		U.toBuff(Instant.now(), res);
+		U.toBuff(sendTime(), res);
 		res.putInt(this.flags);
 		res.putInt(this.fieldCount);
 		if (flag(Flag.Signed))
@@ -581,16 +869,111 @@ public class Communique
 			res.putInt(this.sig.length);
 			res.put(this.sig);
 		}
+		if (flag(Flag.Countersigned))
+		{
+			res.putInt(this.countersig.length);
+			res.put(this.countersig);
+		}
+		for (int i = 0; i < this.fieldCount; i++)
+		{
+			res.putShort(fieldType(i));
+			res.putShort(fieldEncoding(i));
+			res.putInt(fieldSize(i));
+		}
+		putFieldData(res);
+		return res;
+	}
 
-		// field data
-		this.fields.forEach(f -> f.compile(res));
+	private ByteBuffer compileCompact()
+	{
+		updateFlags();
+		Instant sent = sendTime();
+		long delta = Duration.between(this.signingTime, sent).toNanos();
+
+		int msgSize = Communique.V_0_5.length;
+		msgSize += Varint.size(this.flags);
+		msgSize += Varint.sizeSigned(this.signingTime.getEpochSecond());
+		msgSize += Varint.size(this.signingTime.getNano());
+		msgSize += Varint.sizeSigned(delta);
+		msgSize += Varint.size(this.fieldCount);
+		if (isSigned())
+			msgSize += Varint.size(this.sig.length) + this.sig.length;
+		if (isCountersigned())
+			msgSize += Varint.size(this.countersig.length) + this.countersig.length;
+		for (int i = 0; i < this.fieldCount; i++)
+			msgSize += Varint.size(fieldType(i) & 0xFFFF) + Varint.size(fieldEncoding(i) & 0xFFFF) + Varint.size(fieldSize(i));
+		if (this.tail == null)
+			msgSize += this.fields.stream().mapToInt(CommuniqueField::getEncodedSize).sum();
 
+		ByteBuffer res = ByteBuffer.allocate(msgSize);
+		res.put(Communique.V_0_5);
+		Varint.put(res, this.flags);
+		Varint.putSigned(res, this.signingTime.getEpochSecond());
+		Varint.put(res, this.signingTime.getNano());
+		Varint.putSigned(res, delta);
+		Varint.put(res, this.fieldCount);
+		if (isSigned())
+			Varint.put(res, this.sig.length).put(this.sig);
+		if (isCountersigned())
+			Varint.put(res, this.countersig.length).put(this.countersig);
+		for (int i = 0; i < this.fieldCount; i++)
+		{
+			Varint.put(res, fieldType(i) & 0xFFFF);
+			Varint.put(res, fieldEncoding(i) & 0xFFFF);
+			Varint.put(res, fieldSize(i));
+		}
+		putFieldData(res);
+		return res;
+	}
+
+	private void updateFlags()
+	{
+		clearFlag(Flag.Endieness);
+		if (isSigned())
+			setFlag(Flag.Signed);
+		else
+			clearFlag(Flag.Signed);
+		if (isCountersigned())
+			setFlag(Flag.Countersigned);
+		else
+			clearFlag(Flag.Countersigned);
+		this.flags = Flag.Batched.set(this.flags, this.batched ? 1 : 0);
+		this.flags = Flag.Scheme.set(this.flags, this.scheme.getId());
+		this.flags = Flag.CountersignatureScheme.set(this.flags, this.counterScheme.getId());
+	}
+
+	private Instant sendTime()
+	{
+		Instant now = Instant.now();
+		if (!this.readOnly)
+			this.sentTime = now;
+		return now;
+	}
+
+	private short fieldType(int index)
+	{
+		return this.tail == null ? this.fields.get(index).getDatatype().getId() : this.fieldTypes[index];
+	}
+
+	private short fieldEncoding(int index)
+	{
+		return this.tail == null ? this.fields.get(index).getEncodingChain().getId() : this.fieldEncodings[index];
+	}
+
+	private int fieldSize(int index)
+	{
+		return this.tail == null ? this.fields.get(index).getEncodedSize() : this.fieldSizes[index];
+	}
+
+	private void putFieldData(ByteBuffer res)
+	{
+		// Received messages reuse their original field bytes, which are written separately.
+		if (this.tail != null)
+			return;
 		this.fields.forEach(f -> {
 			f.encodedData().rewind();
 			res.put(f.encodedData());
 		});
-
-		return res;
 	}
 
 	/**
@@ -599,7 +982,7 @@ public class Communique
 	 */
 	public byte[] data(int index)
 	{
-		ByteBuffer b = this.fields.get(index).encodedData();
+		ByteBuffer b = getField(index).encodedData();
 		byte[] res = new byte[b.capacity()];
 		b.rewind();
 		b.get(res);
@@ -608,11 +991,12 @@ public class Communique
 
 	private void ensureValidCapacityForFields(ByteBuffer data) throws DecodingException
 	{
-		if (data.remaining() < Communique.getMinFieldDefSize() * this.fieldCount)
+		// Sizes are summed as longs, since a hostile field count or size could overflow an int.
+		if (data.remaining() < (long) Communique.getMinFieldDefSize() * this.fieldCount)
 			throw new DecodingException("Insufficient data, field declaration too small.");
 		// Mark end of static header and beginning of non-static pieces
 		data.mark();
-		int minRemaining = 0;
+		long minRemaining = 0;
 		for (int i = 0; i < this.fieldCount; i++)
 		{
 			// skip type data during this first sizing check
@@ -630,22 +1014,56 @@ public class Communique
 		data.reset();
 	}
 
-	private List<CommuniqueField> extractFields(ByteBuffer data)
+	/**
+	 * Records each field's declaration and where its data lives, and keeps the field data as one slice, without
+	 * unpacking any of the fields.
+	 */
+	private void indexFields(ByteBuffer data)
+	{
+		allocateFieldIndex();
+		for (int i = 0; i < this.fieldCount; i++)
+		{
+			this.fieldTypes[i] = data.getShort();
+			this.fieldEncodings[i] = data.getShort();
+			this.fieldSizes[i] = data.getInt();
+		}
+		sliceFieldData(data);
+	}
+
+	private void allocateFieldIndex()
+	{
+		this.fieldOffsets = new int[this.fieldCount];
+		this.fieldTypes = new short[this.fieldCount];
+		this.fieldEncodings = new short[this.fieldCount];
+		this.fieldSizes = new int[this.fieldCount];
+	}
+
+	private void sliceFieldData(ByteBuffer data)
 	{
-		int dataStart = data.position() + this.fieldCount * Communique.getMinFieldDefSize();
-		List<CommuniqueField> res = new ArrayList<>();
+		int offset = 0;
 		for (int i = 0; i < this.fieldCount; i++)
 		{
-			short type = data.getShort();
-			short encoding = data.getShort();
-			int size = data.getInt();
-			data.mark();
-			data.position(dataStart);
-			ByteBuffer curData = ((ByteBuffer) data.duplicate().limit(size)).slice();
-			dataStart += size;
-			data.reset();
-			res.add(new CommuniqueField(this.metaSpace, i, type, encoding, curData));
+			this.fieldOffsets[i] = offset;
+			offset += this.fieldSizes[i];
 		}
+
+		ByteBuffer tail = data.duplicate();
+		tail.limit(tail.position() + offset);
+		this.tail = tail.slice().order(data.order());
+		data.position(data.position() + offset);
+	}
+
+	private synchronized CommuniqueField unpackField(int index)
+	{
+		CommuniqueField res = this.fields.get(index);
+		if (res != null)
+			return res;
+
+		ByteBuffer curData = this.tail.duplicate();
+		curData.position(this.fieldOffsets[index]);
+		curData.limit(this.fieldOffsets[index] + this.fieldSizes[index]);
+		res = new CommuniqueField(this.metaSpace, index, this.fieldTypes[index], this.fieldEncodings[index], curData.slice());
+		this.fields.set(index, res);
 		return res;
 	}
 
@@ -659,13 +1077,13 @@ public class Communique
 
 	private boolean flag(Flag flag)
 	{
-		return (this.flags & 1 << flag.offset) > 0;
+		return flag.isSet(this.flags);
 	}
 
 	/**
 	 * @return the time this object was most recently signed. For Communiques that are received by the system, this
 	 *         value is the reported creation time by the external system. If the Communique is signed,
-	 *         {@link #validate(RSAKeyParameters)} will verify that the timestamp was created by the sender. If it is
+	 *         {@link #validate(AsymmetricKeyParameter)} will verify that the timestamp was created by the sender. If it is
 	 *         not signed, this time usually represents the time the remote system began to construct the message.
 	 */
 	public Instant getTimestamp()
@@ -678,6 +1096,9 @@ public class Communique
 	 */
 	public List<CommuniqueField> getFields()
 	{
+		if (this.tail != null)
+			for (int i = 0; i < this.fieldCount; i++)
+				unpackField(i);
 		return this.fields;
 	}
 
@@ -689,6 +1110,8 @@ public class Communique
 	 */
 	public CommuniqueField getField(int index) throws IndexOutOfBoundsException
 	{
+		if (this.tail != null)
+			return unpackField(index);
 		return this.fields.get(index);
 	}
 
@@ -711,11 +1134,10 @@ public class Communique
 		if (data.remaining() < Communique.getMinHeaderSize())
 			throw new DecodingException(
 					"Insufficient data; header too small for standard header. Expected at least " + Communique.getMinHeaderSize() + " bytes, but only got " + data.remaining() + ".");
-		this.version = new byte[Communique.getCurrentVersion().length];
-		data.get(this.version);
+		this.version = WireVersion.V4;
+		data.position(data.position() + Communique.getCurrentVersion().length);
 		this.signingTime = U.toInstant(data);
 		this.sentTime = U.toInstant(data);
-		// TODO add communique version checking
 		data.order(ByteOrder.BIG_ENDIAN);
 		this.flags = data.getInt();
 		if (flag(Flag.Endieness))
@@ -724,6 +1146,62 @@ public class Communique
 
 		if (this.fieldCount < 0)
 			throw new DecodingException("Invalid field count");
+		parseFlags();
+	}
+
+	/**
+	 * Reads a {@link WireVersion#V5} message, up to and including its field declarations.
+	 *
+	 * @throws DecodingException
+	 */
+	private void parseCompact(ByteBuffer data) throws DecodingException
+	{
+		try
+		{
+			this.version = WireVersion.V5;
+			data.position(data.position() + Communique.V_0_5.length);
+			this.flags = Varint.getInt(data);
+			long seconds = Varint.getSigned(data);
+			int nanos = Varint.getInt(data);
+			long delta = Varint.getSigned(data);
+			this.signingTime = Instant.ofEpochSecond(seconds, nanos);
+			this.sentTime = this.signingTime.plusNanos(delta);
+			this.fieldCount = Varint.getInt(data);
+			// Each field declaration takes at least three bytes.
+			if (this.fieldCount > data.remaining() / 3)
+				throw new DecodingException("Insufficient data, field declaration too small.");
+			parseFlags();
+
+			if (flag(Flag.Signed))
+				this.sig = readBlock(data, "signature", Varint.getInt(data));
+			if (flag(Flag.Countersigned))
+				this.countersig = readBlock(data, "countersignature", Varint.getInt(data));
+
+			allocateFieldIndex();
+			long dataSize = 0;
+			for (int i = 0; i < this.fieldCount; i++)
+			{
+				this.fieldTypes[i] = (short) Varint.getInt(data);
+				this.fieldEncodings[i] = (short) Varint.getInt(data);
+				this.fieldSizes[i] = Varint.getInt(data);
+				dataSize += this.fieldSizes[i];
+			}
+			if (dataSize > data.remaining())
+				throw new DecodingException("Malformed data, not enough remaining in buffer.");
+			sliceFieldData(data);
+		} catch (IllegalArgumentException | BufferUnderflowException | DateTimeException | ArithmeticException e)
+		{
+			throw new DecodingException("Malformed compact header.", e);
+		}
+	}
+
+	private void parseFlags() throws DecodingException
+	{
+		this.scheme = SignatureScheme.get(Flag.Scheme.get(this.flags));
+		this.counterScheme = SignatureScheme.get(Flag.CountersignatureScheme.get(this.flags));
+		if (this.scheme == null || this.counterScheme == null)
+			throw new DecodingException("Unknown signature scheme.");
+		this.batched = flag(Flag.Batched);
 	}
 
 	/**
@@ -732,7 +1210,7 @@ public class Communique
 	 */
 	public Communique processAll(Consumer<CommuniqueField> modifier)
 	{
-		this.fields.parallelStream().forEach(modifier);
+		getFields().parallelStream().forEach(modifier);
 		return this;
 	}
 
@@ -742,14 +1220,18 @@ public class Communique
 		StringBuilder sb = new StringBuilder();
 
 		sb.append("Communique ");
-		sb.append("Version:").append(U.toString(this.version)).append(' ');
+		sb.append("Version:").append(this.version).append(' ');
 		sb.append("FieldCount:").append(this.fieldCount);
 
 		for (Flag f : Flag.values())
-			sb.append(' ').append(f.toString() + ":").append(flag(f));
-		for (CommuniqueField f : this.fields)
+			if (f.mask == 1)
+				sb.append(' ').append(f.toString() + ":").append(flag(f));
+		sb.append(" Scheme:").append(this.scheme);
+		if (isCountersigned())
+			sb.append(" CountersignatureScheme:").append(this.counterScheme);
+		for (CommuniqueField f : getFields())
 		{
-			sb.append(' ').append(f.getDatatype()).append(' ').append(f.getEncoding()).append('[').append(f.getEncodedSize()).append(']');
+			sb.append(' ').append(f.getDatatype()).append(' ').append(f.getEncodingChain()).append('[').append(f.getEncodedSize()).append(']');
 			if (f.getDatatype().equals(Datatype.STRING))
 				sb.append(' ').append(U.toString(data(f.getFieldIndex())));
 		}
@@ -758,14 +1240,38 @@ public class Communique
 	}
 
 	/**
-	 * Serializes this Communique and pushes it out over the given OutputStream.
+	 * Serializes this Communique (if it hasn't been already) and pushes it out over the given OutputStream.
 	 *
 	 * @param out
 	 * @throws IOException
 	 */
 	public void write(OutputStream out) throws IOException
 	{
-		ByteBuffer data = compile();
-		out.write(data.array());
+		write(out, WireVersion.V4);
+	}
+
+	/**
+	 * Serializes this Communique in the given version (if it hasn't been already) and pushes it out over the given
+	 * OutputStream, in a single write so that messages written to a shared stream from several threads can't
+	 * interleave.
+	 *
+	 * @param out
+	 * @param version
+	 * @throws IOException
+	 */
+	public void write(OutputStream out, WireVersion version) throws IOException
+	{
+		ByteBuffer data = compiled(version);
+		if (this.tail == null)
+		{
+			out.write(data.array(), 0, data.limit());
+			return;
+		}
+		byte[] whole = new byte[data.limit() + this.tail.limit()];
+		System.arraycopy(data.array(), 0, whole, 0, data.limit());
+		ByteBuffer tail = this.tail.duplicate();
+		tail.rewind();
+		tail.get(whole, data.limit(), tail.limit());
+		out.write(whole);
 	}
 }
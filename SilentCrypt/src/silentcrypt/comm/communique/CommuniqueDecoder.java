@@ -0,0 +1,573 @@
+package silentcrypt.comm.communique;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import silentcrypt.comm.exception.DecodingException;
+import silentcrypt.util.U;
+import silentcrypt.util.Varint;
+
+/**
+ * An incremental decoder which turns arbitrarily sized chunks of a byte stream into complete Communiques. Bytes may be
+ * handed over in any split (a single byte at a time, several messages at once, or anything in between) and each
+ * Communique is emitted as soon as its last byte has been consumed. The decoder never blocks or sleeps, which makes it
+ * suitable for use with non-blocking channels. Messages of every {@link WireVersion} are recognized, framed or not (see
+ * {@link Frame}), and may be mixed freely within a stream.
+ * <p>
+ * Instances are not thread safe; use one decoder per stream.
+ *
+ * @author Michael Wells
+ */
+public class CommuniqueDecoder
+{
+	private static enum State
+	{
+		/**
+		 * Scanning the stream for the magic of any version, or of a frame.
+		 */
+		MAGIC,
+		/**
+		 * Collecting the remainder of the static header.
+		 */
+		HEADER,
+		/**
+		 * Collecting the size of the signature block.
+		 */
+		SIGNATURE_SIZE,
+		/**
+		 * Collecting the signature block.
+		 */
+		SIGNATURE,
+		/**
+		 * Collecting the size of the countersignature block.
+		 */
+		COUNTERSIGNATURE_SIZE,
+		/**
+		 * Collecting the countersignature block.
+		 */
+		COUNTERSIGNATURE,
+		/**
+		 * Collecting the field declarations.
+		 */
+		FIELD_DEFS,
+		/**
+		 * Collecting the field data.
+		 */
+		FIELD_DATA,
+		/**
+		 * Collecting the varints of a compact header, a byte at a time.
+		 */
+		COMPACT_HEADER,
+		/**
+		 * Collecting the varint size of a compact signature block.
+		 */
+		COMPACT_SIGNATURE_SIZE,
+		/**
+		 * Collecting the varint size of a compact countersignature block.
+		 */
+		COMPACT_COUNTERSIGNATURE_SIZE,
+		/**
+		 * Collecting the varints of the compact field declarations.
+		 */
+		COMPACT_FIELD_DEFS,
+		/**
+		 * Collecting the remainder of a frame header.
+		 */
+		FRAME_HEADER,
+		/**
+		 * Collecting the payload of a frame.
+		 */
+		FRAME_PAYLOAD,
+		/**
+		 * Discarding the payload of a frame which can't be read.
+		 */
+		FRAME_SKIP;
+	}
+
+	/**
+	 * Upper bound on the size of a single Communique. Anything claiming to be larger is treated as garbage.
+	 */
+	public static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+	private static final int			READ_BUFFER_SIZE		= 65536;
+	private static final WireVersion[]	VERSIONS				= WireVersion.values();
+	// The magic of each version, in order, followed by that of a frame.
+	private static final byte[][]		MAGICS					= magics();
+	private static final int			HEADER_SIZE				= Communique.getMinHeaderSize();
+	// Flags, both timestamps (seconds, nanoseconds, and the difference), and field count.
+	private static final int			COMPACT_HEADER_VARINTS	= 5;
+	// Flags and field count are the last two integers of the static header.
+	private static final int			FLAGS_OFFSET			= HEADER_SIZE - Integer.BYTES * 2;
+	private static final int			FIELD_COUNT_OFFSET		= HEADER_SIZE - Integer.BYTES;
+
+	private State		state			= State.MAGIC;
+	private WireVersion	version			= WireVersion.V4;
+	private int[]		matched			= new int[MAGICS.length];
+	private int			required		= 0;
+	private int			varints			= 0;
+	private int			varintStart		= 0;
+	private int			sectionStart	= 0;
+	private int			skipping		= 0;
+	private int			fieldCount		= 0;
+	private int			flags			= 0;
+	private ByteBuffer	frame			= ByteBuffer.allocate(1024);
+	private ByteBuffer	readBuffer		= null;
+
+	private Consumer<ByteBuffer>		frameHandler	= null;
+	private Consumer<CommuniqueView>	views			= null;
+	private CommuniqueView				view			= null;
+
+	private static byte[][] magics()
+	{
+		byte[][] res = new byte[VERSIONS.length + 1][];
+		for (WireVersion v : VERSIONS)
+			res[v.ordinal()] = v.getMagic();
+		res[VERSIONS.length] = Frame.MAGIC;
+		return res;
+	}
+
+	/**
+	 * Hands each complete frame, header included, to the given handler instead of reading the Communiques it holds. This
+	 * leaves the work of reading them, with {@link Frame#unpack(ByteBuffer, Consumer)}, to whichever thread the handler
+	 * passes the frame to. Frames are only handed over once their checksum is verified, and the buffers are not reused.
+	 * Messages which are not framed are still decoded and passed to the usual consumer.
+	 *
+	 * @param handler
+	 *            the frame handler, or null to read frames as they are completed.
+	 * @return this object
+	 */
+	public CommuniqueDecoder setFrameHandler(Consumer<ByteBuffer> handler)
+	{
+		this.frameHandler = handler;
+		return this;
+	}
+
+	/**
+	 * Consumes every remaining byte of the given chunk, passing each Communique that is completed along the way to the
+	 * given consumer.
+	 *
+	 * @param chunk
+	 * @param out
+	 * @return this object
+	 */
+	public CommuniqueDecoder decode(ByteBuffer chunk, Consumer<Communique> out)
+	{
+		while (chunk.hasRemaining())
+		{
+			if (this.state == State.MAGIC)
+			{
+				scan(chunk);
+				continue;
+			}
+			if (this.state == State.FRAME_SKIP)
+			{
+				int toSkip = Math.min(chunk.remaining(), this.skipping);
+				chunk.position(chunk.position() + toSkip);
+				this.skipping -= toSkip;
+				if (this.skipping == 0)
+					reset();
+				continue;
+			}
+
+			int toCopy = Math.min(chunk.remaining(), this.required - this.frame.position());
+			ByteBuffer slice = chunk.duplicate();
+			slice.limit(slice.position() + toCopy);
+			this.frame.put(slice);
+			chunk.position(chunk.position() + toCopy);
+
+			try
+			{
+				// Zero length sections (no signature, no fields, empty data) complete without consuming input.
+				while (this.state != State.MAGIC && this.state != State.FRAME_SKIP && this.frame.position() == this.required)
+					advance(out);
+			} catch (DecodingException e)
+			{
+				U.e("Got malformed communique while decoding: " + e.getMessage());
+				reset();
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Consumes every remaining byte of the given chunk, passing a view of each Communique that is completed along the
+	 * way to the given consumer. The view sits directly on the decoder's buffer, so nothing is copied or unpacked, but
+	 * it is reused for every message and is only valid until the consumer returns; use
+	 * {@link CommuniqueView#copy(silentcrypt.util.BufferPool)} or {@link CommuniqueView#toCommunique()} to keep a
+	 * message. Frames are still passed to the frame handler, if one is set.
+	 *
+	 * @param chunk
+	 * @param out
+	 * @return this object
+	 */
+	public CommuniqueDecoder decodeViews(ByteBuffer chunk, Consumer<CommuniqueView> out)
+	{
+		if (this.view == null)
+			this.view = new CommuniqueView();
+		this.views = out;
+		try
+		{
+			return decode(chunk, null);
+		} finally
+		{
+			this.views = null;
+		}
+	}
+
+	/**
+	 * Performs a single read from the given channel and decodes whatever was returned. For blocking channels this waits
+	 * for at least one byte; for non-blocking channels it returns immediately if nothing is available.
+	 *
+	 * @param channel
+	 * @param out
+	 * @return the number of bytes read, or -1 if the channel has reached end-of-stream.
+	 * @throws IOException
+	 */
+	public int read(ReadableByteChannel channel, Consumer<Communique> out) throws IOException
+	{
+		if (this.readBuffer == null)
+			this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		this.readBuffer.clear();
+		int read = channel.read(this.readBuffer);
+		if (read > 0)
+		{
+			this.readBuffer.flip();
+			decode(this.readBuffer, out);
+		}
+		return read;
+	}
+
+	/**
+	 * @return true iff the decoder is part way through a Communique.
+	 */
+	public boolean isPartial()
+	{
+		if (this.state != State.MAGIC)
+			return true;
+		for (int m : this.matched)
+			if (m > 0)
+				return true;
+		return false;
+	}
+
+	private void scan(ByteBuffer chunk)
+	{
+		while (chunk.hasRemaining())
+		{
+			byte cur = chunk.get();
+			for (int i = 0; i < MAGICS.length; i++)
+			{
+				byte[] magic = MAGICS[i];
+				if (cur == magic[this.matched[i]])
+					this.matched[i]++;
+				// Potentially offset from a real message; keep looking, but allow the current byte to restart the match.
+				else if (cur == magic[0])
+					this.matched[i] = 1;
+				else
+					this.matched[i] = 0;
+
+				if (this.matched[i] == magic.length)
+				{
+					start(i);
+					return;
+				}
+			}
+		}
+	}
+
+	private void start(int magic)
+	{
+		Arrays.fill(this.matched, 0);
+		this.frame.clear();
+		this.frame.put(MAGICS[magic]);
+		try
+		{
+			if (magic == VERSIONS.length)
+				expect(State.FRAME_HEADER, Frame.HEADER_SIZE - Frame.MAGIC.length);
+			else if (VERSIONS[magic] == WireVersion.V4)
+				expect(State.HEADER, HEADER_SIZE - MAGICS[magic].length);
+			else
+			{
+				this.version = VERSIONS[magic];
+				expectVarints(State.COMPACT_HEADER, COMPACT_HEADER_VARINTS);
+			}
+		} catch (DecodingException e)
+		{
+			// Headers are far smaller than the maximum message size.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void advance(Consumer<Communique> out) throws DecodingException
+	{
+		switch (this.state)
+		{
+			case HEADER:
+				this.flags = this.frame.getInt(FLAGS_OFFSET);
+				this.fieldCount = this.frame.getInt(FIELD_COUNT_OFFSET);
+				if (this.fieldCount < 0)
+					throw new DecodingException("Invalid field count");
+				if (Communique.Flag.Signed.isSet(this.flags))
+					expect(State.SIGNATURE_SIZE, Integer.BYTES);
+				else
+					afterSignature();
+				break;
+			case SIGNATURE_SIZE:
+				int sigSize = this.frame.getInt(this.frame.position() - Integer.BYTES);
+				if (sigSize < 0)
+					throw new DecodingException("Negative signature size.");
+				expect(State.SIGNATURE, sigSize);
+				break;
+			case SIGNATURE:
+				afterSignature();
+				break;
+			case COUNTERSIGNATURE_SIZE:
+				int countersigSize = this.frame.getInt(this.frame.position() - Integer.BYTES);
+				if (countersigSize < 0)
+					throw new DecodingException("Negative countersignature size.");
+				expect(State.COUNTERSIGNATURE, countersigSize);
+				break;
+			case COUNTERSIGNATURE:
+				afterCountersignature();
+				break;
+			case FIELD_DEFS:
+				long dataSize = 0;
+				int defStart = this.frame.position() - this.fieldCount * Communique.getMinFieldDefSize();
+				for (int i = 0; i < this.fieldCount; i++)
+				{
+					// Skip the datatype and encoding.
+					int size = this.frame.getInt(defStart + i * Communique.getMinFieldDefSize() + Short.BYTES * 2);
+					if (size < 0)
+						throw new DecodingException("Negative field size, this probably means we have a encoding error.");
+					dataSize += size;
+				}
+				expect(State.FIELD_DATA, dataSize);
+				break;
+			case FIELD_DATA:
+				emit(out);
+				break;
+			case COMPACT_HEADER:
+			case COMPACT_SIGNATURE_SIZE:
+			case COMPACT_COUNTERSIGNATURE_SIZE:
+			case COMPACT_FIELD_DEFS:
+				if (nextVarint())
+					compactSection();
+				break;
+			case FRAME_HEADER:
+				// Nothing in the header can be trusted until it's checked, least of all the length of data to skip.
+				if (!Frame.verifyHeader(this.frame, 0))
+					throw new DecodingException("Frame header checksum mismatch.");
+				byte kind = this.frame.get(Frame.KIND_OFFSET);
+				int length = this.frame.getInt(Frame.LENGTH_OFFSET);
+				if (length < 0 || length > MAX_MESSAGE_SIZE - Frame.HEADER_SIZE)
+					throw new DecodingException("Frame length " + length + " exceeds maximum size of " + MAX_MESSAGE_SIZE + " bytes.");
+				if (Frame.isKnownKind(kind))
+					expect(State.FRAME_PAYLOAD, length);
+				else
+				{
+					// The length is all that's needed to pass over the frame, without buffering or scanning it.
+					U.e("Skipping frame of unknown kind " + kind + ".");
+					this.state = State.FRAME_SKIP;
+					this.skipping = length;
+					if (length == 0)
+						reset();
+				}
+				break;
+			case FRAME_PAYLOAD:
+				emitFrame(out);
+				break;
+			default:
+				throw new IllegalStateException("Unexpected decoder state " + this.state);
+		}
+	}
+
+	private void afterSignature() throws DecodingException
+	{
+		if (!Communique.Flag.Countersigned.isSet(this.flags))
+			afterCountersignature();
+		else if (this.version == WireVersion.V4)
+			expect(State.COUNTERSIGNATURE_SIZE, Integer.BYTES);
+		else
+			expectVarints(State.COMPACT_COUNTERSIGNATURE_SIZE, 1);
+	}
+
+	private void afterCountersignature() throws DecodingException
+	{
+		if (this.version == WireVersion.V4)
+			expect(State.FIELD_DEFS, this.fieldCount * (long) Communique.getMinFieldDefSize());
+		else if (this.fieldCount == 0)
+			expect(State.FIELD_DATA, 0);
+		else
+		{
+			// Each declaration is at least three bytes, so this also bounds the field count.
+			if (this.fieldCount * 3L > MAX_MESSAGE_SIZE)
+				throw new DecodingException("Communique exceeds maximum size of " + MAX_MESSAGE_SIZE + " bytes.");
+			expectVarints(State.COMPACT_FIELD_DEFS, this.fieldCount * 3);
+		}
+	}
+
+	/**
+	 * Starts collecting the given number of varints, which are then read together by {@link #compactSection()}.
+	 */
+	private void expectVarints(State next, int count) throws DecodingException
+	{
+		this.varints = count;
+		this.sectionStart = this.frame.position();
+		this.varintStart = this.sectionStart;
+		expect(next, 1);
+	}
+
+	/**
+	 * Called after each byte of a compact section.
+	 *
+	 * @return true once the last varint of the section is complete.
+	 */
+	private boolean nextVarint() throws DecodingException
+	{
+		int end = this.frame.position();
+		if (this.frame.get(end - 1) < 0)
+		{
+			if (end - this.varintStart >= Varint.MAX_SIZE)
+				throw new DecodingException("Varint is longer than " + Varint.MAX_SIZE + " bytes.");
+			expect(this.state, 1);
+			return false;
+		}
+		this.varintStart = end;
+		if (--this.varints > 0)
+		{
+			expect(this.state, 1);
+			return false;
+		}
+		return true;
+	}
+
+	private void compactSection() throws DecodingException
+	{
+		ByteBuffer section = this.frame.duplicate();
+		section.flip();
+		section.position(this.sectionStart);
+		try
+		{
+			switch (this.state)
+			{
+				case COMPACT_HEADER:
+					this.flags = Varint.getInt(section);
+					// The timestamps are checked when the Communique is built.
+					Varint.get(section);
+					Varint.get(section);
+					Varint.get(section);
+					this.fieldCount = Varint.getInt(section);
+					if (Communique.Flag.Signed.isSet(this.flags))
+						expectVarints(State.COMPACT_SIGNATURE_SIZE, 1);
+					else
+						afterSignature();
+					break;
+				case COMPACT_SIGNATURE_SIZE:
+					expect(State.SIGNATURE, Varint.getInt(section));
+					break;
+				case COMPACT_COUNTERSIGNATURE_SIZE:
+					expect(State.COUNTERSIGNATURE, Varint.getInt(section));
+					break;
+				case COMPACT_FIELD_DEFS:
+					long dataSize = 0;
+					for (int i = 0; i < this.fieldCount; i++)
+					{
+						// Skip the datatype and encoding.
+						Varint.get(section);
+						Varint.get(section);
+						dataSize += Varint.getInt(section);
+					}
+					expect(State.FIELD_DATA, dataSize);
+					break;
+				default:
+					throw new IllegalStateException("Unexpected decoder state " + this.state);
+			}
+		} catch (IllegalArgumentException e)
+		{
+			throw new DecodingException("Malformed compact header: " + e.getMessage(), e);
+		}
+	}
+
+	private void emit(Consumer<Communique> out) throws DecodingException
+	{
+		if (this.views != null)
+		{
+			try
+			{
+				this.views.accept(this.view.wrap(this.frame, 0, this.frame.position()));
+			} finally
+			{
+				reset();
+			}
+			return;
+		}
+		byte[] data = new byte[this.frame.position()];
+		this.frame.flip();
+		this.frame.get(data);
+		reset();
+		out.accept(new Communique(ByteBuffer.wrap(data)));
+	}
+
+	private void emitFrame(Consumer<Communique> out) throws DecodingException
+	{
+		if (this.views != null && this.frameHandler == null)
+		{
+			int end = this.frame.position();
+			try
+			{
+				if (!Frame.verify(this.frame, 0, end))
+					throw new DecodingException("Frame checksum mismatch, dropping " + (end - Frame.HEADER_SIZE) + " bytes.");
+				Frame.unpack(this.frame, 0, end, this.view, this.views);
+			} finally
+			{
+				reset();
+			}
+			return;
+		}
+		byte[] data = new byte[this.frame.position()];
+		this.frame.flip();
+		this.frame.get(data);
+		reset();
+		ByteBuffer frame = ByteBuffer.wrap(data);
+		if (!Frame.verify(frame))
+			throw new DecodingException("Frame checksum mismatch, dropping " + (data.length - Frame.HEADER_SIZE) + " bytes.");
+		if (this.frameHandler != null)
+			this.frameHandler.accept(frame.asReadOnlyBuffer());
+		else
+			Frame.unpack(frame, out);
+	}
+
+	private void expect(State next, long additional) throws DecodingException
+	{
+		long total = this.frame.position() + additional;
+		if (total > MAX_MESSAGE_SIZE)
+			throw new DecodingException("Communique exceeds maximum size of " + MAX_MESSAGE_SIZE + " bytes.");
+		this.state = next;
+		this.required = (int) total;
+		if (this.frame.capacity() < this.required)
+		{
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(this.required, this.frame.capacity() * 2));
+			this.frame.flip();
+			grown.put(this.frame);
+			this.frame = grown;
+		}
+		this.frame.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	private void reset()
+	{
+		this.state = State.MAGIC;
+		this.version = WireVersion.V4;
+		Arrays.fill(this.matched, 0);
+		this.required = 0;
+		this.varints = 0;
+		this.skipping = 0;
+		this.fieldCount = 0;
+		this.flags = 0;
+		this.frame.clear();
+	}
+}
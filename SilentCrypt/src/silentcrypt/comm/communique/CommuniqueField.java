@@ -15,16 +15,16 @@ import silentcrypt.util.U;
  */
 public class CommuniqueField
 {
-	private int			fieldIndex;
-	private Datatype<?>	datatype;
-	private Encoding	encoding;
-	private Object		data		= null;
-	private ByteBuffer	encodedData	= null;
+	private int				fieldIndex;
+	private Datatype<?>		datatype;
+	private EncodingChain	encoding;
+	private Object			data		= null;
+	private ByteBuffer		encodedData	= null;
 
 	private transient MetaSpace metaSpace;
 
 	// New field.
-	<T> CommuniqueField(MetaSpace ms, int fieldIndex, Datatype<T> datatype, Encoding encoding, T data)
+	<T> CommuniqueField(MetaSpace ms, int fieldIndex, Datatype<T> datatype, EncodingChain encoding, T data)
 	{
 		this.fieldIndex = fieldIndex;
 		this.datatype = datatype;
@@ -38,7 +38,7 @@ public class CommuniqueField
 	{
 		this.fieldIndex = fieldIndex;
 		this.datatype = Datatype.get(datatype);
-		this.encoding = Encoding.get(encoding);
+		this.encoding = EncodingChain.get(encoding);
 		this.data = null;
 		this.metaSpace = ms;
 	}
@@ -48,7 +48,7 @@ public class CommuniqueField
 	{
 		this.fieldIndex = fieldIndex;
 		this.datatype = Datatype.get(datatype);
-		this.encoding = Encoding.get(encoding);
+		this.encoding = EncodingChain.get(encoding);
 		this.encodedData = data.asReadOnlyBuffer();
 		this.metaSpace = ms;
 	}
@@ -67,13 +67,6 @@ public class CommuniqueField
 		return this.encodedData;
 	}
 
-	void compile(ByteBuffer res) throws EncodingException
-	{
-		res.putShort(this.datatype.getId());
-		res.putShort(this.encoding.getId());
-		res.putInt(ensureEncodedData().remaining());
-	}
-
 	/**
 	 * @return The data type stored in this field.
 	 */
@@ -130,9 +123,18 @@ public class CommuniqueField
 
 	/**
 	 * @return The encoding used to serialize this field. (Note: This does not describe the charset used for encoding
-	 *         strings, but rather the type and level of compression used on the binary data)
+	 *         strings, but rather the type and level of compression used on the binary data) For fields with more than
+	 *         one encoding, this is the last one applied.
 	 */
 	public Encoding getEncoding()
+	{
+		return this.encoding.getStage(this.encoding.length() - 1);
+	}
+
+	/**
+	 * @return Every encoding used to serialize this field, in the order they were applied.
+	 */
+	public EncodingChain getEncodingChain()
 	{
 		return this.encoding;
 	}
@@ -0,0 +1,617 @@
+package silentcrypt.comm.communique;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+
+import silentcrypt.comm.exception.DecodingException;
+import silentcrypt.util.BufferPool;
+import silentcrypt.util.RsaUtil;
+import silentcrypt.util.U;
+import silentcrypt.util.Varint;
+
+/**
+ * A read only view of a serialized Communique, in any {@link WireVersion}, which reads fields straight out of the buffer
+ * holding the message. Nothing is copied or unpacked up front: wrapping a buffer reads only the header, each field's
+ * declaration is read the first time that field (or a later one) is asked for, and the typed accessors read values
+ * without building a {@link CommuniqueField}. Only unencoded fields can be read this way; anything else needs
+ * {@link #toCommunique()}.
+ * <p>
+ * Views are flyweights: one instance can be pointed at message after message with {@link #wrap(ByteBuffer)}, and once
+ * its internal tables are large enough for the messages seen, doing so allocates nothing. Accessors which return
+ * objects (strings, keys, timestamps and buffers) allocate those objects, but the rest do not.
+ * <p>
+ * A view is only valid for as long as the buffer underneath it holds the message. Views handed out by
+ * {@link CommuniqueDecoder#decodeViews(ByteBuffer, java.util.function.Consumer)} sit on the decoder's own buffer, so
+ * they must be used, or copied with {@link #copy(BufferPool)}, before the consumer returns.
+ * <p>
+ * Instances are not thread safe.
+ *
+ * @author Michael Wells
+ */
+public final class CommuniqueView
+{
+	private static final int V4_HEADER_SIZE = Communique.getMinHeaderSize();
+
+	private ByteBuffer	data		= null;
+	private int			start		= 0;
+	private int			end			= 0;
+	private WireVersion	version		= null;
+	// True if multi-byte values in the field declarations and data are in the opposite order to the buffer.
+	private boolean		swap		= false;
+	private int			flags		= 0;
+	private long		seconds		= 0;
+	private int			nanos		= 0;
+	private int			fieldCount	= 0;
+	private int			defStart	= 0;
+	private int			dataStart	= 0;
+	private int			indexed		= 0;
+	private int			cursor		= 0;
+	private long		dataSize	= 0;
+	private short[]		types		= new short[8];
+	private short[]		encodings	= new short[8];
+	private int[]		sizes		= new int[8];
+	private int[]		offsets		= new int[8];
+	private BufferPool	pool		= null;
+
+	/**
+	 * Points this view at the message starting at the given buffer's position. The buffer's position and limit are not
+	 * changed.
+	 *
+	 * @param data
+	 * @return this object
+	 * @throws DecodingException
+	 *             if the message header is malformed.
+	 */
+	public CommuniqueView wrap(ByteBuffer data) throws DecodingException
+	{
+		return wrap(data, data.position(), data.limit());
+	}
+
+	CommuniqueView wrap(ByteBuffer data, int start, int end) throws DecodingException
+	{
+		release();
+		this.data = data;
+		this.start = start;
+		this.end = end;
+		this.indexed = 0;
+		this.dataSize = 0;
+		try
+		{
+			if (startsWith(Communique.V_0_5))
+				parseCompact();
+			else
+				parseHeader();
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e)
+		{
+			this.data = null;
+			throw new DecodingException("Malformed communique header.", e);
+		}
+		return this;
+	}
+
+	/**
+	 * Copies the message into a buffer from the given pool, so that it outlives the buffer this view is over. Call
+	 * {@link #release()} on the copy once finished with it.
+	 *
+	 * @param pool
+	 * @return a new view over the copy.
+	 * @throws DecodingException
+	 */
+	public CommuniqueView copy(BufferPool pool) throws DecodingException
+	{
+		int size = size();
+		ByteBuffer res = pool.acquire(size);
+		ByteBuffer src = this.data.duplicate();
+		src.limit(this.start + size);
+		src.position(this.start);
+		res.put(src.order(ByteOrder.BIG_ENDIAN));
+		res.flip();
+		CommuniqueView view = new CommuniqueView().wrap(res);
+		view.pool = pool;
+		return view;
+	}
+
+	/**
+	 * Returns the buffer under this view to its pool if it came from {@link #copy(BufferPool)}, and detaches this view
+	 * from it.
+	 */
+	public void release()
+	{
+		if (this.pool != null)
+			this.pool.release(this.data);
+		this.pool = null;
+		this.data = null;
+	}
+
+	/**
+	 * @return a Communique holding a copy of this message, with its fields unpacked on demand as usual.
+	 * @throws DecodingException
+	 */
+	public Communique toCommunique() throws DecodingException
+	{
+		byte[] res = new byte[size()];
+		ByteBuffer src = this.data.duplicate();
+		src.position(this.start);
+		src.get(res);
+		return new Communique(ByteBuffer.wrap(res));
+	}
+
+	/**
+	 * @return the version the message is serialized in.
+	 */
+	public WireVersion getWireVersion()
+	{
+		return this.version;
+	}
+
+	/**
+	 * @return the number of fields in the message.
+	 */
+	public int fieldCount()
+	{
+		return this.fieldCount;
+	}
+
+	/**
+	 * @return true iff the message is signed.
+	 */
+	public boolean isSigned()
+	{
+		return Communique.Flag.Signed.isSet(this.flags);
+	}
+
+	/**
+	 * @return true iff the message is countersigned.
+	 */
+	public boolean isCountersigned()
+	{
+		return Communique.Flag.Countersigned.isSet(this.flags);
+	}
+
+	/**
+	 * @return the time the message was signed.
+	 */
+	public Instant getSigningTime()
+	{
+		return Instant.ofEpochSecond(this.seconds, this.nanos);
+	}
+
+	/**
+	 * @return the total size of the serialized message.
+	 * @throws DecodingException
+	 */
+	public int size() throws DecodingException
+	{
+		index(this.fieldCount - 1);
+		return (int) (this.dataStart + this.dataSize - this.start);
+	}
+
+	/**
+	 * @return the buffer this view reads from. It is not a copy, and must not be modified.
+	 */
+	public ByteBuffer buffer()
+	{
+		return this.data;
+	}
+
+	/**
+	 * @param index
+	 * @return the datatype of the given field.
+	 * @throws DecodingException
+	 */
+	public Datatype<?> getDatatype(int index) throws DecodingException
+	{
+		index(index);
+		return Datatype.get(this.types[index]);
+	}
+
+	/**
+	 * @param index
+	 * @return the encodings applied to the given field.
+	 * @throws DecodingException
+	 */
+	public EncodingChain getEncodingChain(int index) throws DecodingException
+	{
+		index(index);
+		return EncodingChain.get(this.encodings[index]);
+	}
+
+	/**
+	 * @param index
+	 * @param datatype
+	 * @return true if the given field is of the given datatype and is not encoded, so that it can be read by this view.
+	 * @throws DecodingException
+	 */
+	public boolean is(int index, Datatype<?> datatype) throws DecodingException
+	{
+		index(index);
+		return this.types[index] == datatype.getId() && this.encodings[index] == Encoding.Uncompressed.getId();
+	}
+
+	/**
+	 * @param index
+	 * @return the size of the given field's encoded data.
+	 * @throws DecodingException
+	 */
+	public int getSize(int index) throws DecodingException
+	{
+		index(index);
+		return this.sizes[index];
+	}
+
+	/**
+	 * @param index
+	 * @return the position in {@link #buffer()} at which the given field's encoded data starts.
+	 * @throws DecodingException
+	 */
+	public int getOffset(int index) throws DecodingException
+	{
+		index(index);
+		return this.dataStart + this.offsets[index];
+	}
+
+	/**
+	 * @param index
+	 * @return a read only buffer over the given field's encoded data, whatever its datatype or encoding.
+	 * @throws DecodingException
+	 */
+	public ByteBuffer getData(int index) throws DecodingException
+	{
+		int offset = getOffset(index);
+		ByteBuffer res = this.data.duplicate();
+		res.limit(offset + this.sizes[index]);
+		res.position(offset);
+		return res.slice().order(this.swap ^ this.data.order() == ByteOrder.BIG_ENDIAN ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN)
+				.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads the first two bytes of the given field's encoded data as a big endian short, whatever its datatype,
+	 * encoding, or the order of the message. Meant for routing on fields which lead with an identifier.
+	 *
+	 * @param index
+	 * @return the leading short of the given field.
+	 * @throws DecodingException
+	 *             if the field is too small.
+	 */
+	public short getRawShort(int index) throws DecodingException
+	{
+		int offset = getOffset(index);
+		if (this.sizes[index] < Short.BYTES)
+			throw new DecodingException("Field " + index + " is too small to hold a short.");
+		return (short) (this.data.get(offset) << 8 | this.data.get(offset + 1) & 0xFF);
+	}
+
+	/**
+	 * @param index
+	 * @return the given field, read as a byte.
+	 * @throws DecodingException
+	 * @throws ClassCastException
+	 *             if the field's datatype doesn't hold this type.
+	 * @throws IllegalStateException
+	 *             if the field is encoded.
+	 */
+	public byte getByte(int index) throws DecodingException
+	{
+		return this.data.get(typed(index, Byte.class, Byte.BYTES));
+	}
+
+	/**
+	 * @param index
+	 * @return the given field, read as a short.
+	 * @throws DecodingException
+	 * @throws ClassCastException
+	 *             if the field's datatype doesn't hold this type.
+	 * @throws IllegalStateException
+	 *             if the field is encoded.
+	 */
+	public short getShort(int index) throws DecodingException
+	{
+		return shortAt(typed(index, Short.class, Short.BYTES));
+	}
+
+	/**
+	 * @param index
+	 * @return the given field, read as an int.
+	 * @throws DecodingException
+	 * @throws ClassCastException
+	 *             if the field's datatype doesn't hold this type.
+	 * @throws IllegalStateException
+	 *             if the field is encoded.
+	 */
+	public int getInt(int index) throws DecodingException
+	{
+		return intAt(typed(index, Integer.class, Integer.BYTES));
+	}
+
+	/**
+	 * @param index
+	 * @return the given field, read as a long.
+	 * @throws DecodingException
+	 * @throws ClassCastException
+	 *             if the field's datatype doesn't hold this type.
+	 * @throws IllegalStateException
+	 *             if the field is encoded.
+	 */
+	public long getLong(int index) throws DecodingException
+	{
+		return longAt(typed(index, Long.class, Long.BYTES));
+	}
+
+	/**
+	 * @param index
+	 * @return the given field, read as an Instant.
+	 * @throws DecodingException
+	 * @throws ClassCastException
+	 *             if the field's datatype doesn't hold this type.
+	 * @throws IllegalStateException
+	 *             if the field is encoded.
+	 */
+	public Instant getInstant(int index) throws DecodingException
+	{
+		int offset = typed(index, Instant.class, Long.BYTES + Integer.BYTES);
+		return Instant.ofEpochSecond(longAt(offset), intAt(offset + Long.BYTES));
+	}
+
+	/**
+	 * @param index
+	 * @return the given field, read as a String.
+	 * @throws DecodingException
+	 * @throws ClassCastException
+	 *             if the field's datatype doesn't hold this type.
+	 * @throws IllegalStateException
+	 *             if the field is encoded.
+	 */
+	public String getString(int index) throws DecodingException
+	{
+		int offset = typed(index, String.class, 0);
+		if (this.data.hasArray())
+			return U.toString(this.data.array(), this.data.arrayOffset() + offset, this.sizes[index]);
+		return U.toString(bytes(offset, this.sizes[index]));
+	}
+
+	/**
+	 * @param index
+	 * @return a copy of the given field's data.
+	 * @throws DecodingException
+	 * @throws ClassCastException
+	 *             if the field's datatype doesn't hold this type.
+	 * @throws IllegalStateException
+	 *             if the field is encoded.
+	 */
+	public byte[] getBytes(int index) throws DecodingException
+	{
+		return bytes(typed(index, byte[].class, 0), this.sizes[index]);
+	}
+
+	/**
+	 * @param index
+	 * @return the given field, read as an RSA key.
+	 * @throws DecodingException
+	 * @throws ClassCastException
+	 *             if the field's datatype doesn't hold this type.
+	 * @throws IllegalStateException
+	 *             if the field is encoded.
+	 */
+	public RSAKeyParameters getRsaKey(int index) throws DecodingException
+	{
+		int offset = typed(index, RSAKeyParameters.class, 0);
+		try
+		{
+			return RsaUtil.fromBytes(bytes(offset, this.sizes[index]));
+		} catch (IllegalArgumentException e)
+		{
+			throw new DecodingException("Malformed RSA key in field " + index + ".", e);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		if (this.data == null)
+			return "CommuniqueView[]";
+		return "CommuniqueView[Version:" + this.version + " Fields:" + this.fieldCount + ']';
+	}
+
+	private boolean startsWith(byte[] magic)
+	{
+		if (this.end - this.start < magic.length)
+			return false;
+		for (int i = 0; i < magic.length; i++)
+			if (this.data.get(this.start + i) != magic[i])
+				return false;
+		return true;
+	}
+
+	private void parseHeader() throws DecodingException
+	{
+		if (this.end - this.start < V4_HEADER_SIZE)
+			throw new DecodingException("Insufficient data; header too small for standard header.");
+		this.version = WireVersion.V4;
+		int pos = this.start + Communique.V_0_3.length;
+		// Everything up to the flags is in the order of the buffer it was written from, which is always big endian.
+		this.swap = this.data.order() != ByteOrder.BIG_ENDIAN;
+		this.seconds = longAt(pos);
+		this.nanos = intAt(pos + Long.BYTES);
+		pos += (Long.BYTES + Integer.BYTES) * 2;
+		this.flags = intAt(pos);
+		pos += Integer.BYTES;
+		this.swap = (this.data.order() == ByteOrder.LITTLE_ENDIAN) != Communique.Flag.Endieness.isSet(this.flags);
+		this.fieldCount = intAt(pos);
+		pos += Integer.BYTES;
+		if (this.fieldCount < 0)
+			throw new DecodingException("Invalid field count");
+		if (isSigned())
+			pos = skipBlock(pos + Integer.BYTES, intAt(pos));
+		if (isCountersigned())
+			pos = skipBlock(pos + Integer.BYTES, intAt(pos));
+		if (this.fieldCount > (this.end - pos) / Communique.getMinFieldDefSize())
+			throw new DecodingException("Insufficient data, field declaration too small.");
+		this.defStart = pos;
+		this.dataStart = pos + this.fieldCount * Communique.getMinFieldDefSize();
+		ensureCapacity();
+	}
+
+	private void parseCompact() throws DecodingException
+	{
+		this.version = WireVersion.V5;
+		// Compact messages are always written big endian.
+		this.swap = this.data.order() != ByteOrder.BIG_ENDIAN;
+		this.cursor = this.start + Communique.V_0_5.length;
+		this.flags = varint();
+		long seconds = Varint.toSigned(varlong());
+		this.nanos = varint();
+		// The difference between the signing and sending times.
+		varlong();
+		this.seconds = seconds;
+		this.fieldCount = varint();
+		if (this.fieldCount > (this.end - this.cursor) / 3)
+			throw new DecodingException("Insufficient data, field declaration too small.");
+		if (isSigned())
+			this.cursor = skipBlock(this.cursor, varint());
+		if (isCountersigned())
+			this.cursor = skipBlock(this.cursor, varint());
+		this.defStart = this.cursor;
+		this.dataStart = this.cursor;
+		ensureCapacity();
+	}
+
+	private int skipBlock(int pos, int size) throws DecodingException
+	{
+		if (size < 0 || size > this.end - pos)
+			throw new DecodingException("Malformed signature size: " + size);
+		return pos + size;
+	}
+
+	private void ensureCapacity()
+	{
+		if (this.sizes.length >= this.fieldCount)
+			return;
+		int capacity = Math.max(this.fieldCount, this.sizes.length * 2);
+		this.types = new short[capacity];
+		this.encodings = new short[capacity];
+		this.sizes = new int[capacity];
+		this.offsets = new int[capacity];
+	}
+
+	/**
+	 * Reads field declarations up to and including the given field. V4 declarations are a fixed size, so only those up
+	 * to the field are read, but the data of a V5 message can't be found until every declaration has been read.
+	 */
+	private void index(int index) throws DecodingException
+	{
+		if (this.data == null)
+			throw new IllegalStateException("View is not over a message.");
+		if (index >= this.fieldCount)
+			throw new IndexOutOfBoundsException("Field " + index + " of " + this.fieldCount);
+		if (index < this.indexed)
+			return;
+		try
+		{
+			int last = this.version == WireVersion.V4 ? index : this.fieldCount - 1;
+			if (this.version != WireVersion.V4 && this.indexed == 0)
+				this.cursor = this.defStart;
+			for (; this.indexed <= last; this.indexed++)
+			{
+				int i = this.indexed;
+				if (this.version == WireVersion.V4)
+				{
+					int def = this.defStart + i * Communique.getMinFieldDefSize();
+					this.types[i] = shortAt(def);
+					this.encodings[i] = shortAt(def + Short.BYTES);
+					this.sizes[i] = intAt(def + Short.BYTES * 2);
+				} else
+				{
+					this.types[i] = (short) varint();
+					this.encodings[i] = (short) varint();
+					this.sizes[i] = varint();
+				}
+				if (this.sizes[i] < 0)
+					throw new DecodingException("Negative field size, this probably means we have a encoding error.");
+				this.offsets[i] = (int) this.dataSize;
+				this.dataSize += this.sizes[i];
+			}
+			if (this.version != WireVersion.V4)
+				this.dataStart = this.cursor;
+			if (this.dataStart + this.dataSize > this.end)
+				throw new DecodingException("Malformed data, not enough remaining in buffer.");
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e)
+		{
+			throw new DecodingException("Malformed field declaration.", e);
+		}
+	}
+
+	/**
+	 * @return the position of the given field's data, once it's known to be readable as the given class.
+	 */
+	private int typed(int index, Class<?> clazz, int minSize) throws DecodingException
+	{
+		int offset = getOffset(index);
+		Datatype<?> datatype = Datatype.get(this.types[index]);
+		if (!clazz.isAssignableFrom(datatype.getDataClass()))
+			throw new ClassCastException("Cannot cast " + datatype.getDataClass().getCanonicalName() + " to " + clazz.getCanonicalName() + ".");
+		if (this.encodings[index] != Encoding.Uncompressed.getId())
+			throw new IllegalStateException("Field " + index + " is encoded with " + EncodingChain.get(this.encodings[index]) + ", and can't be read from a view.");
+		if (this.sizes[index] < minSize)
+			throw new DecodingException("Field " + index + " is too small for " + clazz.getSimpleName() + ".");
+		return offset;
+	}
+
+	private byte[] bytes(int offset, int size)
+	{
+		byte[] res = new byte[size];
+		ByteBuffer src = this.data.duplicate();
+		src.position(offset);
+		src.get(res);
+		return res;
+	}
+
+	private short shortAt(int pos)
+	{
+		short res = this.data.getShort(pos);
+		return this.swap ? Short.reverseBytes(res) : res;
+	}
+
+	private int intAt(int pos)
+	{
+		int res = this.data.getInt(pos);
+		return this.swap ? Integer.reverseBytes(res) : res;
+	}
+
+	private long longAt(int pos)
+	{
+		long res = this.data.getLong(pos);
+		return this.swap ? Long.reverseBytes(res) : res;
+	}
+
+	private long varlong() throws DecodingException
+	{
+		try
+		{
+			long res = Varint.get(this.data, this.cursor, this.end);
+			this.cursor += Varint.length(this.data, this.cursor, this.end);
+			return res;
+		} catch (BufferUnderflowException e)
+		{
+			throw new DecodingException("Insufficient data, varint runs past the end of the message.");
+		} catch (IllegalArgumentException e)
+		{
+			throw new DecodingException(e.getMessage());
+		}
+	}
+
+	private int varint() throws DecodingException
+	{
+		try
+		{
+			return Varint.toInt(varlong());
+		} catch (IllegalArgumentException e)
+		{
+			throw new DecodingException(e.getMessage());
+		}
+	}
+}
@@ -7,10 +7,13 @@ import java.util.Map;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
 
 import silentcrypt.comm.exception.DecodingException;
 import silentcrypt.comm.exception.EncodingException;
 import silentcrypt.util.AesUtil;
+import silentcrypt.util.DeflateUtil;
+import silentcrypt.util.Lz4Util;
 import silentcrypt.util.RsaUtil;
 import silentcrypt.util.U;
 
@@ -21,10 +24,43 @@ import silentcrypt.util.U;
 public enum Encoding
 {
 	Uncompressed(0, b -> b, b -> b),
-	Deflate(1, b -> b, b -> b),
+	/**
+	 * Deflate compression, using the preset dictionary in {@link MetaSpace#DEFLATE_DICTIONARY} if there is one, and
+	 * {@link DeflateUtil#DEFAULT_DICTIONARY} otherwise. Fields which don't compress are stored with a single byte of
+	 * overhead.
+	 */
+	Deflate(1, (b, ms) -> DeflateUtil.compress(b, dictionary(ms)), (b, ms) -> DeflateUtil.decompress(b, dictionary(ms))),
 	RsaEncrypt(2, (b, ms) -> RsaUtil.encrypt(b, ms.get(MetaSpace.RSA_EXTERN)), (b, ms) -> RsaUtil.decrypt(b, ms.get(MetaSpace.RSA_SELF).getPrivateRsa())),
 	RsaSign(3, (b, ms) -> RsaUtil.encrypt(b, ms.get(MetaSpace.RSA_SELF).getPrivateRsa()), (b, ms) -> RsaUtil.decrypt(b, ms.get(MetaSpace.RSA_EXTERN))),
-	Aes(4, (b, ms) -> AesUtil.encrypt(b, ms.get(MetaSpace.AES_KEY)), (b, ms) -> AesUtil.decrypt(b, ms.get(MetaSpace.AES_KEY)));
+	Aes(4, (b, ms) -> AesUtil.encrypt(ms.get(MetaSpace.AES_KEY), b), (b, ms) -> AesUtil.decrypt(ms.get(MetaSpace.AES_KEY), b)),
+	/**
+	 * AES in counter mode. Unlike {@link #Aes}, large fields are encrypted and decrypted in parallel, and the output is
+	 * only a nonce longer than the input.
+	 */
+	AesCtr(5, (b, ms) -> AesUtil.encryptCtr(ms.get(MetaSpace.AES_KEY), b), (b, ms) -> AesUtil.decryptCtr(ms.get(MetaSpace.AES_KEY), b)),
+	/**
+	 * Like {@link #RsaEncrypt}, but fields are encrypted with an AES session key, and only the session key with RSA.
+	 * Each side does its RSA operation once per session rather than once per field. Sessions are kept in the
+	 * {@link MetaSpace#SESSIONS} cache, or the {@link SessionKeyCache#getDefault() default} one. Every field carries
+	 * its encrypted session key, so fields can be decoded in any order, and by a peer which has forgotten the session.
+	 */
+	Session(6, (b, ms) -> sessions(ms).encode(b, ms.get(MetaSpace.RSA_EXTERN)), (b, ms) -> sessions(ms).decode(b, ms.get(MetaSpace.RSA_SELF))),
+	/**
+	 * Fast LZ4 compression, for fields where {@link #Deflate} costs too much latency. Fields which are small or look
+	 * random are stored with a single byte of overhead, without attempting compression. To compress and then encrypt,
+	 * chain it with an encryption, for example {@code EncodingChain.of(Encoding.Lz4, Encoding.Aes)}.
+	 */
+	Lz4(7, (b, ms) -> Lz4Util.compress(b), (b, ms) -> Lz4Util.decompress(b));
+
+	private static byte[] dictionary(MetaSpace ms)
+	{
+		return ms.has(MetaSpace.DEFLATE_DICTIONARY) ? ms.get(MetaSpace.DEFLATE_DICTIONARY) : DeflateUtil.DEFAULT_DICTIONARY;
+	}
+
+	private static SessionKeyCache sessions(MetaSpace ms)
+	{
+		return ms.has(MetaSpace.SESSIONS) ? ms.get(MetaSpace.SESSIONS) : SessionKeyCache.getDefault();
+	}
 
 	private static BiFunction<ByteBuffer, MetaSpace, ByteBuffer> wrap(Func t)
 	{
@@ -116,4 +152,126 @@ public enum Encoding
 	{
 		return this.id;
 	}
+
+	/**
+	 * @param length
+	 * @return the most bytes {@link #encode(ByteBuffer, ByteBuffer, MetaSpace)} can produce from the given number of
+	 *         bytes, or -1 if this encoding can only produce its own buffers.
+	 */
+	int maxEncodedSize(int length)
+	{
+		switch (this)
+		{
+			case Uncompressed:
+				return length;
+			case Aes:
+				return AesUtil.encryptedSize(length);
+			case AesCtr:
+				return AesUtil.CTR_NONCE_SIZE + length;
+			case Lz4:
+				return Lz4Util.maxCompressedSize(length);
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * @param input
+	 * @return the most bytes {@link #decode(ByteBuffer, ByteBuffer, MetaSpace)} can produce from the given data, or -1
+	 *         if this encoding can only produce its own buffers.
+	 * @throws DecodingException
+	 */
+	int maxDecodedSize(ByteBuffer input) throws DecodingException
+	{
+		switch (this)
+		{
+			case Uncompressed:
+			case Aes:
+				return input.remaining();
+			case AesCtr:
+				return Math.max(0, input.remaining() - AesUtil.CTR_NONCE_SIZE);
+			case Lz4:
+				try
+				{
+					return Lz4Util.decompressedSize(input);
+				} catch (DataFormatException ex)
+				{
+					throw new DecodingException("Error decoding " + name() + " from field.", ex);
+				}
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * Encodes the remaining bytes of the input buffer into the output buffer, advancing both. Only supported where
+	 * {@link #maxEncodedSize(int)} isn't -1.
+	 *
+	 * @param input
+	 * @param output
+	 * @param ms
+	 * @throws EncodingException
+	 */
+	void encode(ByteBuffer input, ByteBuffer output, MetaSpace ms) throws EncodingException
+	{
+		try
+		{
+			switch (this)
+			{
+				case Uncompressed:
+					output.put(input);
+					break;
+				case Aes:
+					AesUtil.encrypt(ms.get(MetaSpace.AES_KEY), input, output);
+					break;
+				case AesCtr:
+					AesUtil.encryptCtr(ms.get(MetaSpace.AES_KEY), input, output);
+					break;
+				case Lz4:
+					Lz4Util.compress(input, output);
+					break;
+				default:
+					throw new UnsupportedOperationException(name() + " can't encode into a given buffer.");
+			}
+		} catch (Exception ex)
+		{
+			throw new EncodingException("Error encoding " + name() + " to field.", ex);
+		}
+	}
+
+	/**
+	 * Decodes the remaining bytes of the input buffer into the output buffer, advancing both. Only supported where
+	 * {@link #maxDecodedSize(ByteBuffer)} isn't -1.
+	 *
+	 * @param input
+	 * @param output
+	 * @param ms
+	 * @throws DecodingException
+	 */
+	void decode(ByteBuffer input, ByteBuffer output, MetaSpace ms) throws DecodingException
+	{
+		try
+		{
+			switch (this)
+			{
+				case Uncompressed:
+					output.put(input);
+					break;
+				case Aes:
+					AesUtil.decrypt(ms.get(MetaSpace.AES_KEY), input, output);
+					break;
+				case AesCtr:
+					AesUtil.decryptCtr(ms.get(MetaSpace.AES_KEY), input, output);
+					break;
+				case Lz4:
+					Lz4Util.decompress(input, output);
+					break;
+				default:
+					throw new UnsupportedOperationException(name() + " can't decode into a given buffer.");
+			}
+		} catch (Exception ex)
+		{
+			throw new DecodingException("Error decoding " + name() + " from field.", ex);
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,249 @@
+package silentcrypt.comm.communique;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import silentcrypt.comm.exception.DecodingException;
+import silentcrypt.comm.exception.EncodingException;
+
+/**
+ * An ordered list of Encodings applied to a single field, such as {@link Encoding#Lz4} followed by
+ * {@link Encoding#Aes}. Fields are encoded by each stage in order, and decoded in reverse.
+ * <p>
+ * A chain of one stage has the same id as its Encoding, so such fields are indistinguishable on the wire from those
+ * written before chains existed. Longer chains set the high bit of the id, and pack up to {@link #MAX_STAGES} Encoding
+ * ids (plus one, so that zero marks an unused slot) into five bits each, the first stage in the lowest bits.
+ * <p>
+ * Intermediate results are written into a pair of buffers kept by each thread, each stage reading from one and writing
+ * into the other, wherever the stage is able to write into a given buffer. Only the final stage produces a new buffer,
+ * since that is the one which the field keeps.
+ *
+ * @author Michael Wells
+ */
+public final class EncodingChain
+{
+	/**
+	 * The most stages a chain may have.
+	 */
+	public static final int MAX_STAGES = 3;
+
+	private static final int	CHAINED		= 0x8000;
+	private static final int	STAGE_BITS	= 5;
+	private static final int	STAGE_MASK	= (1 << STAGE_BITS) - 1;
+
+	/**
+	 * Intermediate results larger than this get a buffer of their own, rather than leaving every thread holding on to
+	 * one that large.
+	 */
+	private static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+	private static final Map<Short, EncodingChain>	chains	= new ConcurrentHashMap<>();
+	private static final ThreadLocal<ByteBuffer[]>	buffers	= ThreadLocal.withInitial(() -> new ByteBuffer[] { ByteBuffer.allocate(2048), ByteBuffer.allocate(2048) });
+
+	/**
+	 * @param stages
+	 *            the encodings to apply, in the order they are applied when encoding.
+	 * @return the chain of the given encodings.
+	 * @throws IllegalArgumentException
+	 *             if there are no stages or more than {@link #MAX_STAGES}.
+	 */
+	public static EncodingChain of(Encoding... stages) throws IllegalArgumentException
+	{
+		if (stages.length < 1 || stages.length > MAX_STAGES)
+			throw new IllegalArgumentException("Encoding chains must have between 1 and " + MAX_STAGES + " stages.");
+		int id = stages[0].getId();
+		if (stages.length > 1)
+		{
+			id = CHAINED;
+			for (int i = 0; i < stages.length; i++)
+			{
+				if (stages[i].getId() >= STAGE_MASK)
+					throw new IllegalArgumentException(stages[i] + " can't be chained.");
+				id |= (stages[i].getId() + 1) << (i * STAGE_BITS);
+			}
+		}
+		return EncodingChain.chains.computeIfAbsent((short) id, k -> new EncodingChain(k, stages.clone()));
+	}
+
+	/**
+	 * @param id
+	 * @return the chain with the given id. Unknown encodings are replaced with {@link Encoding#Uncompressed}, as
+	 *         {@link Encoding#get(short)} does.
+	 */
+	public static EncodingChain get(short id)
+	{
+		EncodingChain res = EncodingChain.chains.get(id);
+		if (res != null)
+			return res;
+		if ((id & CHAINED) == 0)
+			return of(Encoding.get(id));
+
+		Encoding[] stages = new Encoding[MAX_STAGES];
+		int count = 0;
+		for (int i = 0; i < MAX_STAGES; i++)
+		{
+			int stage = id >>> (i * STAGE_BITS) & STAGE_MASK;
+			if (stage != 0)
+				stages[count++] = Encoding.get((short) (stage - 1));
+		}
+		if (count == 0)
+			return of(Encoding.getDefault());
+		return of(Arrays.copyOf(stages, count));
+	}
+
+	/**
+	 * @param id
+	 * @return true if the given id is a single Encoding or a chain of Encodings known by this version of the class.
+	 */
+	public static boolean isKnown(short id)
+	{
+		if ((id & CHAINED) == 0)
+			return Encoding.isKnown(id);
+		for (int i = 0; i < MAX_STAGES; i++)
+		{
+			int stage = id >>> (i * STAGE_BITS) & STAGE_MASK;
+			if (stage != 0 && !Encoding.isKnown((short) (stage - 1)))
+				return false;
+		}
+		return true;
+	}
+
+	private final short			id;
+	private final Encoding[]	stages;
+
+	private EncodingChain(short id, Encoding[] stages)
+	{
+		this.id = id;
+		this.stages = stages;
+	}
+
+	/**
+	 * @return the id written for fields with this chain.
+	 */
+	public short getId()
+	{
+		return this.id;
+	}
+
+	/**
+	 * @return the number of stages in this chain.
+	 */
+	public int length()
+	{
+		return this.stages.length;
+	}
+
+	/**
+	 * @param index
+	 * @return the encoding applied at the given stage, counting from the first applied when encoding.
+	 */
+	public Encoding getStage(int index)
+	{
+		return this.stages[index];
+	}
+
+	/**
+	 * @param encoding
+	 * @return true if this chain consists of only the given encoding.
+	 */
+	public boolean is(Encoding encoding)
+	{
+		return this.stages.length == 1 && this.stages[0] == encoding;
+	}
+
+	/**
+	 * Applies each stage of this chain in order.
+	 *
+	 * @param input
+	 * @param ms
+	 * @return a new buffer containing the encoded data.
+	 * @throws EncodingException
+	 */
+	public ByteBuffer encode(ByteBuffer input, MetaSpace ms) throws EncodingException
+	{
+		ByteBuffer[] buffers = EncodingChain.buffers.get();
+		ByteBuffer cur = input;
+		int next = 0;
+		int last = this.stages.length - 1;
+		for (int i = 0; i < last; i++)
+		{
+			Encoding stage = this.stages[i];
+			int size = stage.maxEncodedSize(cur.remaining());
+			if (size < 0)
+			{
+				cur = stage.encode(cur, ms);
+				continue;
+			}
+			ByteBuffer out = buffer(buffers, next, size);
+			stage.encode(cur, out, ms);
+			out.flip();
+			cur = out;
+			next ^= 1;
+		}
+		return detach(input, cur, this.stages[last].encode(cur, ms));
+	}
+
+	/**
+	 * Reverses each stage of this chain, from the last to the first.
+	 *
+	 * @param input
+	 * @param ms
+	 * @return a new buffer containing the decoded data.
+	 * @throws DecodingException
+	 */
+	public ByteBuffer decode(ByteBuffer input, MetaSpace ms) throws DecodingException
+	{
+		ByteBuffer[] buffers = EncodingChain.buffers.get();
+		ByteBuffer cur = input;
+		int next = 0;
+		for (int i = this.stages.length - 1; i > 0; i--)
+		{
+			Encoding stage = this.stages[i];
+			int size = stage.maxDecodedSize(cur);
+			if (size < 0)
+			{
+				cur = stage.decode(cur, ms);
+				continue;
+			}
+			ByteBuffer out = buffer(buffers, next, size);
+			stage.decode(cur, out, ms);
+			out.flip();
+			cur = out;
+			next ^= 1;
+		}
+		return detach(input, cur, this.stages[0].decode(cur, ms));
+	}
+
+	private static ByteBuffer buffer(ByteBuffer[] buffers, int index, int size)
+	{
+		if (size > MAX_POOLED_SIZE)
+			return ByteBuffer.allocate(size);
+		if (buffers[index].capacity() < size)
+			buffers[index] = ByteBuffer.allocate(Math.min(MAX_POOLED_SIZE, size * 2));
+		ByteBuffer res = buffers[index];
+		res.clear();
+		return res;
+	}
+
+	/**
+	 * Copies the result out of the intermediate buffer if the last stage passed its input straight through, since the
+	 * intermediate buffer may be reused by this thread, or be larger than its contents.
+	 */
+	private static ByteBuffer detach(ByteBuffer input, ByteBuffer intermediate, ByteBuffer result)
+	{
+		if (result != intermediate || intermediate == input)
+			return result;
+		ByteBuffer res = ByteBuffer.allocate(result.remaining()).put(result);
+		res.flip();
+		return res;
+	}
+
+	@Override
+	public String toString()
+	{
+		return Arrays.stream(this.stages).map(Encoding::name).collect(Collectors.joining(">"));
+	}
+}
@@ -0,0 +1,328 @@
+package silentcrypt.comm.communique;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import silentcrypt.comm.exception.DecodingException;
+import silentcrypt.util.Varint;
+
+/**
+ * Wraps serialized Communiques for transports which would rather not find message boundaries by parsing each message.
+ * A frame is a {@link #HEADER_SIZE} byte header (a magic number, the kind of frame, the length of the payload, a CRC32
+ * of the payload, and a CRC32 of the header fields before it) followed by the payload itself, so a reader knows where
+ * the frame ends as soon as it has the header, and can drop a corrupt frame without scanning through it for the next
+ * message. The header is checked on its own, before its length is trusted, so that a corrupt kind or length can't make
+ * a reader skip or wait for data which isn't part of the frame.
+ * <p>
+ * A batch frame packs many Communiques behind a single header, each preceded by its length as a varint, so that a burst
+ * of small messages goes out in one write and as few packets as possible.
+ * <p>
+ * {@link CommuniqueDecoder} reads frames and unframed messages alike.
+ *
+ * @author Michael Wells
+ */
+public final class Frame
+{
+	/**
+	 * The size of the header which precedes every frame's payload.
+	 */
+	public static final int HEADER_SIZE = 17;
+
+	/**
+	 * A frame holding a single Communique, in any {@link WireVersion}.
+	 */
+	static final byte	KIND_COMMUNIQUE		= 1;
+	/**
+	 * A frame holding any number of Communiques, each preceded by its length.
+	 */
+	static final byte	KIND_BATCH			= 2;
+
+	static final byte[]	MAGIC				= { (byte) 0xAE, 'S', 'F', 0x01 };
+	static final int	KIND_OFFSET			= MAGIC.length;
+	static final int	LENGTH_OFFSET		= KIND_OFFSET + 1;
+	static final int	CRC_OFFSET			= LENGTH_OFFSET + Integer.BYTES;
+	static final int	HEADER_CRC_OFFSET	= CRC_OFFSET + Integer.BYTES;
+
+	private static final ThreadLocal<CRC32> crc = ThreadLocal.withInitial(CRC32::new);
+
+	private Frame()
+	{
+	}
+
+	/**
+	 * @param c
+	 * @param version
+	 * @return the given Communique serialized in the given version and framed. The buffers should be written in order,
+	 *         as with {@link Communique#buffers(WireVersion)}.
+	 */
+	public static ByteBuffer[] buffers(Communique c, WireVersion version)
+	{
+		return buffers(c.buffers(version));
+	}
+
+	/**
+	 * @param data
+	 *            a serialized Communique, as returned by {@link Communique#buffers(WireVersion)}.
+	 * @return the given Communique framed. The buffers should be written in order.
+	 */
+	public static ByteBuffer[] buffers(ByteBuffer[] data)
+	{
+		return frame(KIND_COMMUNIQUE, data);
+	}
+
+	/**
+	 * @param batch
+	 * @param version
+	 * @return the given Communiques serialized in the given version and packed into a single frame. The buffers should
+	 *         be written in order.
+	 */
+	public static ByteBuffer[] batch(List<Communique> batch, WireVersion version)
+	{
+		List<ByteBuffer[]> messages = new ArrayList<>(batch.size());
+		for (Communique c : batch)
+			messages.add(c.buffers(version));
+		return batch(messages);
+	}
+
+	/**
+	 * @param batch
+	 *            serialized Communiques, as returned by {@link Communique#buffers(WireVersion)}.
+	 * @return the given Communiques packed into a single frame. The buffers should be written in order.
+	 */
+	public static ByteBuffer[] batch(List<ByteBuffer[]> batch)
+	{
+		List<ByteBuffer> payload = new ArrayList<>(batch.size() * 3);
+		// One buffer holds every length prefix, each written out as a slice of it.
+		ByteBuffer lengths = ByteBuffer.allocate(batch.size() * Varint.MAX_SIZE);
+		for (ByteBuffer[] data : batch)
+		{
+			int start = lengths.position();
+			Varint.put(lengths, remaining(data));
+			ByteBuffer length = lengths.duplicate();
+			length.position(start);
+			length.limit(lengths.position());
+			payload.add(length.slice());
+			for (ByteBuffer b : data)
+				payload.add(b);
+		}
+		return frame(KIND_BATCH, payload.toArray(new ByteBuffer[payload.size()]));
+	}
+
+	/**
+	 * @param data
+	 * @return the total number of bytes remaining in the given buffers.
+	 */
+	public static long remaining(ByteBuffer... data)
+	{
+		long res = 0;
+		for (ByteBuffer b : data)
+			res += b.remaining();
+		return res;
+	}
+
+	/**
+	 * Serializes the given Communique in the given version and writes it, framed, to the given OutputStream. The whole
+	 * frame goes out in a single write, so that frames written to a shared stream from several threads can't
+	 * interleave.
+	 *
+	 * @param c
+	 * @param version
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write(Communique c, WireVersion version, OutputStream out) throws IOException
+	{
+		ByteBuffer[] data = buffers(c, version);
+		byte[] whole = new byte[(int) remaining(data)];
+		int pos = 0;
+		for (ByteBuffer b : data)
+		{
+			int n = b.remaining();
+			b.duplicate().get(whole, pos, n);
+			pos += n;
+		}
+		out.write(whole);
+	}
+
+	/**
+	 * Reads the Communiques held by a frame. Frames handed out by {@link CommuniqueDecoder#setFrameHandler(Consumer)}
+	 * have already been checked, so this may be called from any thread.
+	 *
+	 * @param frame
+	 *            a whole frame, header included.
+	 * @param out
+	 * @throws DecodingException
+	 *             if the frame is not of a known kind or its contents are malformed.
+	 */
+	public static void unpack(ByteBuffer frame, Consumer<Communique> out) throws DecodingException
+	{
+		ByteBuffer payload = payload(frame);
+		switch (kind(frame))
+		{
+			case KIND_COMMUNIQUE:
+				out.accept(new Communique(payload));
+				break;
+			case KIND_BATCH:
+				unpackBatch(payload, out);
+				break;
+			default:
+				throw new DecodingException("Unknown frame kind " + kind(frame));
+		}
+	}
+
+	private static void unpackBatch(ByteBuffer payload, Consumer<Communique> out) throws DecodingException
+	{
+		while (payload.hasRemaining())
+		{
+			int length;
+			try
+			{
+				length = Varint.getInt(payload);
+			} catch (IllegalArgumentException | BufferUnderflowException e)
+			{
+				throw new DecodingException("Malformed batch length.", e);
+			}
+			if (length > payload.remaining())
+				throw new DecodingException("Batched communique overruns its frame by " + (length - payload.remaining()) + " bytes.");
+			ByteBuffer data = payload.duplicate();
+			data.limit(data.position() + length);
+			payload.position(data.limit());
+			out.accept(new Communique(data.slice()));
+		}
+	}
+
+	/**
+	 * Reads the Communiques held by the frame between the given positions of a buffer as views, without copying them.
+	 * Each view is only valid until the consumer returns. The buffer's position and limit may be changed.
+	 *
+	 * @throws DecodingException
+	 *             if the frame is not of a known kind or its contents are malformed.
+	 */
+	static void unpack(ByteBuffer data, int start, int end, CommuniqueView view, Consumer<CommuniqueView> out) throws DecodingException
+	{
+		byte kind = data.get(start + KIND_OFFSET);
+		int pos = start + HEADER_SIZE;
+		switch (kind)
+		{
+			case KIND_COMMUNIQUE:
+				out.accept(view.wrap(data, pos, end));
+				break;
+			case KIND_BATCH:
+				data.limit(end);
+				data.position(pos);
+				while (data.hasRemaining())
+				{
+					int length;
+					try
+					{
+						length = Varint.getInt(data);
+					} catch (IllegalArgumentException | BufferUnderflowException e)
+					{
+						throw new DecodingException("Malformed batch length.", e);
+					}
+					if (length > data.remaining())
+						throw new DecodingException("Batched communique overruns its frame by " + (length - data.remaining()) + " bytes.");
+					pos = data.position() + length;
+					out.accept(view.wrap(data, data.position(), pos));
+					data.limit(end);
+					data.position(pos);
+				}
+				break;
+			default:
+				throw new DecodingException("Unknown frame kind " + kind);
+		}
+	}
+
+	static boolean isKnownKind(byte kind)
+	{
+		return kind == KIND_COMMUNIQUE || kind == KIND_BATCH;
+	}
+
+	static byte kind(ByteBuffer frame)
+	{
+		return frame.get(frame.position() + KIND_OFFSET);
+	}
+
+	/**
+	 * @return true if the header and payload of the given frame both match their checksums.
+	 */
+	static boolean verify(ByteBuffer frame)
+	{
+		return verifyHeader(frame, frame.position()) && frame.getInt(frame.position() + CRC_OFFSET) == checksum(payload(frame));
+	}
+
+	/**
+	 * @return true if the kind, length and payload checksum of the frame starting at the given position match the
+	 *         header's own checksum.
+	 */
+	static boolean verifyHeader(ByteBuffer data, int start)
+	{
+		ByteBuffer fields = data.duplicate();
+		fields.limit(start + HEADER_CRC_OFFSET);
+		fields.position(start + KIND_OFFSET);
+		return data.getInt(start + HEADER_CRC_OFFSET) == checksum(fields);
+	}
+
+	/**
+	 * @return true if the payload of the frame between the given positions of a heap buffer matches the checksum in its
+	 *         header.
+	 */
+	static boolean verify(ByteBuffer data, int start, int end)
+	{
+		CRC32 crc = Frame.crc.get();
+		crc.reset();
+		crc.update(data.array(), data.arrayOffset() + start + HEADER_SIZE, end - start - HEADER_SIZE);
+		return data.getInt(start + CRC_OFFSET) == (int) crc.getValue() && verifyHeader(data, start);
+	}
+
+	private static ByteBuffer payload(ByteBuffer frame)
+	{
+		ByteBuffer res = frame.duplicate();
+		res.position(frame.position() + HEADER_SIZE);
+		return res.slice();
+	}
+
+	private static ByteBuffer[] frame(byte kind, ByteBuffer[] payload)
+	{
+		ByteBuffer[] res = new ByteBuffer[payload.length + 1];
+		res[0] = header(kind, payload);
+		System.arraycopy(payload, 0, res, 1, payload.length);
+		return res;
+	}
+
+	private static ByteBuffer header(byte kind, ByteBuffer[] payload)
+	{
+		CRC32 crc = Frame.crc.get();
+		crc.reset();
+		long length = remaining(payload);
+		for (ByteBuffer b : payload)
+			crc.update(b.duplicate());
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Frame payload too large: " + length);
+
+		ByteBuffer res = ByteBuffer.allocate(HEADER_SIZE);
+		res.put(MAGIC);
+		res.put(kind);
+		res.putInt((int) length);
+		res.putInt((int) crc.getValue());
+		crc.reset();
+		crc.update(res.array(), KIND_OFFSET, HEADER_CRC_OFFSET - KIND_OFFSET);
+		res.putInt((int) crc.getValue());
+		res.flip();
+		return res;
+	}
+
+	private static int checksum(ByteBuffer payload)
+	{
+		CRC32 crc = Frame.crc.get();
+		crc.reset();
+		crc.update(payload.duplicate());
+		return (int) crc.getValue();
+	}
+}
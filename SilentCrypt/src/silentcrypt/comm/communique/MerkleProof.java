@@ -0,0 +1,141 @@
+package silentcrypt.comm.communique;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import silentcrypt.comm.exception.DecodingException;
+
+/**
+ * The signature block of a batch signed Communique: the message's position in the batch, the sibling hashes needed to
+ * rebuild the batch's Merkle root from the message's own checksum, and the signature over that root.
+ * <p>
+ * Serialized as [int index][byte depth][depth sibling hashes][root signature].
+ *
+ * @author Michael Wells
+ */
+class MerkleProof
+{
+	static final int HASH_SIZE = 32;
+
+	private static final byte	LEAF	= 0;
+	private static final byte	NODE	= 1;
+
+	private final int		index;
+	private final byte[][]	siblings;
+	private final byte[]	rootSig;
+
+	private MerkleProof(int index, byte[][] siblings, byte[] rootSig)
+	{
+		this.index = index;
+		this.siblings = siblings;
+		this.rootSig = rootSig;
+	}
+
+	/**
+	 * @param checksum
+	 * @return the leaf hash of a message with the given checksum.
+	 */
+	static byte[] leaf(byte[] checksum)
+	{
+		return hash(LEAF, checksum, null);
+	}
+
+	/**
+	 * Builds every level of the tree over the given leaves, from the leaves up to the root. A node without a sibling is
+	 * paired with itself.
+	 *
+	 * @param leaves
+	 * @return the levels of the tree; the last level holds only the root.
+	 */
+	static List<byte[][]> build(byte[][] leaves)
+	{
+		List<byte[][]> levels = new ArrayList<>();
+		byte[][] level = leaves;
+		levels.add(level);
+		while (level.length > 1)
+		{
+			byte[][] next = new byte[(level.length + 1) / 2][];
+			for (int i = 0; i < next.length; i++)
+				next[i] = hash(NODE, level[2 * i], level[Math.min(2 * i + 1, level.length - 1)]);
+			levels.add(next);
+			level = next;
+		}
+		return levels;
+	}
+
+	/**
+	 * @param levels
+	 *            a tree from {@link #build(byte[][])}
+	 * @param index
+	 * @param rootSig
+	 * @return the serialized proof for the leaf at the given index.
+	 */
+	static byte[] encode(List<byte[][]> levels, int index, byte[] rootSig)
+	{
+		int depth = levels.size() - 1;
+		ByteBuffer res = ByteBuffer.allocate(Integer.BYTES + 1 + depth * HASH_SIZE + rootSig.length);
+		res.putInt(index);
+		res.put((byte) depth);
+		for (int d = 0, i = index; d < depth; d++, i /= 2)
+		{
+			byte[][] level = levels.get(d);
+			res.put(level[Math.min(i ^ 1, level.length - 1)]);
+		}
+		res.put(rootSig);
+		return res.array();
+	}
+
+	static MerkleProof decode(byte[] sig) throws DecodingException
+	{
+		ByteBuffer data = ByteBuffer.wrap(sig);
+		if (data.remaining() < Integer.BYTES + 1)
+			throw new DecodingException("Batch proof too small.");
+		int index = data.getInt();
+		int depth = data.get() & 0xFF;
+		if (index < 0 || depth > 31 || data.remaining() < depth * HASH_SIZE)
+			throw new DecodingException("Malformed batch proof.");
+		byte[][] siblings = new byte[depth][HASH_SIZE];
+		for (byte[] s : siblings)
+			data.get(s);
+		byte[] rootSig = new byte[data.remaining()];
+		data.get(rootSig);
+		return new MerkleProof(index, siblings, rootSig);
+	}
+
+	/**
+	 * @param checksum
+	 * @return the root of the tree this proof places the given checksum in.
+	 */
+	byte[] root(byte[] checksum)
+	{
+		byte[] node = leaf(checksum);
+		int i = this.index;
+		for (byte[] sibling : this.siblings)
+		{
+			node = (i & 1) == 0 ? hash(NODE, node, sibling) : hash(NODE, sibling, node);
+			i >>>= 1;
+		}
+		return node;
+	}
+
+	byte[] getRootSignature()
+	{
+		return this.rootSig;
+	}
+
+	private static byte[] hash(byte prefix, byte[] a, byte[] b)
+	{
+		// Domain separation keeps a leaf from ever being mistaken for an inner node.
+		SHA256Digest digest = new SHA256Digest();
+		digest.update(prefix);
+		digest.update(a, 0, a.length);
+		if (b != null)
+			digest.update(b, 0, b.length);
+		byte[] res = new byte[HASH_SIZE];
+		digest.doFinal(res, 0);
+		return res;
+	}
+}
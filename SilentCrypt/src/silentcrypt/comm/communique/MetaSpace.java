@@ -3,6 +3,7 @@ package silentcrypt.comm.communique;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
 
 import silentcrypt.util.RsaKeyPair;
@@ -20,9 +21,12 @@ public class MetaSpace
 		}
 	}
 
-	public static final MetaKey<RsaKeyPair>			RSA_SELF	= new MetaKey<>("rsa_key_self");
-	public static final MetaKey<RSAKeyParameters>	RSA_EXTERN	= new MetaKey<>("rsa_key_extern");
-	public static final MetaKey<byte[]>				AES_KEY		= new MetaKey<>("aes_key_data");
+	public static final MetaKey<RsaKeyPair>					RSA_SELF			= new MetaKey<>("rsa_key_self");
+	public static final MetaKey<RSAKeyParameters>			RSA_EXTERN			= new MetaKey<>("rsa_key_extern");
+	public static final MetaKey<byte[]>						AES_KEY				= new MetaKey<>("aes_key_data");
+	public static final MetaKey<AsymmetricCipherKeyPair>	SIGN_SELF			= new MetaKey<>("sign_key_self");
+	public static final MetaKey<SessionKeyCache>			SESSIONS			= new MetaKey<>("session_keys");
+	public static final MetaKey<byte[]>						DEFLATE_DICTIONARY	= new MetaKey<>("deflate_dictionary");
 	// as many as needed, shouldn't be too many
 
 	private Map<MetaKey<?>, Object> data;
@@ -39,6 +43,15 @@ public class MetaSpace
 		return U.quietCast(this.data.get(key));
 	}
 
+	/**
+	 * @param key
+	 * @return true iff a value has been set for the given key.
+	 */
+	public boolean has(MetaKey<?> key)
+	{
+		return this.data.containsKey(key);
+	}
+
 	public <T> MetaSpace set(MetaKey<T> key, T value)
 	{
 		this.data.put(key, value);
@@ -0,0 +1,193 @@
+package silentcrypt.comm.communique;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+
+import silentcrypt.comm.exception.DecodingException;
+import silentcrypt.util.AesUtil;
+import silentcrypt.util.RsaKeyPair;
+import silentcrypt.util.RsaUtil;
+
+/**
+ * Holds the symmetric keys used by {@link Encoding#Session}. Each peer is sent fields encrypted with a random AES key,
+ * which is itself encrypted with the peer's public RSA key. The RSA encrypted key is made once per session and sent
+ * with every field, so the sender never needs to know whether the peer has seen it before; the receiver remembers what
+ * each one decrypts to, so only the first field of a session costs it an RSA operation. A field which is lost,
+ * rejected, or arrives after the receiver has forgotten the session (or restarted) is therefore never a problem for
+ * the fields after it. Sessions expire after a fixed lifetime, after which the next field sent starts a new one.
+ * <p>
+ * Fields are [byte 0][int length][RSA encrypted session key][AES-CTR encrypted data].
+ *
+ * @author Michael Wells
+ */
+public class SessionKeyCache
+{
+	private static final byte	WRAPPED			= 0;
+	private static final int	DEFAULT_SIZE	= 1024;
+
+	private static final Duration			DEFAULT_LIFETIME	= Duration.ofMinutes(10);
+	private static final SessionKeyCache	shared				= new SessionKeyCache(DEFAULT_SIZE, DEFAULT_LIFETIME);
+
+	/**
+	 * @return the cache used by messages whose MetaSpace doesn't name one.
+	 */
+	public static SessionKeyCache getDefault()
+	{
+		return SessionKeyCache.shared;
+	}
+
+	private final long						lifetimeNanos;
+	private final Map<BigInteger, Session>	outgoing;
+	private final Map<ByteBuffer, byte[]>	incoming;
+
+	/**
+	 * @param size
+	 *            the number of sessions to remember in each direction.
+	 * @param lifetime
+	 *            how long a session started by this cache is used for.
+	 */
+	public SessionKeyCache(int size, Duration lifetime)
+	{
+		this.lifetimeNanos = lifetime.toNanos();
+		this.outgoing = lru(size);
+		this.incoming = lru(size);
+	}
+
+	/**
+	 * Encrypts the given data for the given peer, starting a new session if there isn't a current one.
+	 *
+	 * @param data
+	 * @param peer
+	 * @return the encoded field.
+	 * @throws InvalidCipherTextException
+	 */
+	ByteBuffer encode(ByteBuffer data, RSAKeyParameters peer) throws InvalidCipherTextException
+	{
+		Session session;
+		synchronized (this)
+		{
+			// Public keys don't implement equals, but their moduli are unique.
+			session = this.outgoing.get(peer.getModulus());
+		}
+		if (session == null || session.isExpired(this.lifetimeNanos))
+		{
+			// Wrapping the key is the expensive part, so it's done outside the lock. Should two threads race here, the
+			// peer can read either session's fields.
+			session = new Session(peer);
+			synchronized (this)
+			{
+				this.outgoing.put(peer.getModulus(), session);
+			}
+		}
+
+		ByteBuffer encrypted = AesUtil.encryptCtr(session.key, data);
+		ByteBuffer res = ByteBuffer.allocate(1 + Integer.BYTES + session.wrapped.length + encrypted.remaining());
+		res.put(WRAPPED).putInt(session.wrapped.length).put(session.wrapped);
+		res.put(encrypted);
+		res.flip();
+		return res;
+	}
+
+	/**
+	 * Decrypts a field encoded by {@link #encode(ByteBuffer, RSAKeyParameters)}, remembering its session key so that
+	 * later fields of the same session don't need RSA.
+	 *
+	 * @param data
+	 * @param self
+	 *            the key pair whose public half the field was encoded for.
+	 * @return the decoded data.
+	 * @throws InvalidCipherTextException
+	 * @throws DecodingException
+	 *             if the field is malformed.
+	 */
+	ByteBuffer decode(ByteBuffer data, RsaKeyPair self) throws InvalidCipherTextException, DecodingException
+	{
+		byte kind = data.get();
+		if (kind != WRAPPED)
+			throw new DecodingException("Unknown session field kind: " + kind);
+		int length = data.getInt();
+		if (length < 0 || length > data.remaining())
+			throw new DecodingException("Malformed session key length: " + length);
+		byte[] wrapped = new byte[length];
+		data.get(wrapped);
+
+		// The key is a function of the wrapped bytes alone, so a peer can't replace anyone else's session.
+		ByteBuffer id = ByteBuffer.wrap(wrapped);
+		byte[] key;
+		synchronized (this)
+		{
+			key = this.incoming.get(id);
+		}
+		if (key == null)
+		{
+			key = RsaUtil.decrypt(wrapped, self.getPrivateRsa());
+			synchronized (this)
+			{
+				this.incoming.put(id, key);
+			}
+		}
+		return AesUtil.decryptCtr(key, data);
+	}
+
+	/**
+	 * Forgets every session, so that the next field sent to each peer starts a new one.
+	 */
+	public synchronized void clear()
+	{
+		this.outgoing.clear();
+		this.incoming.clear();
+	}
+
+	/**
+	 * @return the number of peers with a current outgoing session.
+	 */
+	public synchronized int getOutgoingCount()
+	{
+		return this.outgoing.size();
+	}
+
+	/**
+	 * @return the number of sessions started by peers whose keys are remembered.
+	 */
+	public synchronized int getIncomingCount()
+	{
+		return this.incoming.size();
+	}
+
+	private static <K, V> Map<K, V> lru(int capacity)
+	{
+		return new LinkedHashMap<K, V>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	private static final class Session
+	{
+		final byte[]	key		= AesUtil.randomKey();
+		final byte[]	wrapped;
+		final long		created	= System.nanoTime();
+
+		Session(RSAKeyParameters peer) throws InvalidCipherTextException
+		{
+			this.wrapped = RsaUtil.encrypt(this.key, peer);
+		}
+
+		boolean isExpired(long lifetimeNanos)
+		{
+			return System.nanoTime() - this.created > lifetimeNanos;
+		}
+	}
+}
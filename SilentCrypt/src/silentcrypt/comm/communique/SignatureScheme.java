@@ -0,0 +1,235 @@
+package silentcrypt.comm.communique;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+
+import silentcrypt.util.EcdsaUtil;
+import silentcrypt.util.RsaUtil;
+import silentcrypt.util.VerificationCache;
+
+/**
+ * The ways in which a Communique may be signed. The scheme used is recorded in the header of each message, so messages
+ * signed with different schemes can be mixed freely on one connection.
+ *
+ * @author Michael Wells
+ */
+public enum SignatureScheme
+{
+	/**
+	 * A CRC32 checksum, encrypted with the private key in {@link MetaSpace#RSA_SELF}. This is the original scheme, and
+	 * is understood by every version of SilentCrypt.
+	 */
+	Rsa(0)
+	{
+		@Override
+		Summary summary()
+		{
+			CRC32 crc = new CRC32();
+			return new Summary()
+			{
+				@Override
+				public void update(ByteBuffer data)
+				{
+					crc.update(data);
+				}
+
+				@Override
+				public byte[] finish()
+				{
+					return ByteBuffer.allocate(Long.BYTES).putLong(crc.getValue()).array();
+				}
+			};
+		}
+
+		@Override
+		byte[] sign(byte[] content, MetaSpace ms) throws IllegalStateException
+		{
+			try
+			{
+				return RsaUtil.encrypt(content, ms.get(MetaSpace.RSA_SELF).getPrivateRsa());
+			} catch (InvalidCipherTextException e)
+			{
+				throw new IllegalStateException("Could not sign Communique.", e);
+			}
+		}
+
+		@Override
+		boolean verify(byte[] content, byte[] sig, AsymmetricKeyParameter key)
+		{
+			if (!(key instanceof RSAKeyParameters))
+				return false;
+			try
+			{
+				return Arrays.equals(content, RsaUtil.decrypt(sig, (RSAKeyParameters) key));
+			} catch (InvalidCipherTextException | RuntimeException e)
+			{
+				return false;
+			}
+		}
+	},
+	/**
+	 * An ECDSA P-256 signature over a SHA-256 hash, made with the key pair in {@link MetaSpace#SIGN_SELF}.
+	 */
+	EcdsaP256(1)
+	{
+		@Override
+		Summary summary()
+		{
+			return sha256();
+		}
+
+		@Override
+		byte[] sign(byte[] content, MetaSpace ms) throws IllegalStateException
+		{
+			return EcdsaUtil.sign(content, (ECPrivateKeyParameters) ms.get(MetaSpace.SIGN_SELF).getPrivate());
+		}
+
+		@Override
+		boolean verify(byte[] content, byte[] sig, AsymmetricKeyParameter key)
+		{
+			if (!(key instanceof ECPublicKeyParameters))
+				return false;
+			return EcdsaUtil.verify(content, sig, (ECPublicKeyParameters) key);
+		}
+	};
+
+	/**
+	 * Accumulates the data covered by a signature.
+	 */
+	interface Summary
+	{
+		/**
+		 * Consumes the remaining bytes of the given buffer.
+		 *
+		 * @param data
+		 */
+		void update(ByteBuffer data);
+
+		/**
+		 * @return the summary of everything consumed so far.
+		 */
+		byte[] finish();
+	}
+
+	/**
+	 * @return a new summary which produces a SHA-256 hash.
+	 */
+	static Summary sha256()
+	{
+		SHA256Digest digest = new SHA256Digest();
+		return new Summary()
+		{
+			@Override
+			public void update(ByteBuffer data)
+			{
+				if (data.hasArray())
+				{
+					digest.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+					data.position(data.limit());
+					return;
+				}
+				byte[] chunk = new byte[Math.min(data.remaining(), 4096)];
+				while (data.hasRemaining())
+				{
+					int len = Math.min(chunk.length, data.remaining());
+					data.get(chunk, 0, len);
+					digest.update(chunk, 0, len);
+				}
+			}
+
+			@Override
+			public byte[] finish()
+			{
+				byte[] res = new byte[digest.getDigestSize()];
+				digest.doFinal(res, 0);
+				return res;
+			}
+		};
+	}
+
+	private static final Map<Integer, SignatureScheme> reverse;
+
+	static
+	{
+		reverse = Collections.unmodifiableMap(Arrays.stream(SignatureScheme.values()).collect(Collectors.toMap(s -> s.id, s -> s)));
+	}
+
+	/**
+	 * @param id
+	 * @return the scheme with the given ID, or null if there is no such scheme.
+	 */
+	public static SignatureScheme get(int id)
+	{
+		return SignatureScheme.reverse.get(id);
+	}
+
+	/**
+	 * @param ms
+	 * @return the scheme a message with the given MetaSpace will be signed with by default; ECDSA if a signing key is
+	 *         available, and RSA otherwise.
+	 */
+	public static SignatureScheme getDefault(MetaSpace ms)
+	{
+		return ms.has(MetaSpace.SIGN_SELF) ? EcdsaP256 : Rsa;
+	}
+
+	private int id;
+
+	private SignatureScheme(int id)
+	{
+		this.id = id;
+	}
+
+	public int getId()
+	{
+		return this.id;
+	}
+
+	/**
+	 * @return a new, empty summary for this scheme.
+	 */
+	abstract Summary summary();
+
+	/**
+	 * @param content
+	 * @param ms
+	 * @return a signature over the given content using the appropriate key from the given MetaSpace.
+	 * @throws IllegalStateException
+	 *             if the MetaSpace is missing the key or the content could not be signed.
+	 */
+	abstract byte[] sign(byte[] content, MetaSpace ms) throws IllegalStateException;
+
+	/**
+	 * @param content
+	 * @param sig
+	 * @param key
+	 * @return true iff the signature was created over the given content using the complement of the given key. Keys of
+	 *         the wrong type never validate.
+	 */
+	abstract boolean verify(byte[] content, byte[] sig, AsymmetricKeyParameter key);
+
+	/**
+	 * Identical to {@link #verify(byte[], byte[], AsymmetricKeyParameter)}, except that successful verifications are
+	 * remembered in the shared {@link VerificationCache}.
+	 *
+	 * @param content
+	 * @param sig
+	 * @param key
+	 * @return true iff the signature was created over the given content using the complement of the given key.
+	 */
+	boolean verifyCached(byte[] content, byte[] sig, AsymmetricKeyParameter key)
+	{
+		return VerificationCache.get().verify(key, content, sig, () -> verify(content, sig, key));
+	}
+}
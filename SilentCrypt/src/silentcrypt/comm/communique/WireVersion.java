@@ -0,0 +1,85 @@
+package silentcrypt.comm.communique;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The formats a Communique can be serialized in. Every version can always be read; which one is written to a
+ * connection is agreed when the connection opens, and is {@link #V4} until then.
+ *
+ * @author Michael Wells
+ */
+public enum WireVersion
+{
+	/**
+	 * The original format: a UTF-16 version string, both timestamps as a long and an int, and eight bytes (short
+	 * datatype, short encoding, int size) per field declaration.
+	 */
+	V4(4, Communique.V_0_3),
+	/**
+	 * The compact format: a four byte magic number, and varints for the flags, field count, block sizes, and each part
+	 * of each field declaration. The signing time is written as varint seconds and nanoseconds, and the sent time as the
+	 * difference from it in nanoseconds.
+	 */
+	V5(5, Communique.V_0_5);
+
+	private final int		number;
+	private final byte[]	magic;
+
+	private WireVersion(int number, byte[] magic)
+	{
+		this.number = number;
+		this.magic = magic;
+	}
+
+	/**
+	 * @param number
+	 * @return the version with the given number, or null if it isn't known.
+	 */
+	public static WireVersion get(int number)
+	{
+		for (WireVersion v : values())
+			if (v.number == number)
+				return v;
+		return null;
+	}
+
+	/**
+	 * @return the newest version this class can write.
+	 */
+	public static WireVersion getLatest()
+	{
+		return V5;
+	}
+
+	/**
+	 * @return the number identifying this version during negotiation.
+	 */
+	public int getNumber()
+	{
+		return this.number;
+	}
+
+	/**
+	 * @return the magic number which begins messages of this version.
+	 */
+	public byte[] getMagic()
+	{
+		return Arrays.copyOf(this.magic, this.magic.length);
+	}
+
+	/**
+	 * @param data
+	 * @return true if the remaining bytes of the given buffer begin with this version's magic number. The buffer's
+	 *         position is not changed.
+	 */
+	public boolean matches(ByteBuffer data)
+	{
+		if (data.remaining() < this.magic.length)
+			return false;
+		for (int i = 0; i < this.magic.length; i++)
+			if (data.get(data.position() + i) != this.magic[i])
+				return false;
+		return true;
+	}
+}
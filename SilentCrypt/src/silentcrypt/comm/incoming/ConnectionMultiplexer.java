@@ -11,6 +11,8 @@ import java.util.function.Supplier;
 
 import silentcrypt.comm.communique.Communique;
 import silentcrypt.comm.server.Listenable;
+import silentcrypt.util.Threads;
+import silentcrypt.util.U;
 
 /**
  * A class for managing a set of listeners which receive new Communiques and distributing messages to them.
@@ -22,6 +24,8 @@ public class ConnectionMultiplexer implements Listenable<ConnectionMultiplexer>
 {
 	private List<CommuniqueListener>						handlers;
 	private BiConsumer<Communique, Consumer<Communique>>	rejectionHandler	= null;
+	private DispatchExecutor								dispatcher			= null;
+	private boolean											ordered				= true;
 
 	public ConnectionMultiplexer()
 	{
@@ -44,25 +48,11 @@ public class ConnectionMultiplexer implements Listenable<ConnectionMultiplexer>
 	public ConnectionMultiplexer(Supplier<Communique> in, Consumer<Communique> output, Supplier<List<CommuniqueListener>> handlerSrc)
 	{
 		this(handlerSrc);
-		Thread t = new Thread(() -> {
+		Threads.start("Connection Multiplexer", true, () -> {
 			Communique c;
 			while ((c = in.get()) != null)
-			{
-				for (CommuniqueListener e : this.handlers)
-				{
-					if (e != null && c != null)
-					{
-						if (e.test(c))
-						{
-							Communique d = c;
-							new Thread(() -> e.accept(d, output), "Communique Handoff").start();
-						}
-					}
-				}
-			}
-		}, "Connection Multiplexer");
-		t.setDaemon(true);
-		t.start();
+				distribute(c, output);
+		});
 	}
 
 	public ConnectionMultiplexer(Supplier<List<CommuniqueListener>> handlerSrc)
@@ -83,26 +73,120 @@ public class ConnectionMultiplexer implements Listenable<ConnectionMultiplexer>
 	}
 
 	/**
-	 * Distributes the given Communique and reply in parallel among the registered handlers.
+	 * Sets the executor used to hand Communiques off to listeners. If none is set, the shared
+	 * {@link DispatchExecutor#getDefault()} executor is used.
+	 *
+	 * @param dispatcher
+	 * @return this object
+	 */
+	public ConnectionMultiplexer setDispatcher(DispatchExecutor dispatcher)
+	{
+		this.dispatcher = dispatcher;
+		return this;
+	}
+
+	/**
+	 * @return the executor used to hand Communiques off to listeners.
+	 */
+	public DispatchExecutor getDispatcher()
+	{
+		if (this.dispatcher == null)
+			return DispatchExecutor.getDefault();
+		return this.dispatcher;
+	}
+
+	/**
+	 * Sets whether Communiques from the same connection are handled in the order they arrived. When ordered (the
+	 * default), each Communique is handled only after every earlier Communique with the same
+	 * {@link Communique#getConnectionId()} has been handled, while different connections are still handled in
+	 * parallel. When unordered, each matching listener is handed the Communique independently.
+	 *
+	 * @param ordered
+	 * @return this object
+	 */
+	public ConnectionMultiplexer setOrdered(boolean ordered)
+	{
+		this.ordered = ordered;
+		return this;
+	}
+
+	/**
+	 * Distributes the given Communique and reply among the registered handlers. Communiques which no handler accepts,
+	 * or which the dispatcher refuses because it is saturated, are given to the rejection handler.
 	 *
 	 * @param incoming
 	 * @param reply
 	 * @return this object
+	 * @see #setOrdered(boolean)
 	 */
 	public ConnectionMultiplexer distribute(Communique incoming, Consumer<Communique> reply)
 	{
-		boolean handled = false;
+		List<CommuniqueListener> matched = match(incoming);
+
+		boolean refused = false;
+		DispatchExecutor dispatcher = getDispatcher();
+		if (this.ordered && !matched.isEmpty())
+			refused = !dispatcher.execute(incoming.getConnectionId(), () -> matched.forEach(e -> handle(e, incoming, reply)));
+		else
+			for (CommuniqueListener e : matched)
+				if (!dispatcher.execute(() -> e.accept(incoming, reply)))
+					refused = true;
+
+		if ((matched.isEmpty() || refused) && this.rejectionHandler != null)
+			this.rejectionHandler.accept(incoming, reply);
+		else if (refused)
+			U.e("Dispatcher saturated, dropped Communique from connection " + incoming.getConnectionId() + ".");
+		return this;
+	}
+
+	/**
+	 * Like {@link #distribute(Communique, Consumer)}, but never waits for the dispatcher or runs a listener on the
+	 * calling thread, whatever the dispatcher's saturation policy. If the dispatcher has no room for the Communique,
+	 * nothing is done with it, and the caller should hold it (and anything after it from the same connection) and offer
+	 * it again later. This suits callers which service many connections from one thread, where waiting would stall
+	 * every connection.
+	 * <p>
+	 * Every listener the Communique matches is run by a single task, even when unordered, so that it is either taken
+	 * whole or not at all.
+	 *
+	 * @param incoming
+	 * @param reply
+	 * @return false iff the dispatcher had no room for the Communique.
+	 */
+	public boolean offer(Communique incoming, Consumer<Communique> reply)
+	{
+		List<CommuniqueListener> matched = match(incoming);
+		if (matched.isEmpty())
+		{
+			if (this.rejectionHandler != null)
+				this.rejectionHandler.accept(incoming, reply);
+			return true;
+		}
+
+		Runnable task = () -> matched.forEach(e -> handle(e, incoming, reply));
+		DispatchExecutor dispatcher = getDispatcher();
+		return this.ordered ? dispatcher.tryExecute(incoming.getConnectionId(), task) : dispatcher.tryExecute(task);
+	}
+
+	private List<CommuniqueListener> match(Communique incoming)
+	{
+		List<CommuniqueListener> matched = new ArrayList<>(1);
 		for (CommuniqueListener e : this.handlers)
+			if (e != null && e.test(incoming))
+				matched.add(e);
+		return matched;
+	}
+
+	private static void handle(CommuniqueListener listener, Communique incoming, Consumer<Communique> reply)
+	{
+		// One failing listener shouldn't keep the others from seeing the message.
+		try
 		{
-			if (e.test(incoming))
-			{
-				new Thread(() -> e.accept(incoming, reply), "Communique Distribution Handoff").start();
-				handled = true;
-			}
+			listener.accept(incoming, reply);
+		} catch (RuntimeException e)
+		{
+			U.e("Unhandled exception in Communique handler.", e);
 		}
-		if (!handled && this.rejectionHandler != null)
-			this.rejectionHandler.accept(incoming, reply);
-		return this;
 	}
 
 	@Override
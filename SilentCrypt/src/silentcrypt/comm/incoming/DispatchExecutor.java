@@ -0,0 +1,382 @@
+package silentcrypt.comm.incoming;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import silentcrypt.util.Threads;
+import silentcrypt.util.U;
+
+/**
+ * A bounded, queue-backed executor used to hand incoming Communiques off to their listeners. At most
+ * {@link #getCapacity()} tasks may be queued or running at once; what happens to further tasks is decided by the
+ * executor's {@link Saturation} policy.
+ *
+ * @author Michael Wells
+ */
+public class DispatchExecutor
+{
+	/**
+	 * Describes what happens to a task that is submitted while the executor is at capacity.
+	 */
+	public static enum Saturation
+	{
+		/**
+		 * The submitting thread waits until space is available.
+		 */
+		BLOCK,
+		/**
+		 * The submitting thread runs the task itself.
+		 */
+		CALLER_RUNS,
+		/**
+		 * The task is refused, and the submitter is expected to reject the message.
+		 */
+		REJECT;
+	}
+
+	private static final int	DEFAULT_CAPACITY	= 1024;
+	private static final int	VIRTUAL_CAPACITY	= 16384;
+
+	private static DispatchExecutor defaultExecutor = null;
+
+	/**
+	 * Creates a new executor backed by a fixed number of threads sharing one FIFO queue.
+	 *
+	 * @param threads
+	 * @param capacity
+	 *            the maximum number of tasks which may be queued or running at once.
+	 * @param policy
+	 * @return a new DispatchExecutor
+	 */
+	public static DispatchExecutor bounded(int threads, int capacity, Saturation policy)
+	{
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), Threads.factory("Communique Dispatch #", true));
+		return new DispatchExecutor(pool, capacity, policy);
+	}
+
+	/**
+	 * Creates a new executor which runs every task on its own new thread, as the multiplexer historically did, but
+	 * still bounds the number of tasks in flight. This is intended for use with virtual threads (see {@link Threads}),
+	 * where a thread per task is cheap and handlers may block freely.
+	 *
+	 * @param capacity
+	 *            the maximum number of tasks which may be running at once.
+	 * @param policy
+	 * @return a new DispatchExecutor
+	 */
+	public static DispatchExecutor perTask(int capacity, Saturation policy)
+	{
+		ThreadFactory factory = Threads.factory("Communique Handoff #", true);
+		return new DispatchExecutor(r -> factory.newThread(r).start(), capacity, policy);
+	}
+
+	/**
+	 * Creates a new executor backed by a work-stealing pool with the given parallelism.
+	 *
+	 * @param parallelism
+	 * @param capacity
+	 *            the maximum number of tasks which may be queued or running at once.
+	 * @param policy
+	 * @return a new DispatchExecutor
+	 */
+	public static DispatchExecutor workStealing(int parallelism, int capacity, Saturation policy)
+	{
+		AtomicInteger count = new AtomicInteger();
+		ForkJoinPool pool = new ForkJoinPool(parallelism, fjp -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(fjp);
+			t.setName("Communique Dispatch #" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}, null, true);
+		return new DispatchExecutor(pool, capacity, policy);
+	}
+
+	/**
+	 * @return the executor shared by all ConnectionMultiplexers which have not been given one explicitly. When virtual
+	 *         threads are enabled this runs each handler on its own virtual thread. It blocks when saturated, which
+	 *         holds back a connection's own reader thread; callers which service many connections from one thread
+	 *         should submit with {@link #tryExecute(Runnable)} instead.
+	 */
+	public static synchronized DispatchExecutor getDefault()
+	{
+		if (DispatchExecutor.defaultExecutor == null)
+			if (Threads.isVirtual())
+				DispatchExecutor.defaultExecutor = perTask(VIRTUAL_CAPACITY, Saturation.BLOCK);
+			else
+				DispatchExecutor.defaultExecutor = bounded(Math.max(2, Runtime.getRuntime().availableProcessors() * 2), DEFAULT_CAPACITY, Saturation.BLOCK);
+		return DispatchExecutor.defaultExecutor;
+	}
+
+	/**
+	 * Replaces the shared executor used by ConnectionMultiplexers which have not been given one explicitly.
+	 *
+	 * @param executor
+	 */
+	public static synchronized void setDefault(DispatchExecutor executor)
+	{
+		DispatchExecutor.defaultExecutor = executor;
+	}
+
+	private final Executor			pool;
+	private final Semaphore			permits;
+	private final int				capacity;
+	private final Saturation		policy;
+	private final AtomicInteger		queued	= new AtomicInteger();
+
+	private final ConcurrentHashMap<Long, SerialQueue> serial = new ConcurrentHashMap<>();
+
+	private DispatchExecutor(Executor pool, int capacity, Saturation policy)
+	{
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive.");
+		this.pool = pool;
+		this.capacity = capacity;
+		this.permits = new Semaphore(capacity);
+		this.policy = policy;
+	}
+
+	/**
+	 * Submits the given task according to this executor's saturation policy.
+	 *
+	 * @param task
+	 * @return false iff the task was refused and will never run.
+	 */
+	public boolean execute(Runnable task)
+	{
+		return execute(task, this.policy);
+	}
+
+	/**
+	 * Submits the given task only if this executor has room for it right now, whatever its saturation policy. The
+	 * calling thread never waits, and never runs the task itself.
+	 *
+	 * @param task
+	 * @return false iff the task was refused and will never run.
+	 */
+	public boolean tryExecute(Runnable task)
+	{
+		return execute(task, Saturation.REJECT);
+	}
+
+	private boolean execute(Runnable task, Saturation policy)
+	{
+		if (!this.permits.tryAcquire())
+			switch (policy)
+			{
+				case BLOCK:
+					this.permits.acquireUninterruptibly();
+					break;
+				case CALLER_RUNS:
+					run(task);
+					return true;
+				case REJECT:
+					return false;
+			}
+
+		this.queued.incrementAndGet();
+		try
+		{
+			this.pool.execute(() -> {
+				this.queued.decrementAndGet();
+				try
+				{
+					run(task);
+				} finally
+				{
+					this.permits.release();
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e)
+		{
+			this.queued.decrementAndGet();
+			this.permits.release();
+			return false;
+		}
+	}
+
+	/**
+	 * Submits the given task so that it runs after every task previously submitted with the same key has finished.
+	 * Tasks with different keys still run in parallel. Since running a task on the calling thread would let it jump
+	 * ahead of its predecessors, a {@link Saturation#CALLER_RUNS} executor blocks instead when saturated.
+	 *
+	 * @param key
+	 * @param task
+	 * @return false iff the task was refused and will never run.
+	 */
+	public boolean execute(long key, Runnable task)
+	{
+		return execute(key, task, this.policy);
+	}
+
+	/**
+	 * Like {@link #execute(long, Runnable)}, but the task is refused if this executor has no room for it right now,
+	 * whatever its saturation policy.
+	 *
+	 * @param key
+	 * @param task
+	 * @return false iff the task was refused and will never run.
+	 */
+	public boolean tryExecute(long key, Runnable task)
+	{
+		return execute(key, task, Saturation.REJECT);
+	}
+
+	private boolean execute(long key, Runnable task, Saturation policy)
+	{
+		if (!this.permits.tryAcquire())
+			if (policy == Saturation.REJECT)
+				return false;
+			else
+				this.permits.acquireUninterruptibly();
+
+		this.queued.incrementAndGet();
+		SerialQueue[] toStart = new SerialQueue[1];
+		this.serial.compute(key, (k, q) -> {
+			if (q == null)
+				q = new SerialQueue(k);
+			q.tasks.add(task);
+			if (!q.running)
+			{
+				q.running = true;
+				toStart[0] = q;
+			}
+			return q;
+		});
+		if (toStart[0] != null)
+			toStart[0].schedule();
+		return true;
+	}
+
+	/**
+	 * Runs the tasks for one key, one at a time. Each task is a separate submission to the pool so that a busy key can't
+	 * monopolize a worker.
+	 */
+	private final class SerialQueue implements Runnable
+	{
+		private final long				key;
+		private final Queue<Runnable>	tasks	= new ArrayDeque<>();
+		private boolean					running	= false;
+
+		SerialQueue(long key)
+		{
+			this.key = key;
+		}
+
+		void schedule()
+		{
+			try
+			{
+				DispatchExecutor.this.pool.execute(this);
+			} catch (RejectedExecutionException e)
+			{
+				// The pool is shut down; drain on the caller rather than losing ordered work.
+				run();
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			Runnable[] next = new Runnable[1];
+			DispatchExecutor.this.serial.computeIfPresent(this.key, (k, q) -> {
+				next[0] = q.tasks.poll();
+				return q;
+			});
+			if (next[0] != null)
+			{
+				DispatchExecutor.this.queued.decrementAndGet();
+				try
+				{
+					DispatchExecutor.run(next[0]);
+				} finally
+				{
+					DispatchExecutor.this.permits.release();
+				}
+			}
+
+			boolean[] more = new boolean[1];
+			DispatchExecutor.this.serial.computeIfPresent(this.key, (k, q) -> {
+				if (q.tasks.isEmpty())
+				{
+					q.running = false;
+					return null;
+				}
+				more[0] = true;
+				return q;
+			});
+			if (more[0])
+				schedule();
+		}
+	}
+
+	private static void run(Runnable task)
+	{
+		try
+		{
+			task.run();
+		} catch (RuntimeException e)
+		{
+			U.e("Unhandled exception in Communique handler.", e);
+		}
+	}
+
+	/**
+	 * @return the number of tasks waiting for a thread.
+	 */
+	public int getQueueDepth()
+	{
+		return this.queued.get();
+	}
+
+	/**
+	 * @return the number of tasks currently running.
+	 */
+	public int getActiveCount()
+	{
+		return Math.max(0, this.capacity - this.permits.availablePermits() - this.queued.get());
+	}
+
+	/**
+	 * @return the number of keys which currently have ordered tasks queued or running.
+	 */
+	public int getOrderedKeyCount()
+	{
+		return this.serial.size();
+	}
+
+	/**
+	 * @return the maximum number of tasks which may be queued or running at once.
+	 */
+	public int getCapacity()
+	{
+		return this.capacity;
+	}
+
+	public Saturation getSaturationPolicy()
+	{
+		return this.policy;
+	}
+
+	/**
+	 * Stops accepting new tasks if this executor is backed by a pool. Tasks which have already been submitted still
+	 * run.
+	 */
+	public void shutdown()
+	{
+		if (this.pool instanceof ExecutorService)
+			((ExecutorService) this.pool).shutdown();
+	}
+}
@@ -0,0 +1,327 @@
+package silentcrypt.comm.incoming;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+
+import silentcrypt.comm.communique.Communique;
+import silentcrypt.comm.incoming.DispatchExecutor.Saturation;
+import silentcrypt.util.Threads;
+import silentcrypt.util.U;
+
+/**
+ * A pipeline stage which checks the signatures of incoming Communiques on a pool of worker threads before handing them
+ * on, so that a burst of expensive signatures no longer stalls the thread delivering messages. Each worker takes
+ * whatever is queued, groups it by signer and verifies each group together, which lets the messages of a batch signed
+ * group share a single root verification. Communiques are handed on in the order they were submitted for each
+ * connection, regardless of which worker verified them.
+ * <p>
+ * Verified Communiques are handed on through a {@link DispatchExecutor}, keyed by connection, so that slow handlers
+ * hold up neither the workers nor other connections. At most a fixed number of Communiques may be inside the stage at
+ * once, from submission until their handler finishes; {@link #accept(Communique, Consumer)} waits for room beyond that,
+ * which in turn holds back whoever is feeding the stage. The stage's executor must therefore not be the one feeding
+ * it, or the two could each wait on the other.
+ * <p>
+ * Communiques whose signer can't be determined yet (such as those which introduce a new user) are passed on
+ * unverified, for the next stage to deal with. Communiques with a known signer are passed on only if their signature
+ * is valid, and are otherwise given to the rejection handler.
+ *
+ * @author Michael Wells
+ */
+public class VerificationStage implements BiConsumer<Communique, Consumer<Communique>>
+{
+	private static final int	MAX_BATCH			= 64;
+	private static final int	DEFAULT_CAPACITY	= 1024;
+
+	private final LinkedBlockingQueue<Entry>							pending				= new LinkedBlockingQueue<>();
+	private final Semaphore												permits;
+	private final int													capacity;
+	private final DispatchExecutor										dispatcher;
+	private final ConcurrentHashMap<Long, Connection>					connections			= new ConcurrentHashMap<>();
+	private final Function<Communique, AsymmetricKeyParameter>			signer;
+	private final BiConsumer<Communique, Consumer<Communique>>			next;
+	private volatile BiConsumer<Communique, Consumer<Communique>>		rejectionHandler	= null;
+
+	private final LongAdder	verified	= new LongAdder();
+	private final LongAdder	rejected	= new LongAdder();
+	private final LongAdder	unverified	= new LongAdder();
+	private final LongAdder	batches		= new LongAdder();
+
+	/**
+	 * @param threads
+	 *            the number of worker threads verifying signatures.
+	 * @param signer
+	 *            finds the key a Communique should have been signed with, or returns null if it isn't known.
+	 * @param next
+	 *            receives each Communique which passed verification.
+	 */
+	public VerificationStage(int threads, Function<Communique, AsymmetricKeyParameter> signer, BiConsumer<Communique, Consumer<Communique>> next)
+	{
+		this(threads, DEFAULT_CAPACITY, DispatchExecutor.bounded(Math.max(2, threads * 2), DEFAULT_CAPACITY, Saturation.BLOCK), signer, next);
+	}
+
+	/**
+	 * @param threads
+	 *            the number of worker threads verifying signatures.
+	 * @param capacity
+	 *            the most Communiques which may be inside the stage at once.
+	 * @param dispatcher
+	 *            runs the next stage for each verified Communique. Must not be the executor feeding this stage.
+	 * @param signer
+	 *            finds the key a Communique should have been signed with, or returns null if it isn't known.
+	 * @param next
+	 *            receives each Communique which passed verification.
+	 */
+	public VerificationStage(int threads, int capacity, DispatchExecutor dispatcher, Function<Communique, AsymmetricKeyParameter> signer,
+			BiConsumer<Communique, Consumer<Communique>> next)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one verification thread is required.");
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive.");
+		this.capacity = capacity;
+		this.permits = new Semaphore(capacity);
+		this.dispatcher = dispatcher;
+		this.signer = signer;
+		this.next = next;
+		for (int i = 0; i < threads; i++)
+			Threads.start("Signature Verifier #" + hashCode() + "-" + i, true, this::work);
+	}
+
+	/**
+	 * Sets a handler for Communiques whose signature did not match their signer's key. If none is set, such Communiques
+	 * are dropped.
+	 *
+	 * @param handler
+	 * @return this object
+	 */
+	public VerificationStage setRejectionHandler(BiConsumer<Communique, Consumer<Communique>> handler)
+	{
+		this.rejectionHandler = handler;
+		return this;
+	}
+
+	/**
+	 * Queues the given Communique for verification, first waiting for room if the stage is full.
+	 */
+	@Override
+	public void accept(Communique c, Consumer<Communique> reply)
+	{
+		this.permits.acquireUninterruptibly();
+		Entry e = new Entry(c, reply);
+		this.connections.compute(c.getConnectionId(), (k, q) -> {
+			if (q == null)
+				q = new Connection();
+			q.entries.add(e);
+			return q;
+		});
+		this.pending.add(e);
+	}
+
+	/**
+	 * @return the number of Communiques waiting to be verified.
+	 */
+	public int getQueueDepth()
+	{
+		return this.pending.size();
+	}
+
+	/**
+	 * @return the most Communiques which may be inside the stage at once.
+	 */
+	public int getCapacity()
+	{
+		return this.capacity;
+	}
+
+	/**
+	 * @return the number of Communiques whose signature was checked and found valid.
+	 */
+	public long getVerified()
+	{
+		return this.verified.sum();
+	}
+
+	/**
+	 * @return the number of Communiques whose signature was checked and found invalid.
+	 */
+	public long getRejected()
+	{
+		return this.rejected.sum();
+	}
+
+	/**
+	 * @return the number of Communiques passed on without a check because their signer was not known.
+	 */
+	public long getUnverified()
+	{
+		return this.unverified.sum();
+	}
+
+	/**
+	 * @return the average number of Communiques taken by a worker at once.
+	 */
+	public double getAverageBatchSize()
+	{
+		long b = this.batches.sum();
+		return b == 0 ? 0 : (getVerified() + getRejected() + getUnverified()) / (double) b;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("VerificationStage queued:%d verified:%d rejected:%d unverified:%d batch:%.1f", getQueueDepth(), getVerified(), getRejected(), getUnverified(),
+				getAverageBatchSize());
+	}
+
+	private void work()
+	{
+		List<Entry> batch = new ArrayList<>();
+		for (;;)
+			try
+			{
+				batch.add(this.pending.take());
+				this.pending.drainTo(batch, MAX_BATCH - 1);
+				this.batches.increment();
+
+				Map<AsymmetricKeyParameter, List<Entry>> bySigner = new LinkedHashMap<>();
+				for (Entry e : batch)
+				{
+					AsymmetricKeyParameter key = findSigner(e.message);
+					if (key == null)
+					{
+						this.unverified.increment();
+						complete(e, true);
+					} else
+						bySigner.computeIfAbsent(key, k -> new ArrayList<>()).add(e);
+				}
+				bySigner.forEach((key, entries) -> entries.forEach(e -> complete(e, verify(e.message, key))));
+				batch.clear();
+			} catch (InterruptedException e)
+			{
+				U.e("Signature verifier interrupted.", e);
+				return;
+			}
+	}
+
+	private AsymmetricKeyParameter findSigner(Communique c)
+	{
+		if (!c.isSigned())
+			return null;
+		try
+		{
+			return this.signer.apply(c);
+		} catch (RuntimeException e)
+		{
+			// Malformed messages are left for the next stage to reject.
+			return null;
+		}
+	}
+
+	private boolean verify(Communique c, AsymmetricKeyParameter key)
+	{
+		boolean valid;
+		try
+		{
+			valid = c.validate(key);
+		} catch (RuntimeException e)
+		{
+			valid = false;
+		}
+		(valid ? this.verified : this.rejected).increment();
+		return valid;
+	}
+
+	private void complete(Entry e, boolean valid)
+	{
+		e.valid = valid;
+		e.done = true;
+		long id = e.message.getConnectionId();
+		for (;;)
+		{
+			// Whoever finds the head of a connection's queue finished delivers it, one at a time, so order is kept.
+			Entry[] head = new Entry[1];
+			this.connections.computeIfPresent(id, (k, q) -> {
+				if (q.delivering)
+					return q;
+				Entry h = q.entries.peek();
+				if (h == null)
+					return null;
+				if (h.done)
+				{
+					q.entries.poll();
+					q.delivering = true;
+					head[0] = h;
+				}
+				return q;
+			});
+			if (head[0] == null)
+				return;
+			deliver(head[0]);
+			this.connections.computeIfPresent(id, (k, q) -> {
+				q.delivering = false;
+				return q.entries.isEmpty() ? null : q;
+			});
+		}
+	}
+
+	private void deliver(Entry e)
+	{
+		BiConsumer<Communique, Consumer<Communique>> target = e.valid ? this.next : this.rejectionHandler;
+		if (target == null)
+		{
+			this.permits.release();
+			return;
+		}
+		// Submitted in order for each connection, which the executor keeps.
+		boolean queued = this.dispatcher.execute(e.message.getConnectionId(), () -> {
+			try
+			{
+				target.accept(e.message, e.reply);
+			} catch (RuntimeException ex)
+			{
+				U.e("Unhandled exception in Communique handler.", ex);
+			} finally
+			{
+				this.permits.release();
+			}
+		});
+		if (!queued)
+		{
+			U.e("Dispatcher refused verified Communique from connection " + e.message.getConnectionId() + ".");
+			this.permits.release();
+		}
+	}
+
+	private static final class Entry
+	{
+		final Communique			message;
+		final Consumer<Communique>	reply;
+		volatile boolean			valid;
+		volatile boolean			done	= false;
+
+		Entry(Communique message, Consumer<Communique> reply)
+		{
+			this.message = message;
+			this.reply = reply;
+		}
+	}
+
+	private static final class Connection
+	{
+		final Queue<Entry>	entries		= new ArrayDeque<>();
+		boolean				delivering	= false;
+	}
+}
@@ -6,7 +6,8 @@ package silentcrypt.comm.server;
 enum AerisStd
 {
 	SERVICE_REGISTRATION("AERIS-SERVICE-REGISTRATION"),
-	KEEP_ALIVE("AERIS-SERVICE-KEEPALIVE");
+	KEEP_ALIVE("AERIS-SERVICE-KEEPALIVE"),
+	VERSION_NEGOTIATION("AERIS-VERSION-NEGOTIATION");
 
 	public static final int	PORT				= 4242;
 	public static final int	HEARTBEAT_PERIOD	= 5000;
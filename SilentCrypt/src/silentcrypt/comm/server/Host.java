@@ -1,8 +1,11 @@
 package silentcrypt.comm.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -11,6 +14,8 @@ import java.util.function.Supplier;
 import silentcrypt.comm.communique.Communique;
 import silentcrypt.comm.incoming.CommuniqueListener;
 import silentcrypt.comm.incoming.ConnectionMultiplexer;
+import silentcrypt.comm.incoming.DispatchExecutor;
+import silentcrypt.util.Threads;
 import silentcrypt.util.U;
 
 /**
@@ -21,6 +26,22 @@ import silentcrypt.util.U;
  */
 public class Host implements Listenable<Host>
 {
+	private static int defaultIoLoops = Integer.getInteger("silentcrypt.host.ioLoops", 0);
+
+	/**
+	 * Sets the number of selector-driven I/O loops used by Hosts started after this call. Each loop services many
+	 * connections from a single thread. A value of zero (the default) keeps one blocking handler thread per connection.
+	 * The initial value may also be supplied through the <code>silentcrypt.host.ioLoops</code> system property.
+	 *
+	 * @param loops
+	 */
+	public static void setDefaultIoLoops(int loops)
+	{
+		if (loops < 0)
+			throw new IllegalArgumentException("I/O loop count must not be negative.");
+		Host.defaultIoLoops = loops;
+	}
+
 	/**
 	 * Starts a new server host in a daemon thread. Uses the standard AERIS port.
 	 *
@@ -61,17 +82,33 @@ public class Host implements Listenable<Host>
 	 * @return
 	 */
 	public static Host start(int port, boolean isDaemon)
+	{
+		return start(port, isDaemon, Host.defaultIoLoops);
+	}
+
+	/**
+	 * Start a new server host. Uses the given port and services connections with the given number of selector-driven
+	 * I/O loops, or with one thread per connection if ioLoops is zero.
+	 *
+	 * @param port
+	 * @param isDaemon
+	 * @param ioLoops
+	 * @return
+	 */
+	public static Host start(int port, boolean isDaemon, int ioLoops)
 	{
 		return new Host(() -> {
 			try
 			{
-				return new ServerSocket(port);
+				ServerSocketChannel chan = ServerSocketChannel.open();
+				chan.bind(new InetSocketAddress(port));
+				return chan.socket();
 			} catch (IOException e)
 			{
 				U.e("Unable to bind to " + port + " " + e.getMessage());
 				return null;
 			}
-		}, isDaemon);
+		}, isDaemon, ioLoops);
 	}
 
 	private Supplier<ServerSocket>	src;
@@ -79,52 +116,80 @@ public class Host implements Listenable<Host>
 
 	private ConnectionMultiplexer	multiplexer;
 	private Consumer<Long>			closeHandler	= U.emptyConsumer();
+	private SelectorLoop[]			loops;
 
-	private Host(Supplier<ServerSocket> sockSrc, boolean isDaemon)
+	private Host(Supplier<ServerSocket> sockSrc, boolean isDaemon, int ioLoops)
 	{
 		AtomicReference<Long> connectionId = new AtomicReference<>(1L);
 		this.multiplexer = new ConnectionMultiplexer();
 		this.src = sockSrc;
 		init();
+		startLoops(ioLoops, isDaemon);
 
-		Thread listener = new Thread(() -> {
+		Thread listener = Threads.newThread("[Host] incoming connection manager", isDaemon, () -> {
 			for (;;)
 				try
 				{
 					long id = connectionId.getAndAccumulate(1L, (f, s) -> f + s);
+					if (this.loops != null)
+					{
+						SocketChannel t = this.sock.getChannel().accept();
+						U.p("Recieved opening connection from " + t.socket().getRemoteSocketAddress());
+						this.loops[(int) (id % this.loops.length)].register(t, id);
+						continue;
+					}
 					Socket t = this.sock.accept();
 					U.p("Recieved opening connection from " + t.getRemoteSocketAddress());
-					new Thread(() -> handle(t, id), "[Host] incoming connection handler : " + t.getRemoteSocketAddress()).start();
+					Threads.start("[Host] incoming connection handler : " + t.getRemoteSocketAddress(), isDaemon, () -> handle(t, id));
 				} catch (IOException e)
 				{
 					U.e("Error accepting connection. " + e.getMessage());
 				}
-		}, "[Host] incoming connection manager");
-		listener.setDaemon(isDaemon);
+		});
 
 		U.p("Waiting for connections...");
 		listener.start();
 	}
 
+	private void startLoops(int ioLoops, boolean isDaemon)
+	{
+		if (ioLoops <= 0 || this.sock.getChannel() == null)
+			return;
+		SelectorLoop[] res = new SelectorLoop[ioLoops];
+		try
+		{
+			for (int i = 0; i < ioLoops; i++)
+			{
+				res[i] = new SelectorLoop(this.multiplexer::offer, id -> this.closeHandler.accept(id));
+				Thread loop = new Thread(res[i], "[Host] selector loop #" + i);
+				loop.setDaemon(isDaemon);
+				loop.start();
+			}
+			this.loops = res;
+		} catch (IOException e)
+		{
+			U.e("Unable to open selector, falling back to one thread per connection.", e);
+		}
+	}
+
 	private void handle(Socket t, long connectionId)
 	{
 		try
 		{
 			Supplier<Communique> src = Communique.from(t.getInputStream());
+			AtomicReference<Transport> transport = new AtomicReference<>(Transport.DEFAULT);
 			Communique c = src.get();
 			while (c != null)
 			{
 				c.setConnectionId(connectionId);
-				this.multiplexer.distribute(c, comm -> {
-					try
-					{
-						comm.write(t.getOutputStream());
-					} catch (IOException e)
-					{
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				});
+				if (VersionNegotiation.is(c))
+				{
+					// The reply must still be readable by the client, so the switch only happens after it's written.
+					Transport chosen = VersionNegotiation.chosen(c);
+					write(t, VersionNegotiation.reply(chosen), transport.get());
+					transport.set(chosen);
+				} else
+					this.multiplexer.distribute(c, comm -> write(t, comm, transport.get()));
 				c = src.get();
 			}
 		} catch (IOException e)
@@ -135,6 +200,22 @@ public class Host implements Listenable<Host>
 		U.p("Connection from " + t.getRemoteSocketAddress() + " closed.");
 	}
 
+	private static void write(Socket t, Communique comm, Transport transport)
+	{
+		try
+		{
+			// Replies come from many dispatcher threads at once, and each message must reach the socket whole.
+			synchronized (t)
+			{
+				transport.write(comm, t.getOutputStream());
+			}
+		} catch (IOException e)
+		{
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+
 	public Host setCloseHandler(Consumer<Long> handler)
 	{
 		this.closeHandler = handler;
@@ -166,6 +247,26 @@ public class Host implements Listenable<Host>
 		return this;
 	}
 
+	/**
+	 * Sets the executor used to hand incoming Communiques off to listeners.
+	 *
+	 * @param dispatcher
+	 * @return this object
+	 */
+	public Host setDispatcher(DispatchExecutor dispatcher)
+	{
+		this.multiplexer.setDispatcher(dispatcher);
+		return this;
+	}
+
+	/**
+	 * @return the executor used to hand incoming Communiques off to listeners.
+	 */
+	public DispatchExecutor getDispatcher()
+	{
+		return this.multiplexer.getDispatcher();
+	}
+
 	@Override
 	public Host listen(CommuniqueListener listener)
 	{
@@ -0,0 +1,305 @@
+package silentcrypt.comm.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+import silentcrypt.comm.communique.Communique;
+import silentcrypt.comm.communique.CommuniqueDecoder;
+import silentcrypt.util.U;
+
+/**
+ * A single NIO event loop which services many non-blocking connections from one thread. Incoming bytes are decoded
+ * incrementally and completed Communiques are handed to the message handler along with a reply consumer which queues
+ * outgoing messages for this loop to write. When the handler has no room for a Communique, the connection stops being
+ * read, and the Communique and any after it are held and offered again until the handler takes them; nothing that
+ * arrived is dropped, and each connection's Communiques are still handled in order. Messages are serialized by the thread which sends them, so that encoding
+ * their fields never holds up the loop. Everything queued for a connection by the time it can be written goes out in a
+ * single gathering write, packed into batch frames if the connection has agreed to frames.
+ *
+ * @author Michael Wells
+ */
+class SelectorLoop implements Runnable
+{
+	private static final int	READ_BUFFER_SIZE	= 65536;
+	private static final long	STALL_RETRY_MILLIS	= 10;
+
+	private static class Outgoing
+	{
+		private final Transport		transport;
+		private final ByteBuffer[]	data;
+
+		Outgoing(Transport transport, ByteBuffer[] data)
+		{
+			this.transport = transport;
+			this.data = data;
+		}
+	}
+
+	private class Connection
+	{
+		private final SocketChannel					channel;
+		private final SocketAddress					remote;
+		private final long							id;
+		private final CommuniqueDecoder				decoder			= new CommuniqueDecoder();
+		private final Queue<Outgoing>				queued			= new ConcurrentLinkedQueue<>();
+		private final ArrayDeque<ByteBuffer>		writing			= new ArrayDeque<>();
+		private final AtomicBoolean					writeRequested	= new AtomicBoolean(false);
+		private final ArrayDeque<Communique>		backlog			= new ArrayDeque<>();
+		private final Consumer<Communique>			reply			= this::send;
+		private volatile Transport					transport		= Transport.DEFAULT;
+		private SelectionKey						key;
+
+		Connection(SocketChannel channel, long id)
+		{
+			this.channel = channel;
+			this.remote = channel.socket().getRemoteSocketAddress();
+			this.id = id;
+		}
+
+		private void send(Communique c)
+		{
+			Transport transport = this.transport;
+			this.queued.add(new Outgoing(transport, transport.serialize(c)));
+			if (!this.writeRequested.getAndSet(true))
+				SelectorLoop.this.submit(() -> {
+					if (this.key.isValid())
+						this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+				});
+		}
+	}
+
+	private final Selector										selector;
+	private final Queue<Runnable>								tasks		= new ConcurrentLinkedQueue<>();
+	private final ByteBuffer									readBuffer	= ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private final Set<Connection>								stalled		= new LinkedHashSet<>();
+	private final BiPredicate<Communique, Consumer<Communique>>	handler;
+	private final Consumer<Long>								closeHandler;
+
+	/**
+	 * @param handler
+	 *            handles each incoming Communique, returning false if it has no room for it yet.
+	 * @param closeHandler
+	 * @throws IOException
+	 */
+	SelectorLoop(BiPredicate<Communique, Consumer<Communique>> handler, Consumer<Long> closeHandler) throws IOException
+	{
+		this.selector = Selector.open();
+		this.handler = handler;
+		this.closeHandler = closeHandler;
+	}
+
+	/**
+	 * Hands the given connected channel over to this loop. May be called from any thread.
+	 *
+	 * @param channel
+	 * @param connectionId
+	 * @throws IOException
+	 */
+	void register(SocketChannel channel, long connectionId) throws IOException
+	{
+		channel.configureBlocking(false);
+		Connection conn = new Connection(channel, connectionId);
+		submit(() -> {
+			try
+			{
+				conn.key = channel.register(this.selector, SelectionKey.OP_READ, conn);
+			} catch (IOException e)
+			{
+				U.e("Unable to register connection from " + conn.remote + ". " + e.getMessage());
+				close(conn);
+			}
+		});
+	}
+
+	private void submit(Runnable task)
+	{
+		this.tasks.add(task);
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run()
+	{
+		for (;;)
+			try
+			{
+				if (this.stalled.isEmpty())
+					this.selector.select();
+				else
+					this.selector.select(STALL_RETRY_MILLIS);
+				for (Runnable task; (task = this.tasks.poll()) != null;)
+					try
+					{
+						task.run();
+					} catch (RuntimeException e)
+					{
+						U.e("Error running selector loop task.", e);
+					}
+				retryStalled();
+
+				Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					Connection conn = (Connection) key.attachment();
+					// Whatever goes wrong with one connection, the loop has to keep serving the others.
+					try
+					{
+						if (key.isValid() && key.isReadable())
+							read(conn);
+						if (key.isValid() && key.isWritable())
+							write(conn);
+					} catch (RuntimeException e)
+					{
+						U.e("Error servicing connection from " + conn.remote + ".", e);
+						close(conn);
+					}
+				}
+			} catch (IOException e)
+			{
+				U.e("Error in selector loop. " + e.getMessage());
+			}
+	}
+
+	private void read(Connection conn)
+	{
+		try
+		{
+			this.readBuffer.clear();
+			int read = conn.channel.read(this.readBuffer);
+			if (read < 0)
+			{
+				close(conn);
+				return;
+			}
+			this.readBuffer.flip();
+			conn.decoder.decode(this.readBuffer, c -> conn.backlog.add(c.setConnectionId(conn.id)));
+			drain(conn);
+		} catch (IOException e)
+		{
+			U.e("Error reading from " + conn.remote + ". " + e.getMessage());
+			close(conn);
+		} catch (RuntimeException e)
+		{
+			U.e("Error handling data from " + conn.remote + ".", e);
+			close(conn);
+		}
+	}
+
+	/**
+	 * Hands on as much of the connection's backlog as the handler will take, reading from the connection again only
+	 * once all of it is gone.
+	 */
+	private void drain(Connection conn)
+	{
+		for (Communique c; (c = conn.backlog.peekFirst()) != null; conn.backlog.pollFirst())
+			if (!handle(conn, c))
+			{
+				if (this.stalled.add(conn))
+					conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+				return;
+			}
+		if (this.stalled.remove(conn) && conn.key.isValid())
+			conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_READ);
+	}
+
+	private boolean handle(Connection conn, Communique c)
+	{
+		if (!VersionNegotiation.is(c))
+			return this.handler.test(c, conn.reply);
+		// The client can read whatever it asked for, so the reply may be written in the chosen transport.
+		Transport chosen = VersionNegotiation.chosen(c);
+		conn.transport = chosen;
+		conn.send(VersionNegotiation.reply(chosen));
+		return true;
+	}
+
+	private void retryStalled()
+	{
+		for (Connection conn : new ArrayList<>(this.stalled))
+			try
+			{
+				drain(conn);
+			} catch (RuntimeException e)
+			{
+				U.e("Error handling data from " + conn.remote + ".", e);
+				close(conn);
+			}
+	}
+
+	private void write(Connection conn)
+	{
+		try
+		{
+			conn.writeRequested.set(false);
+			// Messages queued before negotiation finished were serialized for the old transport, and are packed with it.
+			List<ByteBuffer[]> batch = new ArrayList<>();
+			Transport transport = null;
+			for (Outgoing o; (o = conn.queued.poll()) != null;)
+			{
+				if (o.transport != transport)
+				{
+					pack(conn, transport, batch);
+					transport = o.transport;
+				}
+				batch.add(o.data);
+			}
+			pack(conn, transport, batch);
+
+			// Gather everything queued into as few system calls as the socket will accept.
+			conn.channel.write(conn.writing.toArray(new ByteBuffer[conn.writing.size()]));
+			while (!conn.writing.isEmpty() && !conn.writing.peekFirst().hasRemaining())
+				conn.writing.pollFirst();
+
+			if (conn.writing.isEmpty() && conn.queued.isEmpty())
+				conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException e)
+		{
+			U.e("Error writing to " + conn.remote + ". " + e.getMessage());
+			close(conn);
+		}
+	}
+
+	private static void pack(Connection conn, Transport transport, List<ByteBuffer[]> batch)
+	{
+		if (batch.isEmpty())
+			return;
+		Collections.addAll(conn.writing, transport.pack(batch, Transport.DEFAULT_BATCH_SIZE));
+		batch.clear();
+	}
+
+	private void close(Connection conn)
+	{
+		if (!conn.channel.isOpen())
+			return;
+		this.stalled.remove(conn);
+		conn.backlog.clear();
+		if (conn.key != null)
+			conn.key.cancel();
+		try
+		{
+			conn.channel.close();
+		} catch (IOException e)
+		{
+		}
+		this.closeHandler.accept(conn.id);
+		U.p("Connection from " + conn.remote + " closed.");
+	}
+}
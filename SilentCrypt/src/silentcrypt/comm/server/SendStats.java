@@ -0,0 +1,118 @@
+package silentcrypt.comm.server;
+
+import java.time.Duration;
+
+/**
+ * Running totals describing the outgoing traffic of a single connection.
+ *
+ * @author Michael Wells
+ */
+public class SendStats
+{
+	private final long	created		= System.nanoTime();
+	private long		messages	= 0;
+	private long		bytes		= 0;
+	private long		writes		= 0;
+	private long		totalWait	= 0;
+	private long		maxWait		= 0;
+
+	/**
+	 * Records a single write of the given number of messages and bytes.
+	 *
+	 * @param messageCount
+	 * @param byteCount
+	 */
+	synchronized void recordWrite(int messageCount, long byteCount)
+	{
+		this.messages += messageCount;
+		this.bytes += byteCount;
+		this.writes++;
+	}
+
+	/**
+	 * Records the time a single message spent queued before it was written.
+	 *
+	 * @param nanos
+	 */
+	synchronized void recordWait(long nanos)
+	{
+		this.totalWait += nanos;
+		this.maxWait = Math.max(this.maxWait, nanos);
+	}
+
+	/**
+	 * @return the number of messages written.
+	 */
+	public synchronized long getMessagesSent()
+	{
+		return this.messages;
+	}
+
+	/**
+	 * @return the number of bytes written.
+	 */
+	public synchronized long getBytesSent()
+	{
+		return this.bytes;
+	}
+
+	/**
+	 * @return the number of writes performed. Each write may carry several messages.
+	 */
+	public synchronized long getWrites()
+	{
+		return this.writes;
+	}
+
+	/**
+	 * @return the average number of messages carried by each write.
+	 */
+	public synchronized double getAverageBatchSize()
+	{
+		return this.writes == 0 ? 0 : this.messages / (double) this.writes;
+	}
+
+	/**
+	 * @return the average time a message spent queued before it was written.
+	 */
+	public synchronized Duration getAverageQueueWait()
+	{
+		return Duration.ofNanos(this.messages == 0 ? 0 : this.totalWait / this.messages);
+	}
+
+	/**
+	 * @return the longest time a message spent queued before it was written.
+	 */
+	public synchronized Duration getMaxQueueWait()
+	{
+		return Duration.ofNanos(this.maxWait);
+	}
+
+	/**
+	 * @return the average number of messages written per second since this connection was created.
+	 */
+	public synchronized double getMessagesPerSecond()
+	{
+		return this.messages / elapsedSeconds();
+	}
+
+	/**
+	 * @return the average number of bytes written per second since this connection was created.
+	 */
+	public synchronized double getBytesPerSecond()
+	{
+		return this.bytes / elapsedSeconds();
+	}
+
+	private double elapsedSeconds()
+	{
+		return Math.max(1, System.nanoTime() - this.created) / 1e9;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("SendStats messages:%d bytes:%d writes:%d batch:%.1f msg/s:%.1f B/s:%.1f avgWait:%s maxWait:%s", this.messages, this.bytes, this.writes,
+				getAverageBatchSize(), getMessagesPerSecond(), getBytesPerSecond(), getAverageQueueWait(), getMaxQueueWait());
+	}
+}
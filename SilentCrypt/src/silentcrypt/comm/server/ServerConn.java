@@ -3,15 +3,22 @@ package silentcrypt.comm.server;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import silentcrypt.comm.communique.Communique;
+import silentcrypt.comm.communique.Frame;
+import silentcrypt.comm.communique.WireVersion;
 import silentcrypt.comm.incoming.CommuniqueListener;
 import silentcrypt.comm.incoming.ConnectionMultiplexer;
+import silentcrypt.util.Threads;
 import silentcrypt.util.U;
 
 /**
@@ -50,19 +57,44 @@ public class ServerConn implements Listenable<ServerConn>
 		return new ServerConn(addr);
 	}
 
-	private InetSocketAddress					serverAddr;
-	private Socket								sock		= null;
-	private ConcurrentLinkedQueue<Communique>	sendQueue	= new ConcurrentLinkedQueue<>();
-	private boolean								openConn	= false;
+	/**
+	 * A message waiting to be written, along with the time it was queued.
+	 */
+	private static class Pending
+	{
+		private final Communique	comm;
+		private final long			queued	= System.nanoTime();
+
+		Pending(Communique comm)
+		{
+			this.comm = comm;
+		}
+	}
+
+	private InetSocketAddress				serverAddr;
+	private volatile SocketChannel			sock		= null;
+	private LinkedBlockingQueue<Pending>	sendQueue	= new LinkedBlockingQueue<>();
+	private volatile boolean				openConn	= false;
+	private volatile Transport				transport	= Transport.DEFAULT;
+	private volatile int					batchSize	= Transport.DEFAULT_BATCH_SIZE;
+	private volatile long					batchDelay	= 0;
+	private SendStats						stats		= new SendStats();
+	private Thread							sender		= null;
+	private Thread							reader		= null;
 
 	private List<CommuniqueListener> handlers = new ArrayList<>();
 
+	/**
+	 * How long to wait for the reader of a dropped connection to finish. It normally does so as soon as the channel is
+	 * closed, but may be part way through handing off a message.
+	 */
+	private static final long READER_JOIN_MILLIS = 1000;
+
 	protected ServerConn(InetSocketAddress addr)
 	{
 		this.serverAddr = addr;
 		openConn();
 		startWatchDog();
-		startSender();
 	}
 
 	private Communique buildRegistrationPacket(String serviceID)
@@ -90,11 +122,29 @@ public class ServerConn implements Listenable<ServerConn>
 
 	protected void openConn()
 	{
+		startSender();
 		try
 		{
 			this.openConn = true;
-			this.sock = new Socket(this.serverAddr.getAddress(), this.serverAddr.getPort());
-			new ConnectionMultiplexer(this.sock.getInputStream(), this.sock.getOutputStream(), () -> this.handlers);
+			SocketChannel chan = SocketChannel.open(this.serverAddr);
+			// Whatever the last connection agreed on, this one starts again from the version every host can read.
+			this.transport = Transport.DEFAULT;
+			Supplier<Communique> in = negotiated(Communique.from(chan.socket().getInputStream()));
+			ConnectionMultiplexer mux = new ConnectionMultiplexer(() -> this.handlers);
+			// Replies go through the send queue so that they never interleave with other outgoing messages.
+			Thread reader = Threads.newThread("Server Connection Reader #" + hashCode(), true, () -> {
+				Communique c;
+				while ((c = in.get()) != null)
+					mux.distribute(c, this::send);
+			});
+			synchronized (this)
+			{
+				this.sock = chan;
+				this.reader = reader;
+				notifyAll();
+			}
+			reader.start();
+			send(VersionNegotiation.request());
 			U.p("Server Connection Open");
 		} catch (IOException e)
 		{
@@ -103,6 +153,39 @@ public class ServerConn implements Listenable<ServerConn>
 		}
 	}
 
+	/**
+	 * Takes the host's reply to our version negotiation request out of the incoming messages, switching to the transport
+	 * it names.
+	 */
+	private Supplier<Communique> negotiated(Supplier<Communique> src)
+	{
+		return () -> {
+			Communique c = src.get();
+			while (c != null && VersionNegotiation.is(c))
+			{
+				this.transport = VersionNegotiation.chosen(c);
+				c = src.get();
+			}
+			return c;
+		};
+	}
+
+	/**
+	 * @return the version messages are currently written to the server in.
+	 */
+	public WireVersion getWireVersion()
+	{
+		return this.transport.getVersion();
+	}
+
+	/**
+	 * @return true if messages are currently written to the server in frames (see {@link Frame}).
+	 */
+	public boolean isFramed()
+	{
+		return this.transport.isFramed();
+	}
+
 	/**
 	 * Registers a new service for use over this connection.
 	 *
@@ -123,78 +206,209 @@ public class ServerConn implements Listenable<ServerConn>
 	 */
 	public ServerConn send(Communique comm)
 	{
-		this.sendQueue.add(comm);
+		this.sendQueue.add(new Pending(comm));
+		return this;
+	}
+
+	/**
+	 * Sets how outgoing messages are coalesced once the server has agreed to frames (see {@link Frame}). Messages
+	 * written together are packed into batch frames holding up to the given number of bytes of messages, and the sender
+	 * waits up to the given delay after a message is queued for others to join it. With no delay (the default) only
+	 * messages which are already queued are batched, so no latency is added.
+	 *
+	 * @param maxBytes
+	 * @param maxDelay
+	 * @return this object.
+	 */
+	public ServerConn setBatching(int maxBytes, Duration maxDelay)
+	{
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("Batch size must be positive.");
+		if (maxDelay.isNegative())
+			throw new IllegalArgumentException("Batch delay must not be negative.");
+		this.batchSize = maxBytes;
+		this.batchDelay = maxDelay.toNanos();
 		return this;
 	}
 
-	private void startSender()
+	/**
+	 * @return throughput and queueing statistics for messages sent over this connection.
+	 */
+	public SendStats getSendStats()
+	{
+		return this.stats;
+	}
+
+	/**
+	 * Starts the sender, unless it is already running. It runs until {@link #closeConn()} interrupts it.
+	 */
+	private synchronized void startSender()
 	{
-		Thread sender = new Thread(() -> {
-			while (true)
+		if (this.sender != null && this.sender.isAlive())
+			return;
+		this.sender = Threads.start("Communique Sender #" + hashCode(), true, () -> {
+			List<Pending> batch = new ArrayList<>();
+			for (;;)
 			{
-				if (this.sock != null)
+				SocketChannel chan = null;
+				try
 				{
-					if (!this.openConn)
-					{
-						try
-						{
-							this.sock.close();
-						} catch (IOException e)
-						{
-						}
-						this.sock = null;
-					}
-					while (!this.sendQueue.isEmpty())
-					{
-						try
-						{
-							Communique comm = this.sendQueue.peek();
-							comm.write(this.sock.getOutputStream());
-							this.sock.getOutputStream().flush();
-							this.sendQueue.poll();
-						} catch (IOException e)
-						{
-							U.e("Unable to send communique to server.", e);
-							this.sock = null;
-						}
-					}
+					// Park until there is something to send, then take everything else that's queued with it.
+					if (batch.isEmpty())
+						batch.add(this.sendQueue.take());
+					collect(batch);
+					chan = awaitConnection();
+					write(chan, batch);
+					batch.clear();
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				} catch (IOException e)
+				{
+					// Interrupting a write closes the channel, which lands here rather than above.
+					if (Thread.currentThread().isInterrupted())
+						return;
+					// Keep the batch; it will be retried once the watchdog has reconnected.
+					U.e("Unable to send communique to server.", e);
+					drop(chan);
 				}
 			}
-		}, "Communique Sender #" + hashCode());
-		sender.setDaemon(true);
-		sender.start();
+		});
+	}
+
+	/**
+	 * Adds everything that's queued to the given batch, then holds it open for up to the batch delay, in case more
+	 * messages are about to follow.
+	 */
+	private void collect(List<Pending> batch) throws InterruptedException
+	{
+		this.sendQueue.drainTo(batch);
+		if (this.batchDelay <= 0)
+			return;
+
+		WireVersion version = this.transport.getVersion();
+		long size = 0;
+		for (Pending p : batch)
+			size += Frame.remaining(p.comm.buffers(version));
+		long deadline = batch.get(0).queued + this.batchDelay;
+		for (long wait; size < this.batchSize && (wait = deadline - System.nanoTime()) > 0;)
+		{
+			Pending p = this.sendQueue.poll(wait, TimeUnit.NANOSECONDS);
+			if (p == null)
+				break;
+			int from = batch.size();
+			batch.add(p);
+			this.sendQueue.drainTo(batch);
+			for (int i = from; i < batch.size(); i++)
+				size += Frame.remaining(batch.get(i).comm.buffers(version));
+		}
+	}
+
+	private synchronized SocketChannel awaitConnection() throws InterruptedException
+	{
+		while (this.sock == null)
+			wait();
+		return this.sock;
 	}
 
+	private void write(SocketChannel chan, List<Pending> batch) throws IOException
+	{
+		List<Communique> comms = new ArrayList<>(batch.size());
+		long now = System.nanoTime();
+		for (Pending p : batch)
+		{
+			comms.add(p.comm);
+			this.stats.recordWait(now - p.queued);
+		}
+		ByteBuffer[] data = this.transport.buffers(comms, this.batchSize);
+		long size = Frame.remaining(data);
+
+		// One gathering write for the whole batch; loop only in case the socket accepts it piecemeal.
+		long written = 0;
+		while (written < size)
+			written += chan.write(data);
+		this.stats.recordWrite(batch.size(), size);
+	}
+
+	/**
+	 * Closes the connection to the server, and stops sending to it. Messages which haven't been written yet are
+	 * discarded.
+	 *
+	 * @return this object.
+	 */
 	public ServerConn closeConn()
 	{
 		this.openConn = false;
+		Thread sender;
+		synchronized (this)
+		{
+			sender = this.sender;
+			this.sender = null;
+		}
+		if (sender != null)
+			sender.interrupt();
+		drop(this.sock);
 		return this;
 	}
 
+	/**
+	 * Closes the given connection, then waits for its reader to finish so that neither the socket nor the thread
+	 * outlives it. Does nothing if the connection has already been dropped.
+	 */
+	private void drop(SocketChannel chan)
+	{
+		if (chan == null)
+			return;
+		Thread reader = null;
+		synchronized (this)
+		{
+			if (this.sock == chan)
+			{
+				this.sock = null;
+				reader = this.reader;
+				this.reader = null;
+			}
+		}
+		try
+		{
+			chan.close();
+		} catch (IOException e)
+		{
+			U.e("Unable to close connection to " + this.serverAddr, e);
+		}
+		// Closing the channel ends the reader's blocking read.
+		if (reader == null || reader == Thread.currentThread())
+			return;
+		try
+		{
+			reader.join(READER_JOIN_MILLIS);
+			if (reader.isAlive())
+				U.e("Reader for " + this.serverAddr + " did not finish after its connection was closed.");
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	private void startWatchDog()
 	{
-		byte[] msg = Communique.of(AerisStd.KEEP_ALIVE.getId()).bytes();
-		Thread watcher = new Thread(() -> {
-			U.sleep(AerisStd.HEARTBEAT_PERIOD);
+		// Each version of the message is only serialized once, then reused for every heartbeat.
+		Communique msg = Communique.of(AerisStd.KEEP_ALIVE.getId());
+		Thread watcher = Threads.newThread("Server Connection Watchdog #" + hashCode(), true, () -> {
 			for (;;)
-				try
-				{
-					this.sock.getOutputStream().write(msg);
-					U.sleep(AerisStd.HEARTBEAT_PERIOD);
-				} catch (NullPointerException e)
-				{
-					U.sleep(AerisStd.RETRY_PERIOD);
-					if (this.openConn)
-						openConn();
-				} catch (Throwable t)
+			{
+				U.sleep(this.sock == null ? AerisStd.RETRY_PERIOD : AerisStd.HEARTBEAT_PERIOD);
+				if (!this.openConn)
+					continue;
+				if (this.sock == null)
 				{
-					U.e("Unable to connect to server, retrying...", t);
-					U.sleep(AerisStd.RETRY_PERIOD);
-					if (this.openConn)
-						openConn();
-				}
-		}, "Server Connection Watchdog #" + hashCode());
-		watcher.setDaemon(true);
+					U.e("Unable to connect to server, retrying...");
+					openConn();
+				} else
+					this.sendQueue.add(new Pending(msg));
+			}
+		});
 		watcher.setPriority(Thread.MIN_PRIORITY);
 		watcher.start();
 	}
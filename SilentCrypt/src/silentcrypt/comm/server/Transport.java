@@ -0,0 +1,134 @@
+package silentcrypt.comm.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import silentcrypt.comm.communique.Communique;
+import silentcrypt.comm.communique.Frame;
+import silentcrypt.comm.communique.WireVersion;
+
+/**
+ * How Communiques are written to a single connection: the {@link WireVersion} they are serialized in, and whether each
+ * is wrapped in a {@link Frame}. Agreed by {@link VersionNegotiation}.
+ *
+ * @author Michael Wells
+ */
+class Transport
+{
+	/**
+	 * What every peer can read, used until negotiation says otherwise.
+	 */
+	static final Transport DEFAULT = new Transport(WireVersion.V4, false);
+
+	/**
+	 * The most bytes of messages packed into a single batch frame, unless configured otherwise.
+	 */
+	static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+
+	private final WireVersion	version;
+	private final boolean		framed;
+
+	Transport(WireVersion version, boolean framed)
+	{
+		this.version = version;
+		this.framed = framed;
+	}
+
+	WireVersion getVersion()
+	{
+		return this.version;
+	}
+
+	boolean isFramed()
+	{
+		return this.framed;
+	}
+
+	/**
+	 * Serializes the given Communique in this transport's version, without framing it. This is where its fields are
+	 * encoded, so it's the expensive part of writing a message.
+	 *
+	 * @param c
+	 * @return the serialized Communique, to be passed to {@link #pack(List, int)}.
+	 */
+	ByteBuffer[] serialize(Communique c)
+	{
+		return c.buffers(this.version);
+	}
+
+	/**
+	 * @param batch
+	 * @param maxBatchSize
+	 * @return the given Communiques as written to this transport, in order. When framed, consecutive messages are
+	 *         packed into batch frames of up to the given size; a message larger than that is framed on its own.
+	 */
+	ByteBuffer[] buffers(List<Communique> batch, int maxBatchSize)
+	{
+		List<ByteBuffer[]> messages = new ArrayList<>(batch.size());
+		for (Communique c : batch)
+			messages.add(serialize(c));
+		return pack(messages, maxBatchSize);
+	}
+
+	/**
+	 * Like {@link #buffers(List, int)}, for messages already {@link #serialize(Communique) serialized} by this
+	 * transport.
+	 *
+	 * @param batch
+	 * @param maxBatchSize
+	 * @return the given messages as written to this transport, in order.
+	 */
+	ByteBuffer[] pack(List<ByteBuffer[]> batch, int maxBatchSize)
+	{
+		List<ByteBuffer> res = new ArrayList<>(batch.size() * 3 + 1);
+		if (!this.framed)
+		{
+			for (ByteBuffer[] data : batch)
+				Collections.addAll(res, data);
+			return res.toArray(new ByteBuffer[res.size()]);
+		}
+
+		List<ByteBuffer[]> group = new ArrayList<>();
+		long groupSize = 0;
+		for (ByteBuffer[] data : batch)
+		{
+			long size = Frame.remaining(data);
+			if (!group.isEmpty() && groupSize + size > maxBatchSize)
+			{
+				addFrame(res, group);
+				group.clear();
+				groupSize = 0;
+			}
+			group.add(data);
+			groupSize += size;
+		}
+		addFrame(res, group);
+		return res.toArray(new ByteBuffer[res.size()]);
+	}
+
+	private void addFrame(List<ByteBuffer> res, List<ByteBuffer[]> group)
+	{
+		if (group.size() == 1)
+			Collections.addAll(res, Frame.buffers(group.get(0)));
+		else if (!group.isEmpty())
+			Collections.addAll(res, Frame.batch(group));
+	}
+
+	void write(Communique c, OutputStream out) throws IOException
+	{
+		if (this.framed)
+			Frame.write(c, this.version, out);
+		else
+			c.write(out, this.version);
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.version + (this.framed ? " framed" : "");
+	}
+}
@@ -0,0 +1,83 @@
+package silentcrypt.comm.server;
+
+import silentcrypt.comm.communique.Communique;
+import silentcrypt.comm.communique.Datatype;
+import silentcrypt.comm.communique.WireVersion;
+
+/**
+ * Agrees how Communiques are written to a connection (see {@link Transport}). When a client connects it sends the
+ * newest version it can read and whether it can read frames, and the host answers with the newest version both can
+ * read, and whether both can read frames. Each side writes {@link Transport#DEFAULT} until then, and hosts which
+ * predate negotiation never answer, so their connections stay on it. Since every version can always be read, messages
+ * already in flight when the transport changes are unaffected.
+ *
+ * @author Michael Wells
+ */
+class VersionNegotiation
+{
+	private static final String FRAMED = "FRAMED";
+
+	/**
+	 * @return the message a client sends when it connects.
+	 */
+	static Communique request()
+	{
+		return message(new Transport(WireVersion.getLatest(), true));
+	}
+
+	/**
+	 * @param c
+	 * @return true if the given message is a request or reply from {@link VersionNegotiation}.
+	 */
+	static boolean is(Communique c)
+	{
+		if (c.fieldCount() < 2)
+			return false;
+		for (int i = 0; i < c.fieldCount(); i++)
+			if (c.getField(i).getDatatype() != Datatype.STRING)
+				return false;
+		return AerisStd.VERSION_NEGOTIATION.getId().equals(c.getField(0).data(String.class));
+	}
+
+	/**
+	 * @param c
+	 *            a request or reply.
+	 * @return the transport named by the given message, limited to what this side can read.
+	 */
+	static Transport chosen(Communique c)
+	{
+		int number;
+		try
+		{
+			number = Integer.parseInt(c.getField(1).data(String.class));
+		} catch (NumberFormatException e)
+		{
+			return Transport.DEFAULT;
+		}
+		WireVersion version = WireVersion.get(Math.min(number, WireVersion.getLatest().getNumber()));
+		if (version == null)
+			return Transport.DEFAULT;
+		// Options which aren't understood are ignored, leaving room for more to be added.
+		boolean framed = false;
+		for (int i = 2; i < c.fieldCount(); i++)
+			framed |= FRAMED.equals(c.getField(i).data(String.class));
+		return new Transport(version, framed);
+	}
+
+	/**
+	 * @param chosen
+	 * @return the reply to a request, naming the transport chosen for it.
+	 */
+	static Communique reply(Transport chosen)
+	{
+		return message(chosen);
+	}
+
+	private static Communique message(Transport transport)
+	{
+		String version = Integer.toString(transport.getVersion().getNumber());
+		if (transport.isFramed())
+			return Communique.of(AerisStd.VERSION_NEGOTIATION.getId(), version, FRAMED);
+		return Communique.of(AerisStd.VERSION_NEGOTIATION.getId(), version);
+	}
+}
@@ -21,8 +21,10 @@ import silentcrypt.comm.exception.MessageRejectedException;
 import silentcrypt.comm.incoming.Filter;
 import silentcrypt.comm.server.Host;
 import silentcrypt.comm.server.ServerConn;
+import silentcrypt.util.KeyPairPool;
 import silentcrypt.util.RsaKeyPair;
 import silentcrypt.util.RsaUtil;
+import silentcrypt.util.Threads;
 import silentcrypt.util.U;
 
 /**
@@ -331,7 +333,7 @@ public class CertAuthComm
 		 */
 		public CertAuthClient certifyAsync(RSAKeyParameters key, Consumer<byte[]> listener, Consumer<Exception> exceptionHandler)
 		{
-			Thread thread = new Thread(() -> {
+			Threads.start("Certification Watchdog #" + hashCode(), true, () -> {
 				try
 				{
 					listener.accept(certify(key));
@@ -340,9 +342,6 @@ public class CertAuthComm
 					exceptionHandler.accept(ex);
 				}
 			});
-			thread.setDaemon(true);
-			thread.setName("Certification Watchdog #" + hashCode());
-			thread.start();
 			return this;
 		}
 
@@ -407,7 +406,7 @@ public class CertAuthComm
 		 */
 		public CertAuthClient queryAsync(Consumer<RSAKeyParameters> listener, Consumer<Exception> exceptionHandler)
 		{
-			Thread thread = new Thread(() -> {
+			Threads.start("Certification Watchdog #" + hashCode(), true, () -> {
 				try
 				{
 					listener.accept(query());
@@ -416,9 +415,6 @@ public class CertAuthComm
 					exceptionHandler.accept(ex);
 				}
 			});
-			thread.setDaemon(true);
-			thread.setName("Certification Watchdog #" + hashCode());
-			thread.start();
 			return this;
 		}
 
@@ -437,10 +433,13 @@ public class CertAuthComm
 	public static void main(String... strings) throws UnknownHostException, TimeoutException, MessageRejectedException, InterruptedException, InvalidCipherTextException
 	{
 		U.p("--- Starting Certification Authority Tests ---");
-		U.p("Generating my RSA key...");
+		U.p("Generating RSA keys...");
+		// The pool generates the CA's key in the background while we generate ours.
+		KeyPairPool pool = new KeyPairPool(RsaUtil.DEFAULT_KEY_SIZE, 1, 1);
 		RsaKeyPair myKey = RsaUtil.generateKeyPair();
-		U.p("Generating the CA's RSA key...");
-		RsaKeyPair caKey = RsaUtil.generateKeyPair();
+		RsaKeyPair caKey = pool.take();
+		U.p(pool.toString());
+		pool.close();
 
 		U.p("Starting CA...");
 		// Start CA thread.
@@ -1,6 +1,8 @@
 package silentcrypt.core;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -8,19 +10,28 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeoutException;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
 
 import silentcrypt.comm.MessageType;
 import silentcrypt.comm.communique.Communique;
 import silentcrypt.comm.communique.MetaSpace;
+import silentcrypt.comm.communique.SessionKeyCache;
 import silentcrypt.comm.exception.MessageRejectedException;
+import silentcrypt.comm.incoming.VerificationStage;
 import silentcrypt.core.CertAuthComm.CertAuthClient;
+import silentcrypt.util.EcdsaUtil;
+import silentcrypt.util.KeyFile;
 import silentcrypt.util.RsaKeyPair;
+import silentcrypt.util.U;
 
 public abstract class CommBase
 {
@@ -82,28 +93,78 @@ public abstract class CommBase
 	public static final int	HEARTBEAT_MILLIS	= 5 * 1000;
 
 	protected HashMap<String, Channel>													activeChannels	= new HashMap<>();
-	protected HashMap<String, UserData>													connectedUsers	= new HashMap<>();
+	protected ConcurrentHashMap<String, UserData>										connectedUsers	= new ConcurrentHashMap<>();
 	protected HashMap<MessageType, List<BiConsumer<Communique, Consumer<Communique>>>>	listeners		= new HashMap<>();
 	protected UserData																	me;
 	protected RsaKeyPair																myKey;
+	protected AsymmetricCipherKeyPair													signKey;
 	protected RSAKeyParameters															caPublic		= null;
+	protected VerificationStage															verifier;
+	protected KeyFile																	keyFile			= null;
+	protected SessionKeyCache															sessions		= new SessionKeyCache(1024, Duration.ofMinutes(10));
 
 	public CommBase(String username, RsaKeyPair myKey)
 	{
 		this.me = new UserData(username, myKey.getPublicRsa(), Instant.now(), -1, null);
 		this.myKey = myKey;
+		// Signing every message with the RSA key is expensive, so each session signs with its own EC key instead.
+		// The EC key is endorsed with the RSA key, so that peers can tell it's ours without trusting whoever relays it.
+		this.signKey = EcdsaUtil.generateKeyPair();
+		ECPublicKeyParameters signingKey = (ECPublicKeyParameters) this.signKey.getPublic();
+		this.me.setSigningKey(signingKey, EcdsaUtil.endorse(username, signingKey, myKey.getPrivateRsa()));
 
 		for (MessageType t : MessageType.values())
 			this.listeners.put(t, new ArrayList<>());
+
+		// Signatures are checked on their own threads ahead of processMsg, which then finds them already verified.
+		this.verifier = new VerificationStage(Math.max(1, Runtime.getRuntime().availableProcessors()), this::signerOf, this::processMsg);
+		this.verifier.setRejectionHandler((c, reply) -> reply.accept(generateRejectMessage(c, "Signature validation failed.")));
+	}
+
+	/**
+	 * Creates a new instance using the key stored in the given key file. If the file also holds a certificate and CA
+	 * key, {@link #registerWithCa(InetSocketAddress)} uses them instead of contacting the CA.
+	 *
+	 * @param username
+	 * @param keyFile
+	 */
+	public CommBase(String username, KeyFile keyFile)
+	{
+		this(username, keyFile.getKey());
+		this.keyFile = keyFile;
+		if (keyFile.getCaKey() != null && keyFile.getCert() != null)
+			try
+			{
+				this.me.setCert(keyFile.getCert(), keyFile.getCaKey());
+				this.caPublic = keyFile.getCaKey();
+			} catch (IllegalArgumentException ex)
+			{
+				U.w("Stored certificate in " + keyFile.getPath() + " is invalid; it will be reissued.");
+			}
 	}
 
 	public void registerWithCa(InetSocketAddress caAddr) throws TimeoutException, MessageRejectedException, IllegalArgumentException
 	{
+		if (this.caPublic != null && this.me.hasCert())
+			return;
 		CertAuthClient c = CertAuthComm.client(caAddr);
 		if (this.caPublic == null)
 			this.caPublic = c.query();
 		if (!this.me.hasCert())
 			this.me.setCert(c.certify(this.myKey.getPublicRsa()), this.caPublic);
+
+		if (this.keyFile != null)
+		{
+			this.keyFile.setCaKey(this.caPublic);
+			this.keyFile.setCert(this.me.getCert());
+			try
+			{
+				this.keyFile.save();
+			} catch (IOException ex)
+			{
+				U.e("Unable to save certificate to " + this.keyFile.getPath(), ex);
+			}
+		}
 	}
 
 	protected void processMsg(Communique msg, Consumer<Communique> reply)
@@ -132,6 +193,19 @@ public abstract class CommBase
 			this.listeners.get(t).add(listener);
 	}
 
+	/**
+	 * @param message
+	 * @return the key the given message must have been signed with, or null if its sender isn't known yet.
+	 */
+	protected AsymmetricKeyParameter signerOf(Communique message)
+	{
+		MessageType type = MessageType.get(message);
+		if (type == null || type == MessageType.AUTHENTICATION_REQUEST)
+			return null;
+		UserData user = this.connectedUsers.get(message.getField(1).data(String.class));
+		return user == null ? null : user.keyFor(message);
+	}
+
 	protected MessageType validate(Communique message, Consumer<Communique> reply)
 	{
 		if (!message.isSigned())
@@ -154,12 +228,15 @@ public abstract class CommBase
 				try
 				{
 					ud.setCert(cert, this.caPublic);
+					if (!ud.setSigningKey(message, 4))
+						throw new IllegalArgumentException("Signing key is not endorsed by " + username);
 				} catch (IllegalArgumentException ex)
 				{
 					reply.accept(generateRejectMessage(message, "Invalid certification supplied."));
 					return null;
 				}
 				this.connectedUsers.put(username, ud);
+				user = ud;
 			} else
 			{
 				reply.accept(generateRejectMessage(message, "User not authenticated."));
@@ -167,7 +244,7 @@ public abstract class CommBase
 			}
 		}
 
-		if (!message.validate(user.getPublicKey()))
+		if (!user.verify(message))
 		{
 			reply.accept(generateRejectMessage(message, "Signature validation failed."));
 			return null;
@@ -7,33 +7,61 @@ import java.util.function.BiConsumer;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
 
 import silentcrypt.comm.MessageType;
+import silentcrypt.comm.communique.BatchSigner;
 import silentcrypt.comm.communique.Communique;
 import silentcrypt.comm.communique.Datatype;
 import silentcrypt.comm.communique.Encoding;
 import silentcrypt.comm.communique.MetaSpace;
+import silentcrypt.comm.communique.SignatureScheme;
 import silentcrypt.comm.exception.MessageRejectedException;
 import silentcrypt.comm.server.ServerConn;
 import silentcrypt.util.AesUtil;
+import silentcrypt.util.KeyFile;
 import silentcrypt.util.RsaKeyPair;
 import silentcrypt.util.U;
 
 public class CommClient extends CommBase
 {
-	private ServerConn server;
+	private ServerConn			server;
+	private BatchSigner			batcher;
 
 	public CommClient(String username, RsaKeyPair myKey, InetSocketAddress addr, InetSocketAddress caAddr) throws TimeoutException, MessageRejectedException
 	{
 		super(username, myKey);
+		connect(username, addr, caAddr);
+	}
+
+	/**
+	 * Creates a client using the key, certificate and CA key stored in the given key file. When the file already holds
+	 * a certificate, the CA is not contacted.
+	 *
+	 * @param username
+	 * @param keyFile
+	 * @param addr
+	 * @param caAddr
+	 * @throws TimeoutException
+	 * @throws MessageRejectedException
+	 */
+	public CommClient(String username, KeyFile keyFile, InetSocketAddress addr, InetSocketAddress caAddr) throws TimeoutException, MessageRejectedException
+	{
+		super(username, keyFile);
+		connect(username, addr, caAddr);
+	}
+
+	private void connect(String username, InetSocketAddress addr, InetSocketAddress caAddr) throws TimeoutException, MessageRejectedException
+	{
+		RsaKeyPair myKey = this.myKey;
 		if (addr.getPort() == 0)
 			addr = new InetSocketAddress(addr.getAddress(), CommBase.DEFAULT_PORT);
 
 		registerWithCa(caAddr);
 
 		Communique authReq = MessageType.AUTHENTICATION_REQUEST.create(username);
-		authReq.add(myKey.getPublicRsa()).add(this.me.getCert());
+		// The session signing key travels with its endorsement by our RSA key, which binds it to our certified identity.
+		this.me.addSigningKey(authReq.add(myKey.getPublicRsa()).add(this.me.getCert()));
 		authReq.getMetaSpace().set(MetaSpace.RSA_SELF, myKey);
 
-		this.server = ServerConn.get(addr).listen(this::processMsg).send(authReq);
+		this.server = ServerConn.get(addr).listen(this.verifier).send(authReq.sign(SignatureScheme.Rsa));
 
 		listen(this::processMessageReject, MessageType.MESSAGE_REJECT);
 		listen(this::processInformationResponse, MessageType.INFORMATION_RESPONSE);
@@ -47,7 +75,7 @@ public class CommClient extends CommBase
 		listen(this::processServerLeaveAnnouncement, MessageType.SERVER_LEAVE_ANNOUNCEMENT);
 
 		Communique infoReq = MessageType.INFORMATION_REQUEST.create(username);
-		infoReq.getMetaSpace().set(MetaSpace.RSA_SELF, myKey);
+		infoReq.getMetaSpace().set(MetaSpace.RSA_SELF, myKey).set(MetaSpace.SIGN_SELF, this.signKey);
 		this.server.send(infoReq);
 	}
 
@@ -112,21 +140,22 @@ public class CommClient extends CommBase
 			return;
 		}
 		Communique acceptJoin = MessageType.CHANNEL_JOIN_ACCEPT.create(this.me.getUsername());
-		acceptJoin.add(channelname).add(username).add(Encoding.RsaEncrypt, channel.getKey());
-		acceptJoin.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.RSA_EXTERN, user.getPublicKey());
+		acceptJoin.add(channelname).add(username).add(Encoding.Session, channel.getKey());
+		acceptJoin.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SIGN_SELF, this.signKey).set(MetaSpace.RSA_EXTERN, user.getPublicKey())
+				.set(MetaSpace.SESSIONS, this.sessions);
 		this.server.send(acceptJoin.sign());
 	}
 
 	private void rejectChannelJoinAuth(String channelName, String client)
 	{
 		Communique msg = MessageType.CHANNEL_JOIN_REJECT.create(this.me.getUsername());
-		msg.add(channelName).add(client).getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey);
+		msg.add(channelName).add(client).getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SIGN_SELF, this.signKey);
 		this.server.send(msg.sign());
 	}
 
 	private void processChannelJoinAccept(Communique msg)
 	{
-		msg.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey);
+		msg.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SESSIONS, this.sessions);
 		String chanName = msg.getField(2).data(String.class);
 		Channel chan = this.activeChannels.get(chanName);
 		if (chan == null)
@@ -179,6 +208,11 @@ public class CommClient extends CommBase
 		byte[] cert = msg.getField(3).data(byte[].class);
 		UserData user = new UserData(username, publicKey, msg.getTimestamp(), -1, this.server::send);
 		user.setCert(cert, this.caPublic);
+		if (!user.setSigningKey(msg, 4))
+		{
+			U.e("Ignoring " + username + "; their signing key is not endorsed by their RSA key.");
+			return;
+		}
 		this.connectedUsers.put(username, user);
 	}
 
@@ -189,6 +223,41 @@ public class CommClient extends CommBase
 		this.activeChannels.values().forEach(c -> c.users.remove(username));
 	}
 
+	/**
+	 * Enables batch signing of channel and user messages. Messages are held for up to the given window and signed
+	 * together, trading a little latency for far fewer signatures when sending at a high rate.
+	 *
+	 * @param maxMessages
+	 *            the most messages to sign together, or 0 to sign each message individually.
+	 * @param windowMillis
+	 * @return this object.
+	 */
+	public CommClient setBatchSigning(int maxMessages, long windowMillis)
+	{
+		// Held across the swap, so that every message goes either to the old signer before it's flushed or to the new
+		// one.
+		synchronized (this)
+		{
+			if (this.batcher != null)
+				this.batcher.close();
+			this.batcher = maxMessages > 0 ? new BatchSigner(maxMessages, windowMillis, this.server::send).start() : null;
+		}
+		return this;
+	}
+
+	private void sendSigned(Communique c)
+	{
+		synchronized (this)
+		{
+			if (this.batcher != null)
+			{
+				this.batcher.submit(c);
+				return;
+			}
+		}
+		this.server.send(c.sign());
+	}
+
 	public void sendChannelMessage(String channel, byte[] data)
 	{
 		Channel chan = this.activeChannels.get(channel);
@@ -199,8 +268,8 @@ public class CommClient extends CommBase
 			throw new IllegalArgumentException("Not in channel: " + channel);
 		Communique c = MessageType.CHANNEL_MESSAGE.create(this.me.getUsername());
 		c.add(channel).add(Datatype.BINARY_BLOB, Encoding.Aes, data);
-		c.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.AES_KEY, channelKey);
-		this.server.send(c.sign());
+		c.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SIGN_SELF, this.signKey).set(MetaSpace.AES_KEY, channelKey);
+		sendSigned(c);
 	}
 
 	public void sendUserMessage(String username, byte[] data)
@@ -209,9 +278,10 @@ public class CommClient extends CommBase
 		if (user == null)
 			throw new IllegalArgumentException("Unknown user: " + username);
 		Communique c = MessageType.CLIENT_MESSAGE.create(this.me.getUsername());
-		c.add(username).add(Datatype.BINARY_BLOB, Encoding.RsaEncrypt, data);
-		c.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.RSA_EXTERN, user.getPublicKey());
-		this.server.send(c.sign());
+		c.add(username).add(Datatype.BINARY_BLOB, Encoding.Session, data);
+		c.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SIGN_SELF, this.signKey).set(MetaSpace.RSA_EXTERN, user.getPublicKey())
+				.set(MetaSpace.SESSIONS, this.sessions);
+		sendSigned(c);
 	}
 
 	public CommClient createChannel(String channelName)
@@ -220,7 +290,7 @@ public class CommClient extends CommBase
 			throw new IllegalArgumentException("Channel already exists.");
 
 		Communique msg = MessageType.CHANNEL_CREATE_REQUEST.create(this.me.getUsername());
-		msg.add(channelName).getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey);
+		msg.add(channelName).getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SIGN_SELF, this.signKey);
 		this.server.send(msg.sign());
 		Channel channel = new Channel(channelName);
 		channel.setKey(AesUtil.randomKey());
@@ -242,7 +312,7 @@ public class CommClient extends CommBase
 	public CommClient listenToUsers(BiConsumer<String, byte[]> listener)
 	{
 		listen(c -> {
-			c.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey);
+			c.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SESSIONS, this.sessions);
 			String username = c.getField(1).data(String.class);
 			byte[] data = c.getField(3).data(byte[].class);
 			listener.accept(username, data);
@@ -11,8 +11,10 @@ import org.bouncycastle.crypto.params.RSAKeyParameters;
 import silentcrypt.comm.MessageType;
 import silentcrypt.comm.communique.Communique;
 import silentcrypt.comm.communique.MetaSpace;
+import silentcrypt.comm.communique.SignatureScheme;
 import silentcrypt.comm.exception.MessageRejectedException;
 import silentcrypt.comm.server.Host;
+import silentcrypt.util.KeyFile;
 import silentcrypt.util.RsaKeyPair;
 import silentcrypt.util.U;
 
@@ -23,11 +25,32 @@ public class CommServer extends CommBase
 	public CommServer(RsaKeyPair myKey, InetSocketAddress caAddr, int port) throws MessageRejectedException, TimeoutException
 	{
 		super("SC-SRV", myKey);
+		start(caAddr, port);
+	}
+
+	/**
+	 * Creates a server using the key, certificate and CA key stored in the given key file. When the file already holds
+	 * a certificate, the CA is not contacted.
+	 *
+	 * @param keyFile
+	 * @param caAddr
+	 * @param port
+	 * @throws MessageRejectedException
+	 * @throws TimeoutException
+	 */
+	public CommServer(KeyFile keyFile, InetSocketAddress caAddr, int port) throws MessageRejectedException, TimeoutException
+	{
+		super("SC-SRV", keyFile);
+		start(caAddr, port);
+	}
 
+	private void start(InetSocketAddress caAddr, int port) throws MessageRejectedException, TimeoutException
+	{
 		if (port == 0)
 			port = CommBase.DEFAULT_PORT;
 
 		this.server = Host.start(port);
+		this.server.listen(this.verifier);
 
 		registerWithCa(caAddr);
 
@@ -59,21 +82,40 @@ public class CommServer extends CommBase
 		RSAKeyParameters publicKey = msg.getField(2).data(RSAKeyParameters.class);
 		byte[] cert = msg.getField(3).data(byte[].class);
 
+		// Requests are exempt from the usual checks, since the sender isn't known yet. Nothing in one is trusted until
+		// it's shown to come from the holder of the presented key.
+		if (msg.getSignatureScheme() != SignatureScheme.Rsa || !msg.validate(publicKey))
+		{
+			reply.accept(generateRejectMessage(msg, "Signature validation failed."));
+			return;
+		}
+
 		Communique r = MessageType.AUTHENTICATION_RESPONSE.create(this.me.getUsername());
 		r.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.RSA_EXTERN, publicKey);
-		r.add(this.me.getPublicKey()).add(this.me.getCert());
+		this.me.addSigningKey(r.add(this.me.getPublicKey()).add(this.me.getCert()));
 
 		UserData user = this.connectedUsers.get(username);
 		if (user != null)
 		{
-			if (U.keyEquals(user.getPublicKey(), publicKey))
+			if (!U.keyEquals(user.getPublicKey(), publicKey))
+			{
+				reply.accept(generateRejectMessage(msg, "Username " + username + " already in use."));
+				return;
+			}
+			// A replayed request would otherwise redirect the user's replies to whoever replayed it.
+			if (!user.updateLastMessage(msg.getTimestamp()))
 			{
-				user.setConnectionId(msg.getConnectionId());
-				user.setReplyTo(reply);
-				reply.accept(r);
+				reply.accept(generateRejectMessage(msg, "Invalid timestamp."));
 				return;
 			}
-			reply.accept(generateRejectMessage(msg, "Username " + username + " already in use."));
+			if (!user.setSigningKey(msg, 4))
+			{
+				reply.accept(generateRejectMessage(msg, "Invalid signing key."));
+				return;
+			}
+			user.setConnectionId(msg.getConnectionId());
+			user.setReplyTo(reply);
+			reply.accept(r);
 			return;
 		}
 
@@ -81,18 +123,27 @@ public class CommServer extends CommBase
 		{
 			user = new UserData(username, publicKey, msg.getTimestamp(), msg.getConnectionId(), reply);
 			user.setCert(cert, this.caPublic);
-			Communique announcement = MessageType.SERVER_JOIN_ANNOUNCEMENT.create(username);
-			announcement.add(publicKey).add(cert).getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey);
-			announcement.sign();
-
-			// Tell everyone else about our new friend.
-			this.connectedUsers.values().forEach(ud -> ud.replyTo(announcement));
-			this.connectedUsers.put(username, user);
-			reply.accept(r.sign());
 		} catch (IllegalArgumentException ex)
 		{
 			reply.accept(generateRejectMessage(msg, "Invalid certificate."));
+			return;
+		}
+		if (!user.setSigningKey(msg, 4))
+		{
+			reply.accept(generateRejectMessage(msg, "Invalid signing key."));
+			return;
 		}
+
+		// Peers check the endorsement themselves, rather than taking our word for the signing key.
+		Communique announcement = MessageType.SERVER_JOIN_ANNOUNCEMENT.create(username);
+		user.addSigningKey(announcement.add(publicKey).add(cert));
+		announcement.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SIGN_SELF, this.signKey);
+		announcement.sign();
+
+		// Tell everyone else about our new friend.
+		this.connectedUsers.values().forEach(ud -> ud.replyTo(announcement));
+		this.connectedUsers.put(username, user);
+		reply.accept(r.sign());
 	}
 
 	private void processInformationRequest(Communique msg, Consumer<Communique> reply)
@@ -102,7 +153,7 @@ public class CommServer extends CommBase
 
 		String channelName = "";
 		Communique r = MessageType.INFORMATION_RESPONSE.create(this.me.getUsername());
-		r.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey);
+		r.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SIGN_SELF, this.signKey);
 
 		if (msg.fieldCount() >= 2)
 			channelName = msg.getField(2).data(String.class);
@@ -139,8 +190,8 @@ public class CommServer extends CommBase
 		try
 		{
 			// Forward message to someone in the channel.
-			msg.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey);
-			channel.users.values().stream().findFirst().get().replyTo(msg.sign());
+			msg.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SIGN_SELF, this.signKey);
+			channel.users.values().stream().findFirst().get().replyTo(msg.relay());
 		} catch (NoSuchElementException ex)
 		{
 			// We should never be here... this is bad.
@@ -166,7 +217,7 @@ public class CommServer extends CommBase
 		channel.users.put(user.getUsername(), user);
 
 		Communique announcement = MessageType.CHANNEL_CREATION_ANNOUNCEMENT.create(this.me.getUsername());
-		announcement.add(channelName).add(user.getUsername()).getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey);
+		announcement.add(channelName).add(user.getUsername()).getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SIGN_SELF, this.signKey);
 		announcement.sign();
 		this.connectedUsers.values().forEach(ud -> ud.replyTo(announcement));
 	}
@@ -203,8 +254,9 @@ public class CommServer extends CommBase
 			return;
 		}
 
-		msg.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey);
-		msg.sign();
+		// Pass the sender's signed payload through untouched; only the routing fields above are ever unpacked.
+		msg.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SIGN_SELF, this.signKey);
+		msg.relay();
 		channel.users.values().forEach(ud -> {
 			// Forward to the channel.
 			if (!Objects.equals(user.getUsername(), ud.getUsername()))
@@ -225,9 +277,8 @@ public class CommServer extends CommBase
 			return;
 		}
 
-		msg.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey);
-		msg.sign();
-		target.replyTo(msg);
+		msg.getMetaSpace().set(MetaSpace.RSA_SELF, this.myKey).set(MetaSpace.SIGN_SELF, this.signKey);
+		target.replyTo(msg.relay());
 	}
 
 	public boolean isAlive()
@@ -1,18 +1,25 @@
 package silentcrypt.core;
 
 import java.time.Instant;
-import java.util.Objects;
 import java.util.function.Consumer;
 
 import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
 
 import silentcrypt.comm.communique.Communique;
+import silentcrypt.comm.communique.SignatureScheme;
+import silentcrypt.util.EcdsaUtil;
 import silentcrypt.util.RsaUtil;
+import silentcrypt.util.U;
+import silentcrypt.util.VerificationCache;
 
 public class UserData
 {
 	private RSAKeyParameters		publicKey;
+	private ECPublicKeyParameters	signingKey	= null;
+	private byte[]					endorsement	= null;
 	private byte[]					certificate	= null;
 	private String					username;
 	private Instant					lastMessage;
@@ -29,17 +36,21 @@ public class UserData
 	}
 
 	public void setCert(byte[] cert, RSAKeyParameters caKey) throws IllegalArgumentException
+	{
+		// The same certificate is presented every time a user is announced, so it is usually already verified.
+		if (!VerificationCache.get().verify(caKey, RsaUtil.toBytes(this.publicKey), cert, () -> checkCert(cert, caKey)))
+			throw new IllegalArgumentException("Signed certificate does not match given certificate.");
+		this.certificate = cert;
+	}
+
+	private boolean checkCert(byte[] cert, RSAKeyParameters caKey)
 	{
 		try
 		{
-			byte[] plainCert = RsaUtil.decrypt(cert, caKey);
-			if (Objects.equals(RsaUtil.fromBytes(plainCert), (this.publicKey)))
-				this.certificate = cert;
-			else
-				throw new IllegalArgumentException("Signed certificate does not match given certificate.");
-		} catch (InvalidCipherTextException e)
+			return U.keyEquals(RsaUtil.fromBytes(RsaUtil.decrypt(cert, caKey)), this.publicKey);
+		} catch (InvalidCipherTextException | RuntimeException e)
 		{
-			throw new IllegalArgumentException("Signed certificate does not match given certificate.", e);
+			return false;
 		}
 	}
 
@@ -68,6 +79,98 @@ public class UserData
 		return this.publicKey;
 	}
 
+	/**
+	 * @return the key this user signs messages with during the current session, or null if they only sign with their
+	 *         RSA key.
+	 */
+	public ECPublicKeyParameters getSigningKey()
+	{
+		return this.signingKey;
+	}
+
+	/**
+	 * @return this user's RSA signature over their signing key, or null if they have none.
+	 */
+	public byte[] getSigningKeyEndorsement()
+	{
+		return this.endorsement;
+	}
+
+	/**
+	 * Sets the key this user signs messages with during the current session, provided it was endorsed by their RSA
+	 * key. A null key clears it.
+	 *
+	 * @param signingKey
+	 * @param endorsement
+	 * @return false, leaving the current key in place, if the endorsement doesn't match.
+	 */
+	boolean setSigningKey(ECPublicKeyParameters signingKey, byte[] endorsement)
+	{
+		if (signingKey != null && (endorsement == null || !EcdsaUtil.isEndorsed(this.username, signingKey, endorsement, this.publicKey)))
+			return false;
+		this.signingKey = signingKey;
+		this.endorsement = signingKey == null ? null : endorsement;
+		return true;
+	}
+
+	/**
+	 * Reads a signing key and its endorsement from the given field of a message and the one after it, as written by
+	 * {@link #addSigningKey(Communique)}. If the message ends before the given field, the signing key is cleared.
+	 *
+	 * @param message
+	 * @param index
+	 * @return false, leaving the current key in place, if the key is malformed or not endorsed by this user.
+	 */
+	boolean setSigningKey(Communique message, int index)
+	{
+		if (message.fieldCount() <= index)
+			return setSigningKey(null, null);
+		try
+		{
+			ECPublicKeyParameters key = EcdsaUtil.fromBytes(message.getField(index).data(byte[].class));
+			byte[] endorsement = message.fieldCount() > index + 1 ? message.getField(index + 1).data(byte[].class) : null;
+			return setSigningKey(key, endorsement);
+		} catch (IllegalArgumentException | ClassCastException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Adds this user's signing key and its endorsement to the given message, if they have one.
+	 *
+	 * @param message
+	 * @return the message.
+	 */
+	Communique addSigningKey(Communique message)
+	{
+		if (this.signingKey != null)
+			message.add(EcdsaUtil.toBytes(this.signingKey)).add(this.endorsement);
+		return message;
+	}
+
+	/**
+	 * @param message
+	 * @return true iff the given message was signed by this user, using whichever of their keys matches the message's
+	 *         signature scheme.
+	 */
+	public boolean verify(Communique message)
+	{
+		AsymmetricKeyParameter key = keyFor(message);
+		return key != null && message.validate(key);
+	}
+
+	/**
+	 * @param message
+	 * @return the key of this user's which matches the given message's signature scheme, or null if they have none.
+	 */
+	public AsymmetricKeyParameter keyFor(Communique message)
+	{
+		if (message.getSignatureScheme() == SignatureScheme.Rsa)
+			return this.publicKey;
+		return this.signingKey;
+	}
+
 	public String getUsername()
 	{
 		return this.username;
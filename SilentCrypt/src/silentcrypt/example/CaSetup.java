@@ -1,17 +1,22 @@
 package silentcrypt.example;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
 import silentcrypt.comm.communique.Communique;
 import silentcrypt.comm.communique.Datatype;
 import silentcrypt.core.CertAuthComm;
 import silentcrypt.core.CertAuthComm.CertAuthHost;
+import silentcrypt.util.KeyFile;
 import silentcrypt.util.RsaKeyPair;
 import silentcrypt.util.RsaUtil;
 
 public class CaSetup
 {
-	public static void main(String... strings) throws InterruptedException
+	public static void main(String... strings) throws InterruptedException, IOException
 	{
-		RsaKeyPair myKey = RsaUtil.generateKeyPair();
+		// Certificates issued by the CA are only valid for as long as it keeps its key, so it is kept across runs.
+		RsaKeyPair myKey = KeyFile.open(Paths.get("ca.keys"), RsaUtil::generateKeyPair).getKey();
 		// Start server and provide our verification requirements
 		CertAuthHost host = CertAuthComm.host(myKey).requireCertVerification(CaSetup::verifyCertReq).start();
 		while (host.isAlive())
@@ -3,10 +3,11 @@ package silentcrypt.example;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 import java.util.concurrent.TimeoutException;
 
 import silentcrypt.core.CommClient;
-import silentcrypt.util.RsaKeyPair;
+import silentcrypt.util.KeyFile;
 import silentcrypt.util.RsaUtil;
 
 public class ClientSetup
@@ -20,7 +21,7 @@ public class ClientSetup
 		// The address of our Server
 		InetSocketAddress srvAddr = new InetSocketAddress(InetAddress.getLocalHost(), 0);
 
-		RsaKeyPair myKey = RsaUtil.generateKeyPair();
+		KeyFile myKey = KeyFile.open(Paths.get("client.keys"), RsaUtil::generateKeyPair);
 		String username = "Silent Crypt Test!";
 
 		serverConnection = new CommClient(username, myKey, srvAddr, caAddr);
@@ -3,10 +3,11 @@ package silentcrypt.example;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 import java.util.concurrent.TimeoutException;
 
 import silentcrypt.core.CommServer;
-import silentcrypt.util.RsaKeyPair;
+import silentcrypt.util.KeyFile;
 import silentcrypt.util.RsaUtil;
 
 public class ServerSetup
@@ -15,7 +16,8 @@ public class ServerSetup
 	{
 		// Talk over local host using the CA default port.
 		InetSocketAddress caAddr = new InetSocketAddress(InetAddress.getLocalHost(), 0);
-		RsaKeyPair myKey = RsaUtil.generateKeyPair();
+		// Reuse the key and certificate from the last run, if there was one.
+		KeyFile myKey = KeyFile.open(Paths.get("server.keys"), RsaUtil::generateKeyPair);
 
 		// Start up a comm host over the default SC Server port.
 		CommServer host = new CommServer(myKey, caAddr, 0);
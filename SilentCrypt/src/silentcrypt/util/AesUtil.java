@@ -1,18 +1,31 @@
 package silentcrypt.util;
 
 import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
 
 import org.bouncycastle.crypto.DataLengthException;
 import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.modes.SICBlockCipher;
 import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
 import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
 
 /**
  * Provides support for AES-256 encryption.
+ * <p>
+ * All of the static methods are thread safe. Each thread has its own cipher engines, and keeps the most recently used
+ * keys already expanded, so repeatedly encrypting with the same channel key never pays for the key schedule more than
+ * once per thread.
+ * <p>
+ * Two modes are offered. The default CBC mode pads its output and must be processed sequentially. Counter (CTR) mode
+ * produces exactly as many bytes as it consumes (plus a nonce) and any part of a message can be processed
+ * independently, so large messages are split into segments which are processed in parallel.
  *
  * @author Michael Wells
  */
@@ -23,7 +36,39 @@ public class AesUtil
 	 */
 	public static final int AES_KEY_SIZE = 32;
 
-	private static final AesUtil cipher = new AesUtil();
+	/**
+	 * Number of bytes in an AES block.
+	 */
+	public static final int AES_BLOCK_SIZE = 16;
+
+	/**
+	 * Number of bytes in the nonce which starts every CTR message.
+	 */
+	public static final int CTR_NONCE_SIZE = 16;
+
+	/**
+	 * Number of random bytes in a CTR nonce. The remainder is the block counter, which starts at zero.
+	 */
+	private static final int CTR_RANDOM_SIZE = 12;
+
+	/**
+	 * Number of bytes each worker processes at once in CTR mode. Must be a multiple of the block size.
+	 */
+	private static final int CTR_SEGMENT_SIZE = 64 * 1024;
+
+	/**
+	 * Messages with fewer segments than this are processed on the calling thread.
+	 */
+	private static final int CTR_PARALLEL_SEGMENTS = 4;
+
+	/**
+	 * Number of expanded keys each thread keeps ready for use.
+	 */
+	private static final int KEY_CACHE_SIZE = 16;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private static final ThreadLocal<AesUtil> cipher = ThreadLocal.withInitial(AesUtil::new);
 
 	/**
 	 * Performs AES-256 decryption using the given key and input. Expects to see padded CBC blocks to mask the length of
@@ -38,7 +83,13 @@ public class AesUtil
 	 */
 	public static byte[] decrypt(byte[] key, byte[] input) throws InvalidCipherTextException
 	{
-		return AesUtil.cipher.setKey(key).decrypt(input);
+		return decrypt(key, input, true);
+	}
+
+	static byte[] decrypt(byte[] key, byte[] input, boolean cacheKey) throws InvalidCipherTextException
+	{
+		AesUtil local = AesUtil.cipher.get();
+		return local.finish(local.process(key, cacheKey, false, input, 0, input.length, local.output(input.length)));
 	}
 
 	public static ByteBuffer decrypt(ByteBuffer key, byte[] input) throws InvalidCipherTextException
@@ -46,6 +97,36 @@ public class AesUtil
 		return ByteBuffer.wrap(decrypt(U.toBytes(key), input));
 	}
 
+	/**
+	 * Decrypts the remaining bytes of the input buffer.
+	 *
+	 * @param key
+	 * @param input
+	 * @return a new buffer containing exactly the decrypted data.
+	 * @throws InvalidCipherTextException
+	 */
+	public static ByteBuffer decrypt(byte[] key, ByteBuffer input) throws InvalidCipherTextException
+	{
+		ByteBuffer res = ByteBuffer.allocate(input.remaining());
+		decrypt(key, input, res);
+		return ByteBuffer.wrap(Arrays.copyOf(res.array(), res.position()));
+	}
+
+	/**
+	 * Decrypts the remaining bytes of the input buffer into the output buffer, advancing both. The output must have at
+	 * least as many bytes remaining as the input.
+	 *
+	 * @param key
+	 * @param input
+	 * @param output
+	 * @return the number of bytes written to the output buffer.
+	 * @throws InvalidCipherTextException
+	 */
+	public static int decrypt(byte[] key, ByteBuffer input, ByteBuffer output) throws InvalidCipherTextException
+	{
+		return AesUtil.cipher.get().process(key, false, input, output);
+	}
+
 	/**
 	 * Performs AES-256 encryption using the given key and input. Performs encryption using padded CBC blocks to mask
 	 * the length of data.
@@ -59,7 +140,13 @@ public class AesUtil
 	 */
 	public static byte[] encrypt(byte[] key, byte[] input) throws InvalidCipherTextException
 	{
-		return AesUtil.cipher.setKey(key).encrypt(input);
+		return encrypt(key, input, true);
+	}
+
+	static byte[] encrypt(byte[] key, byte[] input, boolean cacheKey) throws InvalidCipherTextException
+	{
+		AesUtil local = AesUtil.cipher.get();
+		return local.finish(local.process(key, cacheKey, true, input, 0, input.length, local.output(encryptedSize(input.length))));
 	}
 
 	public static ByteBuffer encrypt(ByteBuffer key, byte[] input) throws InvalidCipherTextException
@@ -67,47 +154,349 @@ public class AesUtil
 		return ByteBuffer.wrap(encrypt(U.toBytes(key), input));
 	}
 
-	private final PaddedBufferedBlockCipher aesCipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()));
+	/**
+	 * Encrypts the remaining bytes of the input buffer.
+	 *
+	 * @param key
+	 * @param input
+	 * @return a new buffer containing exactly the encrypted data.
+	 * @throws InvalidCipherTextException
+	 */
+	public static ByteBuffer encrypt(byte[] key, ByteBuffer input) throws InvalidCipherTextException
+	{
+		ByteBuffer res = ByteBuffer.allocate(encryptedSize(input.remaining()));
+		encrypt(key, input, res);
+		res.flip();
+		return res;
+	}
 
-	private byte[]			outputBuffer	= new byte[2048];
-	private KeyParameter	key				= null;
+	/**
+	 * Encrypts the remaining bytes of the input buffer into the output buffer, advancing both. The output must have at
+	 * least {@link #encryptedSize(int)} bytes remaining.
+	 *
+	 * @param key
+	 * @param input
+	 * @param output
+	 * @return the number of bytes written to the output buffer.
+	 * @throws InvalidCipherTextException
+	 */
+	public static int encrypt(byte[] key, ByteBuffer input, ByteBuffer output) throws InvalidCipherTextException
+	{
+		return AesUtil.cipher.get().process(key, true, input, output);
+	}
 
-	private AesUtil()
+	/**
+	 * Performs AES-256 encryption in counter mode. The result is a random nonce followed by the encrypted data, which is
+	 * exactly as long as the input. Large inputs are encrypted in parallel.
+	 *
+	 * @param key
+	 *            The key to encrypt with. It will be padded or truncated to ensure 256 bits.
+	 * @param input
+	 *            The data to encrypt; its remaining bytes are consumed.
+	 * @return a new buffer containing the nonce and encrypted data.
+	 */
+	public static ByteBuffer encryptCtr(byte[] key, ByteBuffer input)
 	{
+		ByteBuffer res = ByteBuffer.allocate(CTR_NONCE_SIZE + input.remaining());
+		encryptCtr(key, input, res);
+		res.flip();
+		return res;
 	}
 
-	public byte[] decrypt(byte[] input) throws DataLengthException, InvalidCipherTextException
+	/**
+	 * Encrypts the remaining bytes of the input buffer into the output buffer in counter mode, advancing both. The
+	 * output receives the nonce followed by the encrypted data.
+	 *
+	 * @param key
+	 * @param input
+	 * @param output
+	 *            must have at least {@link #CTR_NONCE_SIZE} more bytes remaining than the input.
+	 */
+	public static void encryptCtr(byte[] key, ByteBuffer input, ByteBuffer output)
+	{
+		if (output.remaining() < CTR_NONCE_SIZE + input.remaining())
+			throw new DataLengthException("Output buffer too small; " + (CTR_NONCE_SIZE + input.remaining()) + " bytes required but only " + output.remaining() + " available.");
+		byte[] nonce = new byte[CTR_NONCE_SIZE];
+		byte[] random = new byte[CTR_RANDOM_SIZE];
+		AesUtil.random.nextBytes(random);
+		System.arraycopy(random, 0, nonce, 0, random.length);
+
+		output.put(nonce);
+		processCtr(key, nonce, input, output);
+	}
+
+	/**
+	 * Reverses {@link #encryptCtr(byte[], ByteBuffer)}.
+	 *
+	 * @param key
+	 * @param input
+	 *            The nonce and encrypted data; its remaining bytes are consumed.
+	 * @return a new buffer containing the decrypted data.
+	 * @throws InvalidCipherTextException
+	 *             if the input is too short to contain a nonce.
+	 */
+	public static ByteBuffer decryptCtr(byte[] key, ByteBuffer input) throws InvalidCipherTextException
+	{
+		ByteBuffer res = ByteBuffer.allocate(Math.max(0, input.remaining() - CTR_NONCE_SIZE));
+		decryptCtr(key, input, res);
+		res.flip();
+		return res;
+	}
+
+	/**
+	 * Reverses {@link #encryptCtr(byte[], ByteBuffer, ByteBuffer)}, advancing both buffers.
+	 *
+	 * @param key
+	 * @param input
+	 * @param output
+	 *            must have at least {@link #CTR_NONCE_SIZE} fewer bytes remaining than the input.
+	 * @throws InvalidCipherTextException
+	 *             if the input is too short to contain a nonce.
+	 */
+	public static void decryptCtr(byte[] key, ByteBuffer input, ByteBuffer output) throws InvalidCipherTextException
+	{
+		if (input.remaining() < CTR_NONCE_SIZE)
+			throw new InvalidCipherTextException("Counter mode data is missing its nonce.");
+		byte[] nonce = new byte[CTR_NONCE_SIZE];
+		input.get(nonce);
+		processCtr(key, nonce, input, output);
+	}
+
+	/**
+	 * Encrypts or decrypts (the two are the same operation in counter mode) the remaining bytes of the input buffer into
+	 * the output buffer, advancing both. Either buffer may be a slice of a larger buffer, read only (input) or direct;
+	 * array backed buffers are processed in place without any intermediate copies.
+	 *
+	 * @param key
+	 * @param nonce
+	 *            the {@link #CTR_NONCE_SIZE} byte nonce the data was or will be encrypted with.
+	 * @param input
+	 * @param output
+	 *            must have at least as many bytes remaining as the input.
+	 */
+	public static void processCtr(byte[] key, byte[] nonce, ByteBuffer input, ByteBuffer output)
+	{
+		int length = input.remaining();
+		if (output.remaining() < length)
+			throw new DataLengthException("Output buffer too small; " + length + " bytes required but only " + output.remaining() + " available.");
+
+		int segments = (length + CTR_SEGMENT_SIZE - 1) / CTR_SEGMENT_SIZE;
+		if (segments < CTR_PARALLEL_SEGMENTS)
+			AesUtil.cipher.get().ctrSegment(key, nonce, input, output, 0, length);
+		else
+			// Every worker seeks its own cipher to its segment, so segments can be processed in any order.
+			IntStream.range(0, segments).parallel().forEach(i -> {
+				int offset = i * CTR_SEGMENT_SIZE;
+				AesUtil.cipher.get().ctrSegment(key, nonce, input, output, offset, Math.min(CTR_SEGMENT_SIZE, length - offset));
+			});
+
+		input.position(input.position() + length);
+		output.position(output.position() + length);
+	}
+
+	/**
+	 * @param plainTextLength
+	 * @return the exact number of bytes produced by encrypting the given number of bytes.
+	 */
+	public static int encryptedSize(int plainTextLength)
 	{
-		return processing(input, false);
+		// PKCS7 padding always adds at least one byte.
+		return (plainTextLength / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE;
 	}
 
-	public byte[] encrypt(byte[] input) throws DataLengthException, InvalidCipherTextException
+	/**
+	 * The encrypting and decrypting ciphers for a single key. Each is initialized (and the key expanded) the first time
+	 * it's needed, and afterwards only reset between messages.
+	 */
+	private static class KeySchedule
 	{
-		return processing(input, true);
+		private final KeyParameter			key;
+		private PaddedBufferedBlockCipher	encrypt	= null;
+		private PaddedBufferedBlockCipher	decrypt	= null;
+		private SICBlockCipher				ctr		= null;
+
+		KeySchedule(byte[] key)
+		{
+			this.key = new KeyParameter(key);
+		}
+
+		PaddedBufferedBlockCipher get(boolean encrypt)
+		{
+			if (encrypt)
+			{
+				if (this.encrypt == null)
+					this.encrypt = init(true);
+				return this.encrypt;
+			}
+			if (this.decrypt == null)
+				this.decrypt = init(false);
+			return this.decrypt;
+		}
+
+		SICBlockCipher ctr(byte[] nonce)
+		{
+			if (this.ctr == null)
+			{
+				this.ctr = new SICBlockCipher(new AESEngine());
+				this.ctr.init(true, new ParametersWithIV(this.key, nonce));
+			} else
+				// Without a key parameter only the counter is replaced, and the expanded key is kept.
+				this.ctr.init(true, new ParametersWithIV(null, nonce));
+			return this.ctr;
+		}
+
+		private PaddedBufferedBlockCipher init(boolean encrypt)
+		{
+			PaddedBufferedBlockCipher res = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()));
+			res.init(encrypt, this.key);
+			return res;
+		}
 	}
 
-	private byte[] processing(byte[] input, boolean encrypt) throws DataLengthException, InvalidCipherTextException
+	// Keys are wrapped in ByteBuffers purely for their content based equals and hashCode.
+	private final Map<ByteBuffer, KeySchedule> keys = new LinkedHashMap<ByteBuffer, KeySchedule>(KEY_CACHE_SIZE * 2, 0.75f, true)
 	{
-		this.aesCipher.init(encrypt, this.key);
+		private static final long serialVersionUID = 1L;
 
-		int outputSize = this.aesCipher.getOutputSize(input.length);
-		if (outputSize > this.outputBuffer.length)
-			this.outputBuffer = new byte[outputSize * 2];
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, KeySchedule> eldest)
+		{
+			return size() > KEY_CACHE_SIZE;
+		}
+	};
 
-		int bytesWrittenOut = this.aesCipher.processBytes(input, 0, input.length, this.outputBuffer, 0);
-		bytesWrittenOut += this.aesCipher.doFinal(this.outputBuffer, bytesWrittenOut);
+	private byte[]	inputBuffer		= new byte[2048];
+	private byte[]	outputBuffer	= new byte[2048];
 
-		return Arrays.copyOf(this.outputBuffer, bytesWrittenOut);
+	private AesUtil()
+	{
 	}
 
-	public AesUtil setKey(byte[] key)
+	private KeySchedule schedule(byte[] key, boolean cache)
 	{
 		// Ensure 256 bit key.
 		if (key.length != AesUtil.AES_KEY_SIZE)
 			key = Arrays.copyOf(key, AesUtil.AES_KEY_SIZE);
+		if (!cache)
+			return new KeySchedule(key);
+
+		ByteBuffer id = ByteBuffer.wrap(key);
+		KeySchedule res = this.keys.get(id);
+		if (res == null)
+		{
+			// Copy the key so later changes to the caller's array can't corrupt the cache.
+			key = key.clone();
+			res = new KeySchedule(key);
+			this.keys.put(ByteBuffer.wrap(key), res);
+		}
+		return res;
+	}
+
+	private byte[] output(int size)
+	{
+		if (size > this.outputBuffer.length)
+			this.outputBuffer = new byte[size * 2];
+		return this.outputBuffer;
+	}
+
+	private byte[] finish(int length)
+	{
+		return Arrays.copyOf(this.outputBuffer, length);
+	}
+
+	private int process(byte[] key, boolean cacheKey, boolean encrypt, byte[] input, int offset, int length, byte[] output) throws DataLengthException, InvalidCipherTextException
+	{
+		return process(key, cacheKey, encrypt, input, offset, length, output, 0);
+	}
+
+	private int process(byte[] key, boolean cacheKey, boolean encrypt, byte[] input, int offset, int length, byte[] output, int outOffset)
+			throws DataLengthException, InvalidCipherTextException
+	{
+		PaddedBufferedBlockCipher aesCipher = schedule(key, cacheKey).get(encrypt);
+		try
+		{
+			int bytesWrittenOut = aesCipher.processBytes(input, offset, length, output, outOffset);
+			bytesWrittenOut += aesCipher.doFinal(output, outOffset + bytesWrittenOut);
+			return bytesWrittenOut;
+		} finally
+		{
+			// doFinal resets the cipher on success; make sure a failure doesn't leave a partial block behind either.
+			aesCipher.reset();
+		}
+	}
+
+	private int process(byte[] key, boolean encrypt, ByteBuffer input, ByteBuffer output) throws InvalidCipherTextException
+	{
+		int length = input.remaining();
+		int required = encrypt ? encryptedSize(length) : length;
+		if (output.remaining() < required)
+			throw new DataLengthException("Output buffer too small; " + required + " bytes required but only " + output.remaining() + " available.");
+
+		byte[] in;
+		int offset;
+		if (input.hasArray())
+		{
+			in = input.array();
+			offset = input.arrayOffset() + input.position();
+		} else
+		{
+			if (length > this.inputBuffer.length)
+				this.inputBuffer = new byte[length * 2];
+			in = this.inputBuffer;
+			offset = 0;
+			input.duplicate().get(in, 0, length);
+		}
+
+		int written;
+		if (output.hasArray())
+		{
+			// Write straight into the caller's buffer.
+			written = process(key, true, encrypt, in, offset, length, output.array(), output.arrayOffset() + output.position());
+			output.position(output.position() + written);
+		} else
+		{
+			written = process(key, true, encrypt, in, offset, length, output(required));
+			output.put(this.outputBuffer, 0, written);
+		}
+		input.position(input.position() + length);
+		return written;
+	}
+
+	/**
+	 * Processes the given range of a CTR message. The range is relative to the current positions of the buffers, and
+	 * neither buffer's position is changed.
+	 */
+	private void ctrSegment(byte[] key, byte[] nonce, ByteBuffer input, ByteBuffer output, int offset, int length)
+	{
+		SICBlockCipher ctr = schedule(key, true).ctr(nonce);
+		ctr.seekTo(offset);
+
+		byte[] in;
+		int inOffset;
+		if (input.hasArray())
+		{
+			in = input.array();
+			inOffset = input.arrayOffset() + input.position() + offset;
+		} else
+		{
+			if (length > this.inputBuffer.length)
+				this.inputBuffer = new byte[length];
+			in = this.inputBuffer;
+			inOffset = 0;
+			ByteBuffer src = input.duplicate();
+			src.position(src.position() + offset);
+			src.get(in, 0, length);
+		}
 
-		this.key = new KeyParameter(key);
-		return this;
+		if (output.hasArray())
+			ctr.processBytes(in, inOffset, length, output.array(), output.arrayOffset() + output.position() + offset);
+		else
+		{
+			ctr.processBytes(in, inOffset, length, output(length), 0);
+			ByteBuffer dst = output.duplicate();
+			dst.position(dst.position() + offset);
+			dst.put(this.outputBuffer, 0, length);
+		}
 	}
 
 	public static void main(String... strings) throws InvalidCipherTextException
@@ -129,7 +518,7 @@ public class AesUtil
 	public static byte[] randomKey()
 	{
 		byte[] aesKey = new byte[AES_KEY_SIZE];
-		new Random().nextBytes(aesKey);
+		AesUtil.random.nextBytes(aesKey);
 		return aesKey;
 	}
-}
\ No newline at end of file
+}
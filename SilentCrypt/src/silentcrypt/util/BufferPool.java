@@ -0,0 +1,147 @@
+package silentcrypt.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recycles heap ByteBuffers, so that code which needs a short lived buffer for each message doesn't leave one behind as
+ * garbage every time. Buffers are grouped by capacity into powers of two, and each group holds at most a fixed number
+ * of spare buffers; requests larger than the largest group are allocated and dropped as usual.
+ * <p>
+ * A buffer must not be used after it has been released, since it may already have been handed to another caller.
+ *
+ * @author Michael Wells
+ */
+public class BufferPool
+{
+	private static final int	MIN_SHIFT		= 8;
+	private static final int	DEFAULT_MAX		= 64 * 1024;
+	private static final int	DEFAULT_DEPTH	= 32;
+
+	private static BufferPool defaultPool = null;
+
+	/**
+	 * @return the pool shared by callers which haven't created their own. It pools buffers of up to 64 KB, holding up to
+	 *         32 spares of each size.
+	 */
+	public static synchronized BufferPool getDefault()
+	{
+		if (BufferPool.defaultPool == null)
+			BufferPool.defaultPool = new BufferPool(DEFAULT_MAX, DEFAULT_DEPTH);
+		return BufferPool.defaultPool;
+	}
+
+	/**
+	 * Replaces the pool returned by {@link #getDefault()}.
+	 *
+	 * @param pool
+	 */
+	public static synchronized void setDefault(BufferPool pool)
+	{
+		BufferPool.defaultPool = pool;
+	}
+
+	private final ArrayDeque<ByteBuffer>[]	spares;
+	private final int						depth;
+	private final LongAdder					hits	= new LongAdder();
+	private final LongAdder					misses	= new LongAdder();
+
+	/**
+	 * @param maxSize
+	 *            the capacity of the largest buffers to pool, rounded up to a power of two.
+	 * @param depth
+	 *            the number of spare buffers to hold of each size.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(int maxSize, int depth)
+	{
+		if (maxSize <= 0 || depth <= 0)
+			throw new IllegalArgumentException("Buffer pool size and depth must be positive.");
+		this.spares = new ArrayDeque[sizeClass(maxSize) + 1];
+		for (int i = 0; i < this.spares.length; i++)
+			this.spares[i] = new ArrayDeque<>(depth);
+		this.depth = depth;
+	}
+
+	/**
+	 * @param size
+	 * @return a cleared buffer with at least the given capacity, and its limit set to the given size.
+	 */
+	public ByteBuffer acquire(int size)
+	{
+		int sizeClass = sizeClass(size);
+		if (sizeClass >= this.spares.length)
+		{
+			this.misses.increment();
+			return ByteBuffer.allocate(size);
+		}
+
+		ByteBuffer res;
+		ArrayDeque<ByteBuffer> spares = this.spares[sizeClass];
+		synchronized (spares)
+		{
+			res = spares.pollFirst();
+		}
+		if (res == null)
+		{
+			this.misses.increment();
+			res = ByteBuffer.allocate(1 << (sizeClass + MIN_SHIFT));
+		} else
+			this.hits.increment();
+		res.clear();
+		res.limit(size);
+		return res;
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #acquire(int)} to the pool. Buffers which weren't allocated by a pool, or
+	 * which arrive once the pool already holds enough spares of their size, are left for the garbage collector.
+	 *
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		int capacity = buffer.capacity();
+		if (buffer.isReadOnly() || buffer.isDirect() || Integer.bitCount(capacity) != 1 || capacity < 1 << MIN_SHIFT)
+			return;
+		int sizeClass = sizeClass(capacity);
+		if (sizeClass >= this.spares.length)
+			return;
+		ArrayDeque<ByteBuffer> spares = this.spares[sizeClass];
+		synchronized (spares)
+		{
+			if (spares.size() < this.depth)
+				spares.addFirst(buffer);
+		}
+	}
+
+	/**
+	 * @return the number of requests satisfied with a spare buffer.
+	 */
+	public long getHits()
+	{
+		return this.hits.sum();
+	}
+
+	/**
+	 * @return the number of requests which had to allocate a new buffer.
+	 */
+	public long getMisses()
+	{
+		return this.misses.sum();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("BufferPool hits:%d misses:%d", getHits(), getMisses());
+	}
+
+	private static int sizeClass(int size)
+	{
+		if (size <= 1 << MIN_SHIFT)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+}
@@ -0,0 +1,176 @@
+package silentcrypt.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Provides support for Deflate compression.
+ * <p>
+ * All of the static methods are thread safe. Each thread reuses its own Deflater and Inflater, which avoids both the
+ * cost of allocating their native buffers and the finalization which reclaims them.
+ * <p>
+ * Compressed data is [byte mode][int raw length][zlib stream] when compression helped, or [byte mode][raw data] when it
+ * didn't. A preset dictionary may be used to compress small fields, which share little with themselves but a great deal
+ * with other traffic. The zlib stream records which dictionary it was compressed with, so decompression only needs to
+ * be offered the right one.
+ *
+ * @author Michael Wells
+ */
+public class DeflateUtil
+{
+	/**
+	 * The largest amount of data which will be decompressed, so that a small field can't claim an enormous size.
+	 */
+	public static final int MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The most a deflate stream can expand, since even the cheapest match code produces only 258 bytes.
+	 */
+	private static final int MAX_RATIO = 1032;
+
+	/**
+	 * A dictionary of strings common in SilentCrypt traffic, encoded as they are sent. Later entries are cheaper to
+	 * refer to, so the most common appear last.
+	 */
+	public static final byte[] DEFAULT_DICTIONARY = dictionary("Error with certification request.", "Failed to fulfill certification request.",
+			"Signed certificate does not match given certificate.", "Invalid certification supplied.", "Invalid signing key.", "Channel already exists.",
+			"Channel does not exist.", "Unknown target.", "Invalid timestamp.", "Signature validation failed.", "User not authenticated.",
+			"Unknown user; client must authenticate.", "Message ignored.", "SC-RSA-0001", "Channel", "channel", "General", "TestChannel", "SC-SRV");
+
+	private static final int DEFAULT_DICTIONARY_ID = checksum(DEFAULT_DICTIONARY);
+
+	private static final byte	STORED		= 0;
+	private static final byte	DEFLATED	= 1;
+
+	private static final ThreadLocal<Deflater>	deflater	= ThreadLocal.withInitial(Deflater::new);
+	private static final ThreadLocal<Inflater>	inflater	= ThreadLocal.withInitial(Inflater::new);
+
+	/**
+	 * Compresses the remaining bytes of the given buffer.
+	 *
+	 * @param input
+	 * @param dictionary
+	 *            the preset dictionary to compress with, or null for none.
+	 * @return a new buffer containing the compressed data.
+	 */
+	public static ByteBuffer compress(ByteBuffer input, byte[] dictionary)
+	{
+		int length = input.remaining();
+		byte[] raw = remaining(input);
+
+		Deflater d = DeflateUtil.deflater.get();
+		d.reset();
+		if (dictionary != null)
+			d.setDictionary(dictionary);
+		d.setInput(raw);
+		d.finish();
+
+		// Output which isn't smaller than storing the data is useless, so there's no need to make room for it.
+		byte[] out = new byte[1 + Integer.BYTES + length];
+		int pos = 1 + Integer.BYTES;
+		while (!d.finished() && pos < out.length)
+			pos += d.deflate(out, pos, out.length - pos);
+
+		if (!d.finished() || pos >= 1 + length)
+		{
+			ByteBuffer res = ByteBuffer.allocate(1 + length).put(STORED).put(raw);
+			res.flip();
+			return res;
+		}
+		ByteBuffer res = ByteBuffer.wrap(out, 0, pos);
+		res.put(DEFLATED).putInt(length);
+		res.rewind();
+		return res;
+	}
+
+	/**
+	 * Reverses {@link #compress(ByteBuffer, byte[])}.
+	 *
+	 * @param input
+	 * @param dictionary
+	 *            the dictionary the data may have been compressed with, or null. The {@link #DEFAULT_DICTIONARY} is
+	 *            always available.
+	 * @return a new buffer containing the decompressed data.
+	 * @throws DataFormatException
+	 *             if the data is corrupt, or was compressed with an unknown dictionary.
+	 */
+	public static ByteBuffer decompress(ByteBuffer input, byte[] dictionary) throws DataFormatException
+	{
+		if (!input.hasRemaining())
+			throw new DataFormatException("Compressed data is missing its header.");
+		byte mode = input.get();
+		if (mode == STORED)
+			return ByteBuffer.wrap(remaining(input));
+		if (mode != DEFLATED || input.remaining() < Integer.BYTES)
+			throw new DataFormatException("Unknown compression mode: " + mode);
+
+		int length = input.getInt();
+		// The declared length is checked against what the stream could possibly hold before any room is made for it.
+		if (length < 0 || length > MAX_INFLATED_SIZE || length > (long) input.remaining() * MAX_RATIO)
+			throw new DataFormatException("Invalid decompressed length: " + length);
+
+		Inflater inf = DeflateUtil.inflater.get();
+		inf.reset();
+		inf.setInput(remaining(input));
+		byte[] out = new byte[length];
+		int pos = 0;
+		while (!inf.finished())
+		{
+			int n = inf.inflate(out, pos, out.length - pos);
+			pos += n;
+			if (n > 0)
+				continue;
+			if (inf.needsDictionary())
+				inf.setDictionary(pick(inf.getAdler(), dictionary));
+			else
+				throw new DataFormatException("Decompressed data does not match its declared length.");
+		}
+		if (pos != length)
+			throw new DataFormatException("Decompressed data does not match its declared length.");
+		return ByteBuffer.wrap(out);
+	}
+
+	private static byte[] pick(int adler, byte[] dictionary) throws DataFormatException
+	{
+		if (dictionary != null && checksum(dictionary) == adler)
+			return dictionary;
+		if (DEFAULT_DICTIONARY_ID == adler)
+			return DEFAULT_DICTIONARY;
+		throw new DataFormatException("Data was compressed with an unknown dictionary.");
+	}
+
+	private static byte[] remaining(ByteBuffer input)
+	{
+		byte[] res = new byte[input.remaining()];
+		input.get(res);
+		return res;
+	}
+
+	private static int checksum(byte[] data)
+	{
+		Adler32 adler = new Adler32();
+		adler.update(data, 0, data.length);
+		return (int) adler.getValue();
+	}
+
+	/**
+	 * Builds a preset dictionary out of the given strings, encoded the same way string fields are.
+	 *
+	 * @param entries
+	 * @return
+	 */
+	public static byte[] dictionary(String... entries)
+	{
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		for (String s : entries)
+		{
+			byte[] b = U.toBytes(s);
+			res.write(b, 0, b.length);
+		}
+		return res.toByteArray();
+	}
+}
@@ -0,0 +1,193 @@
+package silentcrypt.util;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.CryptoException;
+import org.bouncycastle.crypto.Signer;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.bouncycastle.crypto.signers.DSADigestSigner;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+import org.bouncycastle.crypto.signers.RSADigestSigner;
+
+/**
+ * Contains utility functions for working with ECDSA signatures over the NIST P-256 curve. Signing and verifying are
+ * orders of magnitude cheaper than the equivalent RSA operations, which makes these keys suitable for signing every
+ * message of a session.
+ *
+ * @author Michael Wells
+ */
+public class EcdsaUtil
+{
+	// Prefixed to everything covered by an endorsement, so that it can't be mistaken for a signature over anything else.
+	private static final byte[] ENDORSEMENT_TAG = U.toBytes("SC-ECDSA-ENDORSE-0001");
+
+	private static final X9ECParameters		curve	= CustomNamedCurves.getByName("secp256r1");
+	private static final ECDomainParameters	domain	= new ECDomainParameters(EcdsaUtil.curve.getCurve(), EcdsaUtil.curve.getG(), EcdsaUtil.curve.getN(),
+			EcdsaUtil.curve.getH(), EcdsaUtil.curve.getSeed());
+
+	/**
+	 * Generates a brand new P-256 key pair. Unlike RSA key generation, this is cheap.
+	 *
+	 * @return
+	 */
+	public static AsymmetricCipherKeyPair generateKeyPair()
+	{
+		ECKeyPairGenerator generator = new ECKeyPairGenerator();
+		generator.init(new ECKeyGenerationParameters(EcdsaUtil.domain, new SecureRandom()));
+		return generator.generateKeyPair();
+	}
+
+	/**
+	 * Signs the SHA-256 hash of the given data. Signatures are deterministic (RFC 6979), so no randomness is consumed.
+	 *
+	 * @param data
+	 * @param key
+	 * @return a DER encoded signature.
+	 */
+	public static byte[] sign(byte[] data, ECPrivateKeyParameters key)
+	{
+		DSADigestSigner signer = new DSADigestSigner(new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest())), new SHA256Digest());
+		signer.init(true, key);
+		signer.update(data, 0, data.length);
+		return signer.generateSignature();
+	}
+
+	/**
+	 * @param data
+	 * @param signature
+	 * @param key
+	 * @return true iff the signature was created over the given data with the complementary private key.
+	 */
+	public static boolean verify(byte[] data, byte[] signature, ECPublicKeyParameters key)
+	{
+		DSADigestSigner signer = new DSADigestSigner(new ECDSASigner(), new SHA256Digest());
+		signer.init(false, key);
+		signer.update(data, 0, data.length);
+		try
+		{
+			return signer.verifySignature(signature);
+		} catch (RuntimeException e)
+		{
+			// Malformed DER.
+			return false;
+		}
+	}
+
+	/**
+	 * Encodes a public key as a compressed curve point. This operation can be reversed with {@link #fromBytes(byte[])}.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public static byte[] toBytes(ECPublicKeyParameters key)
+	{
+		return key.getQ().getEncoded(true);
+	}
+
+	/**
+	 * @param key
+	 * @return the public key encoded in the given bytes.
+	 * @throws IllegalArgumentException
+	 *             if the bytes are not a valid point on the curve.
+	 */
+	public static ECPublicKeyParameters fromBytes(byte[] key) throws IllegalArgumentException
+	{
+		return new ECPublicKeyParameters(EcdsaUtil.curve.getCurve().decodePoint(key), EcdsaUtil.domain);
+	}
+
+	/**
+	 * Signs the given user's session key with their long term RSA key (PKCS #1 v1.5 over SHA-256), so that anyone who
+	 * trusts the RSA key, through its certificate, can trust the session key. This can be checked with
+	 * {@link #isEndorsed(String, ECPublicKeyParameters, byte[], RSAKeyParameters)}.
+	 *
+	 * @param owner
+	 *            the username the key belongs to.
+	 * @param key
+	 * @param rsaPrivate
+	 * @return the endorsement.
+	 * @throws IllegalStateException
+	 *             if the key could not be signed.
+	 */
+	public static byte[] endorse(String owner, ECPublicKeyParameters key, RSAKeyParameters rsaPrivate) throws IllegalStateException
+	{
+		Signer signer = endorsement(true, owner, key, rsaPrivate);
+		try
+		{
+			return signer.generateSignature();
+		} catch (CryptoException | RuntimeException e)
+		{
+			throw new IllegalStateException("Could not endorse signing key.", e);
+		}
+	}
+
+	/**
+	 * @param owner
+	 * @param key
+	 * @param endorsement
+	 * @param rsaPublic
+	 * @return true iff the endorsement was made by
+	 *         {@link #endorse(String, ECPublicKeyParameters, RSAKeyParameters)} for the given user and session key, with
+	 *         the complement of the given RSA key.
+	 */
+	public static boolean isEndorsed(String owner, ECPublicKeyParameters key, byte[] endorsement, RSAKeyParameters rsaPublic)
+	{
+		try
+		{
+			return endorsement(false, owner, key, rsaPublic).verifySignature(endorsement);
+		} catch (RuntimeException e)
+		{
+			return false;
+		}
+	}
+
+	private static Signer endorsement(boolean forSigning, String owner, ECPublicKeyParameters key, RSAKeyParameters rsaKey)
+	{
+		byte[] name = U.toBytes(owner);
+		byte[] point = toBytes(key);
+		// The name is length prefixed, so that no other name and key produce the same bytes.
+		ByteBuffer content = ByteBuffer.allocate(ENDORSEMENT_TAG.length + Integer.BYTES + name.length + point.length);
+		content.put(ENDORSEMENT_TAG).putInt(name.length).put(name).put(point);
+
+		Signer signer = new RSADigestSigner(new SHA256Digest());
+		signer.init(forSigning, rsaKey);
+		signer.update(content.array(), 0, content.position());
+		return signer;
+	}
+
+	public static void main(String... strings)
+	{
+		U.p("--- Starting ECDSA Utility Tests ---");
+
+		byte[] message = U.toBytes("Top Secret Message!");
+		AsymmetricCipherKeyPair key = generateKeyPair();
+		byte[] publicBytes = toBytes((ECPublicKeyParameters) key.getPublic());
+		U.p("Encoded public key: " + U.niceToString(publicBytes));
+
+		byte[] sig = sign(message, (ECPrivateKeyParameters) key.getPrivate());
+		U.p("Signature: " + U.niceToString(sig));
+		U.p("Verified: " + verify(message, sig, fromBytes(publicBytes)));
+		message[0] ^= 1;
+		U.p("Verified after tampering: " + verify(message, sig, fromBytes(publicBytes)));
+
+		int count = 1000;
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++)
+			sign(message, (ECPrivateKeyParameters) key.getPrivate());
+		U.p("Signatures per second: " + count / ((System.nanoTime() - start) / 1e9));
+		start = System.nanoTime();
+		for (int i = 0; i < count; i++)
+			verify(message, sig, (ECPublicKeyParameters) key.getPublic());
+		U.p("Verifications per second: " + count / ((System.nanoTime() - start) / 1e9));
+	}
+}
@@ -0,0 +1,223 @@
+package silentcrypt.util;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.bouncycastle.crypto.params.RSAPrivateCrtKeyParameters;
+
+/**
+ * A file holding an RSA key pair, along with the certificate issued for it and the public key of the CA which issued
+ * it. Loading a key file is a memory mapped read, so restarting with one costs milliseconds where generating a new key
+ * and certifying it takes seconds.
+ * <p>
+ * Format: [magic][int crt][private key components][public key][cert][CA key], where each key component, key, and
+ * certificate is written as [int length][bytes], and a missing certificate or CA key has length 0. The private key
+ * components are the modulus and private exponent, followed by the public exponent and CRT parameters if crt is 1, so
+ * that loaded keys keep their fast CRT decryption.
+ * <p>
+ * <b>WARNING</b>: The private key is stored unencrypted. On file systems which support it, the file is only readable by
+ * its owner.
+ *
+ * @author Michael Wells
+ */
+public class KeyFile
+{
+	private static final String KEY_FILE_VERSION = "SC-KEYS-0001";
+
+	private final Path			path;
+	private final RsaKeyPair	key;
+	private byte[]				cert	= null;
+	private RSAKeyParameters	caKey	= null;
+
+	/**
+	 * @param path
+	 *            where the key file is saved.
+	 * @param key
+	 */
+	public KeyFile(Path path, RsaKeyPair key)
+	{
+		this.path = path;
+		this.key = key;
+	}
+
+	/**
+	 * Loads the key file at the given path, or creates it with a newly generated key if it doesn't exist.
+	 *
+	 * @param path
+	 * @param generator
+	 *            supplies the key for a new key file, such as {@link RsaUtil#generateKeyPair()}.
+	 * @return the key file
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             if the file exists but is not a key file.
+	 */
+	public static KeyFile open(Path path, Supplier<RsaKeyPair> generator) throws IOException, IllegalArgumentException
+	{
+		if (Files.exists(path))
+			return load(path);
+		KeyFile res = new KeyFile(path, generator.get());
+		res.save();
+		return res;
+	}
+
+	/**
+	 * @param path
+	 * @return the key file at the given path.
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             if the file is not a key file.
+	 */
+	public static KeyFile load(Path path) throws IOException, IllegalArgumentException
+	{
+		ByteBuffer data = U.map(path);
+		byte[] expectedMagicNumber = U.toBytes(KEY_FILE_VERSION);
+		byte[] magicNumber = new byte[Math.min(expectedMagicNumber.length, data.remaining())];
+		data.get(magicNumber);
+		if (!Arrays.equals(magicNumber, expectedMagicNumber))
+			throw new IllegalArgumentException("Not a SilentCrypt key file: " + path);
+
+		try
+		{
+			boolean crt = data.getInt() != 0;
+			BigInteger mod = readInt(data);
+			BigInteger privExp = readInt(data);
+			RSAKeyParameters privateKey;
+			if (crt)
+			{
+				BigInteger pubExp = readInt(data);
+				BigInteger p = readInt(data);
+				BigInteger q = readInt(data);
+				BigInteger dP = readInt(data);
+				BigInteger dQ = readInt(data);
+				BigInteger qInv = readInt(data);
+				privateKey = new RSAPrivateCrtKeyParameters(mod, pubExp, privExp, p, q, dP, dQ, qInv);
+			} else
+				privateKey = new RSAKeyParameters(true, mod, privExp);
+
+			KeyFile res = new KeyFile(path, new RsaKeyPair(RsaUtil.fromBytes(readBlock(data)), privateKey));
+			byte[] cert = readBlock(data);
+			byte[] caKey = readBlock(data);
+			if (cert.length > 0)
+				res.cert = cert;
+			if (caKey.length > 0)
+				res.caKey = RsaUtil.fromBytes(caKey);
+			return res;
+		} catch (RuntimeException e)
+		{
+			throw new IllegalArgumentException("Malformed key file: " + path, e);
+		}
+	}
+
+	/**
+	 * Writes this key file to its path, replacing any previous contents.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException
+	{
+		RSAKeyParameters privateKey = this.key.getPrivateRsa();
+		boolean crt = privateKey instanceof RSAPrivateCrtKeyParameters;
+		BigInteger[] components;
+		if (crt)
+		{
+			RSAPrivateCrtKeyParameters k = (RSAPrivateCrtKeyParameters) privateKey;
+			components = new BigInteger[] { k.getModulus(), k.getExponent(), k.getPublicExponent(), k.getP(), k.getQ(), k.getDP(), k.getDQ(), k.getQInv() };
+		} else
+			components = new BigInteger[] { privateKey.getModulus(), privateKey.getExponent() };
+
+		byte[][] blocks = new byte[components.length + 3][];
+		for (int i = 0; i < components.length; i++)
+			blocks[i] = components[i].toByteArray();
+		blocks[components.length] = RsaUtil.toBytes(this.key.getPublicRsa());
+		blocks[components.length + 1] = this.cert == null ? new byte[0] : this.cert;
+		blocks[components.length + 2] = this.caKey == null ? new byte[0] : RsaUtil.toBytes(this.caKey);
+
+		byte[] magicNumber = U.toBytes(KEY_FILE_VERSION);
+		int size = magicNumber.length + Integer.BYTES;
+		for (byte[] b : blocks)
+			size += Integer.BYTES + b.length;
+		ByteBuffer res = ByteBuffer.allocate(size);
+		res.put(magicNumber);
+		res.putInt(crt ? 1 : 0);
+		for (byte[] b : blocks)
+			res.putInt(b.length).put(b);
+
+		// Written beside the destination and moved into place, so a crash never leaves a half written key behind.
+		Path dir = this.path.toAbsolutePath().getParent();
+		Path tmp = Files.createTempFile(dir, this.path.getFileName().toString(), ".tmp");
+		try
+		{
+			try
+			{
+				Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+			} catch (UnsupportedOperationException e)
+			{
+				// Not a POSIX file system.
+			}
+			Files.write(tmp, res.array());
+			Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally
+		{
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	public Path getPath()
+	{
+		return this.path;
+	}
+
+	public RsaKeyPair getKey()
+	{
+		return this.key;
+	}
+
+	/**
+	 * @return the certificate issued for this key, or null if it hasn't been certified.
+	 */
+	public byte[] getCert()
+	{
+		return this.cert;
+	}
+
+	public void setCert(byte[] cert)
+	{
+		this.cert = cert;
+	}
+
+	/**
+	 * @return the public key of the CA which issued the certificate, or null if it isn't known.
+	 */
+	public RSAKeyParameters getCaKey()
+	{
+		return this.caKey;
+	}
+
+	public void setCaKey(RSAKeyParameters caKey)
+	{
+		this.caKey = caKey;
+	}
+
+	private static BigInteger readInt(ByteBuffer data)
+	{
+		return new BigInteger(readBlock(data));
+	}
+
+	private static byte[] readBlock(ByteBuffer data)
+	{
+		int len = data.getInt();
+		if (len < 0 || len > data.remaining())
+			throw new IllegalArgumentException("Bad block length: " + len);
+		byte[] res = new byte[len];
+		data.get(res);
+		return res;
+	}
+}
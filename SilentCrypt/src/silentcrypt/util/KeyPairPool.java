@@ -0,0 +1,210 @@
+package silentcrypt.util;
+
+import java.time.Duration;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generates RSA key pairs ahead of time on background threads, so that they can be handed out without waiting. The pool
+ * holds at most a fixed number of spare keys, and refills itself as keys are taken. If the pool is empty when a key is
+ * requested, the key is generated on the calling thread rather than waiting for the background threads to catch up.
+ * <p>
+ * Each pool keeps its generator threads running until it is {@link #close() closed}, so pools are intended to be shared
+ * (see {@link #getDefault()}) rather than created per use. The threads are daemons, so an unclosed pool won't keep the
+ * process alive, but it will keep generating keys until the process exits.
+ *
+ * @author Michael Wells
+ */
+public class KeyPairPool implements AutoCloseable
+{
+	private static final int DEFAULT_DEPTH = 4;
+
+	private static KeyPairPool defaultPool = null;
+
+	/**
+	 * @return the pool shared by callers which haven't created their own. It produces keys of
+	 *         {@link RsaUtil#DEFAULT_KEY_SIZE} bits on a single background thread.
+	 */
+	public static synchronized KeyPairPool getDefault()
+	{
+		if (KeyPairPool.defaultPool == null)
+			KeyPairPool.defaultPool = new KeyPairPool(RsaUtil.DEFAULT_KEY_SIZE, DEFAULT_DEPTH, 1);
+		return KeyPairPool.defaultPool;
+	}
+
+	/**
+	 * Replaces the pool returned by {@link #getDefault()}.
+	 *
+	 * @param pool
+	 */
+	public static synchronized void setDefault(KeyPairPool pool)
+	{
+		KeyPairPool.defaultPool = pool;
+	}
+
+	private final int								bits;
+	private final LinkedBlockingQueue<RsaKeyPair>	spares;
+	private final Thread[]							generators;
+	private final LongAdder							generated	= new LongAdder();
+	private final LongAdder							totalNanos	= new LongAdder();
+	private final LongAdder							hits		= new LongAdder();
+	private final LongAdder							misses		= new LongAdder();
+	private volatile long							maxNanos	= 0;
+	private volatile boolean						closed		= false;
+
+	/**
+	 * @param bits
+	 *            the size of the keys to generate.
+	 * @param depth
+	 *            the number of spare keys to hold.
+	 * @param threads
+	 *            the number of background threads generating keys.
+	 */
+	public KeyPairPool(int bits, int depth, int threads)
+	{
+		if (depth < 1 || threads < 1)
+			throw new IllegalArgumentException("Pools need a positive depth and thread count.");
+		this.bits = bits;
+		this.spares = new LinkedBlockingQueue<>(depth);
+		this.generators = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+			this.generators[i] = Threads.start("RSA Key Generator #" + hashCode() + "-" + i, true, this::fill);
+	}
+
+	/**
+	 * Stops the background threads and discards the spare keys. Keys can still be taken afterwards, but are always
+	 * generated on the calling thread. A thread in the middle of generating a key stops once that key is done.
+	 */
+	@Override
+	public void close()
+	{
+		this.closed = true;
+		for (Thread t : this.generators)
+			t.interrupt();
+		this.spares.clear();
+	}
+
+	/**
+	 * @return a new key pair; a spare one if available, otherwise a freshly generated one.
+	 */
+	public RsaKeyPair take()
+	{
+		RsaKeyPair res = this.spares.poll();
+		if (res != null)
+		{
+			this.hits.increment();
+			return res;
+		}
+		this.misses.increment();
+		return generate();
+	}
+
+	/**
+	 * Waits up to the given time for a spare key to become available.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return a new key pair, or null if none was generated in time.
+	 * @throws InterruptedException
+	 */
+	public RsaKeyPair take(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		RsaKeyPair res = this.spares.poll(timeout, unit);
+		if (res != null)
+			this.hits.increment();
+		return res;
+	}
+
+	/**
+	 * @return the size of the keys this pool generates.
+	 */
+	public int getKeySize()
+	{
+		return this.bits;
+	}
+
+	/**
+	 * @return the number of spare keys currently held.
+	 */
+	public int getAvailable()
+	{
+		return this.spares.size();
+	}
+
+	/**
+	 * @return the number of keys handed out from the spares.
+	 */
+	public long getHits()
+	{
+		return this.hits.sum();
+	}
+
+	/**
+	 * @return the number of keys which had to be generated on the caller's thread.
+	 */
+	public long getMisses()
+	{
+		return this.misses.sum();
+	}
+
+	/**
+	 * @return the number of keys this pool has generated, on any thread.
+	 */
+	public long getGenerated()
+	{
+		return this.generated.sum();
+	}
+
+	/**
+	 * @return the average time taken to generate one key.
+	 */
+	public Duration getAverageLatency()
+	{
+		long count = getGenerated();
+		return Duration.ofNanos(count == 0 ? 0 : this.totalNanos.sum() / count);
+	}
+
+	/**
+	 * @return the longest time taken to generate one key.
+	 */
+	public Duration getMaxLatency()
+	{
+		return Duration.ofNanos(this.maxNanos);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("KeyPairPool bits:%d available:%d hits:%d misses:%d generated:%d avgLatency:%s maxLatency:%s", this.bits, getAvailable(), getHits(), getMisses(),
+				getGenerated(), getAverageLatency(), getMaxLatency());
+	}
+
+	private void fill()
+	{
+		while (!this.closed)
+			try
+			{
+				this.spares.put(generate());
+			} catch (InterruptedException e)
+			{
+				if (!this.closed)
+					U.e("Key generator interrupted.", e);
+				return;
+			}
+	}
+
+	private RsaKeyPair generate()
+	{
+		long start = System.nanoTime();
+		RsaKeyPair res = RsaUtil.generateKeyPair(this.bits);
+		long elapsed = System.nanoTime() - start;
+		this.generated.increment();
+		this.totalNanos.add(elapsed);
+		synchronized (this)
+		{
+			this.maxNanos = Math.max(this.maxNanos, elapsed);
+		}
+		return res;
+	}
+}
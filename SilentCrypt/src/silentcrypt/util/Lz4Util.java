@@ -0,0 +1,393 @@
+package silentcrypt.util;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * Provides support for fast compression in the LZ4 block format. It compresses far less thoroughly than
+ * {@link DeflateUtil}, but is several times faster in both directions, which suits interactive traffic.
+ * <p>
+ * All of the static methods are thread safe. Each thread reuses its own match table.
+ * <p>
+ * Compressed data is [byte mode][int raw length][LZ4 block] when compression helped, or [byte mode][raw data] when it
+ * didn't. Data which is too small to benefit, or which looks random when sampled, is stored without attempting
+ * compression at all.
+ *
+ * @author Michael Wells
+ */
+public class Lz4Util
+{
+	/**
+	 * The largest amount of data which will be decompressed, so that a small field can't claim an enormous size.
+	 */
+	public static final int MAX_DECOMPRESSED_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Data smaller than this is always stored, since the header would outweigh any savings.
+	 */
+	public static final int MIN_COMPRESS_SIZE = 64;
+
+	private static final byte	STORED		= 0;
+	private static final byte	COMPRESSED	= 1;
+
+	private static final int	HEADER_SIZE		= 1 + Integer.BYTES;
+	private static final int	MIN_MATCH		= 4;
+	private static final int	LAST_LITERALS	= 5;
+	private static final int	MF_LIMIT		= 12;
+	private static final int	MAX_OFFSET		= 65535;
+	private static final int	HASH_BITS		= 12;
+	private static final int	SAMPLE_SIZE		= 1024;
+	private static final int	MAX_RATIO		= 255;
+
+	/**
+	 * Samples whose entropy is above this fraction of the most they could have are treated as incompressible.
+	 */
+	private static final double MAX_ENTROPY = 0.9;
+
+	private static final ThreadLocal<int[]> table = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+	/**
+	 * Compresses the remaining bytes of the given buffer.
+	 *
+	 * @param input
+	 * @return a new buffer containing the compressed data.
+	 */
+	public static ByteBuffer compress(ByteBuffer input)
+	{
+		ByteBuffer res = ByteBuffer.allocate(maxCompressedSize(input.remaining()));
+		compress(input, res);
+		// Trimmed to size, since some encodings use the whole backing array of the buffers they're given.
+		return ByteBuffer.wrap(Arrays.copyOf(res.array(), res.position()));
+	}
+
+	/**
+	 * Compresses the remaining bytes of the input buffer into the output buffer, advancing both. Array backed output
+	 * buffers are written directly, without any intermediate copies.
+	 *
+	 * @param input
+	 * @param output
+	 *            must have at least {@link #maxCompressedSize(int)} bytes remaining.
+	 */
+	public static void compress(ByteBuffer input, ByteBuffer output)
+	{
+		int length = input.remaining();
+		if (output.remaining() < maxCompressedSize(length))
+			throw new BufferOverflowException();
+
+		byte[] src;
+		int off;
+		if (input.hasArray())
+		{
+			src = input.array();
+			off = input.arrayOffset() + input.position();
+			input.position(input.limit());
+		} else
+		{
+			src = new byte[length];
+			off = 0;
+			input.get(src);
+		}
+
+		if (isWorthCompressing(src, off, length))
+		{
+			byte[] dst;
+			int start;
+			if (output.hasArray())
+			{
+				dst = output.array();
+				start = output.arrayOffset() + output.position();
+			} else
+			{
+				dst = new byte[maxCompressedSize(length)];
+				start = 0;
+			}
+			int size = compressBlock(src, off, length, dst, start + HEADER_SIZE) - start;
+			if (size < 1 + length)
+			{
+				int pos = output.position();
+				if (output.hasArray())
+					output.position(pos + size);
+				else
+					output.put(dst, 0, size);
+				output.put(pos, COMPRESSED).putInt(pos + 1, length);
+				return;
+			}
+		}
+		output.put(STORED).put(src, off, length);
+	}
+
+	/**
+	 * Reverses {@link #compress(ByteBuffer)}.
+	 *
+	 * @param input
+	 * @return a new buffer containing the decompressed data.
+	 * @throws DataFormatException
+	 *             if the data is corrupt.
+	 */
+	public static ByteBuffer decompress(ByteBuffer input) throws DataFormatException
+	{
+		ByteBuffer res = ByteBuffer.allocate(decompressedSize(input));
+		decompress(input, res);
+		res.flip();
+		return res;
+	}
+
+	/**
+	 * Decompresses the remaining bytes of the input buffer into the output buffer, advancing both.
+	 *
+	 * @param input
+	 * @param output
+	 *            must have at least {@link #decompressedSize(ByteBuffer)} bytes remaining.
+	 * @throws DataFormatException
+	 *             if the data is corrupt.
+	 */
+	public static void decompress(ByteBuffer input, ByteBuffer output) throws DataFormatException
+	{
+		int length = decompressedSize(input);
+		if (output.remaining() < length)
+			throw new BufferOverflowException();
+		if (input.get() == STORED)
+		{
+			output.put(input);
+			return;
+		}
+		input.getInt();
+
+		byte[] src;
+		int off;
+		if (input.hasArray())
+		{
+			src = input.array();
+			off = input.arrayOffset() + input.position();
+		} else
+		{
+			src = new byte[input.remaining()];
+			off = 0;
+			input.duplicate().get(src);
+		}
+		if (output.hasArray())
+		{
+			decompressBlock(src, off, off + input.remaining(), output.array(), output.arrayOffset() + output.position(), length);
+			output.position(output.position() + length);
+		} else
+		{
+			byte[] dst = new byte[length];
+			decompressBlock(src, off, off + input.remaining(), dst, 0, length);
+			output.put(dst);
+		}
+		input.position(input.limit());
+	}
+
+	/**
+	 * @param length
+	 * @return the most bytes compressing the given number of bytes can produce.
+	 */
+	public static int maxCompressedSize(int length)
+	{
+		return HEADER_SIZE + length + length / 255 + 16;
+	}
+
+	/**
+	 * Reads the size of the given compressed data from its header, without changing the buffer's position.
+	 *
+	 * @param input
+	 * @return the number of bytes the data will decompress to.
+	 * @throws DataFormatException
+	 *             if the header is invalid.
+	 */
+	public static int decompressedSize(ByteBuffer input) throws DataFormatException
+	{
+		if (!input.hasRemaining())
+			throw new DataFormatException("Compressed data is missing its header.");
+		byte mode = input.get(input.position());
+		if (mode == STORED)
+			return input.remaining() - 1;
+		if (mode != COMPRESSED || input.remaining() < HEADER_SIZE)
+			throw new DataFormatException("Unknown compression mode: " + mode);
+
+		int length = input.getInt(input.position() + 1);
+		// Each extra byte of a match length adds at most 255 bytes of output, so no block can expand further than that.
+		if (length < 0 || length > MAX_DECOMPRESSED_SIZE || length > (long) (input.remaining() - HEADER_SIZE) * MAX_RATIO)
+			throw new DataFormatException("Invalid decompressed length: " + length);
+		return length;
+	}
+
+	/**
+	 * Estimates whether the given data is worth compressing, from its size and the entropy of an evenly spaced sample of
+	 * its bytes.
+	 *
+	 * @param data
+	 * @param off
+	 * @param len
+	 * @return false if compression is unlikely to make the data smaller.
+	 */
+	public static boolean isWorthCompressing(byte[] data, int off, int len)
+	{
+		if (len < MIN_COMPRESS_SIZE)
+			return false;
+
+		int samples = Math.min(len, SAMPLE_SIZE);
+		int[] counts = new int[256];
+		for (int i = 0; i < samples; i++)
+			counts[data[off + (int) ((long) i * len / samples)] & 0xFF]++;
+
+		double entropy = 0;
+		for (int c : counts)
+			if (c > 0)
+			{
+				double p = (double) c / samples;
+				entropy -= p * Math.log(p);
+			}
+		// A sample can't show more distinct values than it has bytes, so compare against the most it could have.
+		return entropy < MAX_ENTROPY * Math.log(Math.min(samples, 256));
+	}
+
+	private static int compressBlock(byte[] src, int off, int len, byte[] dst, int dstOff)
+	{
+		// Small inputs only clear as much of the table as they could fill.
+		int hashBits = Math.max(6, Math.min(HASH_BITS, 32 - Integer.numberOfLeadingZeros(len)));
+		int[] table = Lz4Util.table.get();
+		Arrays.fill(table, 0, 1 << hashBits, -1);
+
+		int end = off + len;
+		int matchLimit = end - LAST_LITERALS;
+		int mfLimit = end - MF_LIMIT;
+		int anchor = off;
+		int d = dstOff;
+		int i = off;
+
+		while (i < mfLimit)
+		{
+			int seq = readInt(src, i);
+			int h = hash(seq, hashBits);
+			int ref = table[h];
+			table[h] = i;
+			if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != seq)
+			{
+				// Skip ahead faster the longer it's been since the last match, so incompressible runs are cheap.
+				i += 1 + ((i - anchor) >>> 6);
+				continue;
+			}
+
+			while (i > anchor && ref > off && src[i - 1] == src[ref - 1])
+			{
+				i--;
+				ref--;
+			}
+			int m = i + MIN_MATCH;
+			int r = ref + MIN_MATCH;
+			while (m < matchLimit && src[m] == src[r])
+			{
+				m++;
+				r++;
+			}
+
+			d = writeSequence(src, anchor, i - anchor, i - ref, m - i - MIN_MATCH, dst, d);
+			i = m;
+			anchor = m;
+		}
+		return writeLiterals(src, anchor, end - anchor, dst, d);
+	}
+
+	private static int writeSequence(byte[] src, int litOff, int litLen, int offset, int matchLen, byte[] dst, int d)
+	{
+		int token = d++;
+		dst[token] = (byte) (Math.min(litLen, 15) << 4 | Math.min(matchLen, 15));
+		d = writeLength(litLen, dst, d);
+		System.arraycopy(src, litOff, dst, d, litLen);
+		d += litLen;
+		dst[d++] = (byte) offset;
+		dst[d++] = (byte) (offset >>> 8);
+		return writeLength(matchLen, dst, d);
+	}
+
+	private static int writeLiterals(byte[] src, int litOff, int litLen, byte[] dst, int d)
+	{
+		dst[d++] = (byte) (Math.min(litLen, 15) << 4);
+		d = writeLength(litLen, dst, d);
+		System.arraycopy(src, litOff, dst, d, litLen);
+		return d + litLen;
+	}
+
+	private static int writeLength(int len, byte[] dst, int d)
+	{
+		if (len < 15)
+			return d;
+		for (len -= 15; len >= 255; len -= 255)
+			dst[d++] = (byte) 255;
+		dst[d++] = (byte) len;
+		return d;
+	}
+
+	private static void decompressBlock(byte[] src, int s, int srcEnd, byte[] dst, int dstOff, int length) throws DataFormatException
+	{
+		int dstEnd = dstOff + length;
+		int d = dstOff;
+		for (;;)
+		{
+			if (s >= srcEnd)
+				throw new DataFormatException("Compressed block is truncated.");
+			int token = src[s++] & 0xFF;
+
+			int litLen = token >>> 4;
+			if (litLen == 15)
+				for (int b = 255; b == 255; litLen += b)
+				{
+					if (s >= srcEnd)
+						throw new DataFormatException("Compressed block is truncated.");
+					b = src[s++] & 0xFF;
+				}
+			if (litLen > srcEnd - s || litLen > dstEnd - d)
+				throw new DataFormatException("Literal run exceeds block bounds.");
+			System.arraycopy(src, s, dst, d, litLen);
+			s += litLen;
+			d += litLen;
+
+			// The last sequence has literals only.
+			if (s == srcEnd)
+				break;
+
+			if (srcEnd - s < 2)
+				throw new DataFormatException("Compressed block is truncated.");
+			int offset = (src[s] & 0xFF) | (src[s + 1] & 0xFF) << 8;
+			s += 2;
+			if (offset == 0 || offset > d - dstOff)
+				throw new DataFormatException("Invalid match offset: " + offset);
+
+			int matchLen = token & 0x0F;
+			if (matchLen == 15)
+				for (int b = 255; b == 255; matchLen += b)
+				{
+					if (s >= srcEnd)
+						throw new DataFormatException("Compressed block is truncated.");
+					b = src[s++] & 0xFF;
+				}
+			matchLen += MIN_MATCH;
+			if (matchLen > dstEnd - d)
+				throw new DataFormatException("Match exceeds block bounds.");
+
+			int ref = d - offset;
+			if (offset >= matchLen)
+				System.arraycopy(dst, ref, dst, d, matchLen);
+			else
+				// Overlapping matches repeat the bytes they are copying, so they must be copied one at a time.
+				for (int k = 0; k < matchLen; k++)
+					dst[d + k] = dst[ref + k];
+			d += matchLen;
+		}
+		if (d != dstEnd)
+			throw new DataFormatException("Decompressed data does not match its declared length.");
+	}
+
+	private static int readInt(byte[] b, int i)
+	{
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int seq, int bits)
+	{
+		return (seq * -1640531535) >>> (32 - bits);
+	}
+}
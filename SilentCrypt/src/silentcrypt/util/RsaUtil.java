@@ -5,6 +5,8 @@ import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.Security;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.bouncycastle.crypto.AsymmetricBlockCipher;
 import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
@@ -25,14 +27,68 @@ public class RsaUtil
 	// Magic number for encryption.
 	private static final String RSA_VERSION = "SC-RSA-0001";
 
+	/**
+	 * The size, in bits, of keys generated by {@link #generateKeyPair()}.
+	 */
+	public static final int DEFAULT_KEY_SIZE = 4096;
+
+	/**
+	 * Number of initialized engines each thread keeps ready for use.
+	 */
+	private static final int ENGINE_CACHE_SIZE = 16;
+
+	// Each thread's engines, keyed by the key they were initialized with. Index 0 decrypts and index 1 encrypts.
+	private static final ThreadLocal<Map<RSAKeyParameters, AsymmetricBlockCipher[]>> engines = ThreadLocal
+			.withInitial(() -> new LinkedHashMap<RSAKeyParameters, AsymmetricBlockCipher[]>(16, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<RSAKeyParameters, AsymmetricBlockCipher[]> eldest)
+				{
+					return size() > ENGINE_CACHE_SIZE;
+				}
+			});
+
+	static
+	{
+		// Registering a provider is synchronized and rebuilds the provider list, so it is only done once.
+		if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null)
+			Security.addProvider(new BouncyCastleProvider());
+	}
+
+	/**
+	 * Decrypts the remaining bytes of the given buffer, advancing it.
+	 *
+	 * @param encrypted
+	 * @param key
+	 * @return a new buffer containing the decrypted data.
+	 * @throws InvalidCipherTextException
+	 */
 	public static ByteBuffer decrypt(ByteBuffer encrypted, RSAKeyParameters key) throws InvalidCipherTextException
 	{
-		return ByteBuffer.wrap(RsaUtil.encrypt(U.toBytes(encrypted), key));
+		return ByteBuffer.wrap(RsaUtil.decrypt(remaining(encrypted), key));
 	}
 
+	/**
+	 * Encrypts the remaining bytes of the given buffer, advancing it.
+	 *
+	 * @param data
+	 * @param key
+	 * @return a new buffer containing the encrypted data.
+	 * @throws InvalidCipherTextException
+	 */
 	public static ByteBuffer encrypt(ByteBuffer data, RSAKeyParameters key) throws InvalidCipherTextException
 	{
-		return ByteBuffer.wrap(RsaUtil.encrypt(U.toBytes(data), key));
+		return ByteBuffer.wrap(RsaUtil.encrypt(remaining(data), key));
+	}
+
+	private static byte[] remaining(ByteBuffer data)
+	{
+		// Unlike U.toBytes, only the remaining bytes, since the buffer may be a window onto a larger one.
+		byte[] res = new byte[data.remaining()];
+		data.get(res);
+		return res;
 	}
 
 	/**
@@ -53,16 +109,19 @@ public class RsaUtil
 		byte[] rsaBlock = new byte[rsaBlockSize];
 		message.get(rsaBlock);
 
-		// Use RSA to obtain our AES key.
-		Security.addProvider(new BouncyCastleProvider());
-		AsymmetricBlockCipher engine = new RSAEngine();
-		engine.init(false, key);
-		byte[] aesKey = engine.processBlock(rsaBlock, 0, rsaBlock.length);
+		// Use RSA to obtain our AES key. RSA drops leading zero bytes, so they are restored here.
+		byte[] aesKey = engine(key, false).processBlock(rsaBlock, 0, rsaBlock.length);
+		if (aesKey.length < AesUtil.AES_KEY_SIZE)
+		{
+			byte[] padded = new byte[AesUtil.AES_KEY_SIZE];
+			System.arraycopy(aesKey, 0, padded, padded.length - aesKey.length, aesKey.length);
+			aesKey = padded;
+		}
 		byte[] aesCipher = new byte[message.remaining()];
 		message.get(aesCipher);
 
 		// Decrypt original message using AES and ensure we have the correct magic bytes signifying correct keys.
-		ByteBuffer result = ByteBuffer.wrap(AesUtil.decrypt(aesKey, aesCipher));
+		ByteBuffer result = ByteBuffer.wrap(AesUtil.decrypt(aesKey, aesCipher, false));
 		byte[] expectedMagicNumber = U.toBytes(RSA_VERSION);
 		byte[] magicNumber = new byte[expectedMagicNumber.length];
 		result.get(magicNumber);
@@ -93,16 +152,12 @@ public class RsaUtil
 		// Generate AES key at random.
 		byte[] aesKey = AesUtil.randomKey();
 
-		Security.addProvider(new BouncyCastleProvider());
-		RSAEngine engine = new RSAEngine();
-		engine.init(true, key);
-
-		byte[] rsaCipher = engine.processBlock(aesKey, 0, aesKey.length);
+		byte[] rsaCipher = engine(key, true).processBlock(aesKey, 0, aesKey.length);
 		byte[] magicNumber = U.toBytes(RSA_VERSION);
 		ByteBuffer aesPlainText = ByteBuffer.allocate(data.length + magicNumber.length);
 		aesPlainText.put(magicNumber);
 		aesPlainText.put(data);
-		byte[] aesCipher = AesUtil.encrypt(aesKey, aesPlainText.array());
+		byte[] aesCipher = AesUtil.encrypt(aesKey, aesPlainText.array(), false);
 
 		ByteBuffer message = ByteBuffer.allocate(rsaCipher.length + aesCipher.length + Integer.BYTES);
 		message.putInt(rsaCipher.length);
@@ -112,6 +167,27 @@ public class RsaUtil
 		return message.array();
 	}
 
+	/**
+	 * Returns this thread's engine for the given key, initializing it on first use. Private keys which carry their CRT
+	 * parameters (as generated keys and those loaded from a {@link KeyFile} do) are processed with the much faster CRT
+	 * method automatically.
+	 *
+	 * @param key
+	 * @param forEncryption
+	 * @return
+	 */
+	private static AsymmetricBlockCipher engine(RSAKeyParameters key, boolean forEncryption)
+	{
+		AsymmetricBlockCipher[] pair = RsaUtil.engines.get().computeIfAbsent(key, k -> new AsymmetricBlockCipher[2]);
+		int idx = forEncryption ? 1 : 0;
+		if (pair[idx] == null)
+		{
+			pair[idx] = new RSAEngine();
+			pair[idx].init(forEncryption, key);
+		}
+		return pair[idx];
+	}
+
 	/**
 	 * Encodes a key from a given byte array. This operation can be reversed with {@link #toBytes(RSAKeyParameters)}.
 	 *
@@ -177,19 +253,33 @@ public class RsaUtil
 	}
 
 	/**
-	 * Generates a brand new RSA key pair.
+	 * Generates a brand new RSA key pair of {@link #DEFAULT_KEY_SIZE} bits.
 	 * <p>
-	 * <b>WARNING</b>: This is a computationally expensive operation.
+	 * <b>WARNING</b>: This is a computationally expensive operation. Consider taking keys from a {@link KeyPairPool}
+	 * instead.
 	 *
 	 * @return
 	 */
 	public static RsaKeyPair generateKeyPair()
+	{
+		return generateKeyPair(RsaUtil.DEFAULT_KEY_SIZE);
+	}
+
+	/**
+	 * Generates a brand new RSA key pair of the given size.
+	 * <p>
+	 * <b>WARNING</b>: This is a computationally expensive operation.
+	 *
+	 * @param bits
+	 * @return
+	 */
+	public static RsaKeyPair generateKeyPair(int bits)
 	{
 		RSAKeyPairGenerator generator = new RSAKeyPairGenerator();
 
 		try
 		{
-			generator.init(new RSAKeyGenerationParameters(new BigInteger("10001", 16), SecureRandom.getInstance("SHA1PRNG"), 4096, 80));
+			generator.init(new RSAKeyGenerationParameters(new BigInteger("10001", 16), SecureRandom.getInstance("SHA1PRNG"), bits, 80));
 		} catch (NoSuchAlgorithmException e)
 		{
 			// Big problems if we get here.
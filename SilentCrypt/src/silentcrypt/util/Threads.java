@@ -0,0 +1,131 @@
+package silentcrypt.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads used by the communication classes. By default every thread is a regular platform thread. When
+ * virtual threads are enabled (either with {@link #setVirtual(boolean)} or the <code>silentcrypt.virtualThreads</code>
+ * system property) and the running JVM supports them, threads are created as virtual threads instead, which keeps the
+ * simple blocking style of the connection handlers cheap at high connection counts.
+ * <p>
+ * Virtual threads are looked up reflectively so that this class still loads on JVMs which predate them.
+ *
+ * @author Michael Wells
+ */
+public class Threads
+{
+	private static final Method		ofVirtual;
+	private static final Method		builderName;
+	private static final Method		builderUnstarted;
+	private static volatile boolean	useVirtual	= false;
+
+	static
+	{
+		Method builder = null;
+		Method name = null;
+		Method unstarted = null;
+		try
+		{
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = Thread.class.getMethod("ofVirtual");
+			name = builderClass.getMethod("name", String.class);
+			unstarted = builderClass.getMethod("unstarted", Runnable.class);
+			// Preview builds expose the method but refuse to create threads.
+			builder.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException | LinkageError e)
+		{
+			builder = null;
+		}
+		ofVirtual = builder;
+		builderName = name;
+		builderUnstarted = unstarted;
+		setVirtual(Boolean.getBoolean("silentcrypt.virtualThreads"));
+	}
+
+	/**
+	 * @return true iff the running JVM is able to create virtual threads.
+	 */
+	public static boolean isVirtualSupported()
+	{
+		return Threads.ofVirtual != null;
+	}
+
+	/**
+	 * Enables or disables virtual threads for threads created after this call. Has no effect (other than a warning) if
+	 * the running JVM does not support virtual threads.
+	 *
+	 * @param enabled
+	 */
+	public static void setVirtual(boolean enabled)
+	{
+		if (enabled && !isVirtualSupported())
+		{
+			U.w("Virtual threads are not supported by this JVM; using platform threads.");
+			enabled = false;
+		}
+		Threads.useVirtual = enabled;
+	}
+
+	/**
+	 * @return true iff new threads will be created as virtual threads.
+	 */
+	public static boolean isVirtual()
+	{
+		return Threads.useVirtual;
+	}
+
+	/**
+	 * Creates, but does not start, a new thread. Virtual threads are always daemon threads, so a thread which must keep
+	 * the JVM alive (daemon is false) is always created as a platform thread.
+	 *
+	 * @param name
+	 * @param daemon
+	 * @param task
+	 * @return a new unstarted thread
+	 */
+	public static Thread newThread(String name, boolean daemon, Runnable task)
+	{
+		if (Threads.useVirtual && daemon)
+			try
+			{
+				// Builders are not thread safe, so each thread gets its own.
+				Object builder = Threads.builderName.invoke(Threads.ofVirtual.invoke(null), name);
+				return (Thread) Threads.builderUnstarted.invoke(builder, task);
+			} catch (ReflectiveOperationException e)
+			{
+				U.e("Unable to create virtual thread; falling back to a platform thread.", e);
+			}
+
+		Thread t = new Thread(task, name);
+		t.setDaemon(daemon);
+		return t;
+	}
+
+	/**
+	 * Creates and starts a new thread.
+	 *
+	 * @param name
+	 * @param daemon
+	 * @param task
+	 * @return the started thread
+	 */
+	public static Thread start(String name, boolean daemon, Runnable task)
+	{
+		Thread t = newThread(name, daemon, task);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * @param prefix
+	 * @param daemon
+	 * @return a ThreadFactory which numbers each thread it creates after the given prefix.
+	 */
+	public static ThreadFactory factory(String prefix, boolean daemon)
+	{
+		AtomicInteger count = new AtomicInteger();
+		return r -> newThread(prefix + count.incrementAndGet(), daemon, r);
+	}
+}
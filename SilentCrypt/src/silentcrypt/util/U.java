@@ -158,8 +158,11 @@ public class U
 
 	public static MappedByteBuffer map(Path p) throws IOException
 	{
-		FileChannel chan = FileChannel.open(p, StandardOpenOption.READ);
-		return chan.map(MapMode.READ_ONLY, 0, chan.size());
+		// The mapping stays valid once the channel is closed, so there's no need to hold the file open.
+		try (FileChannel chan = FileChannel.open(p, StandardOpenOption.READ))
+		{
+			return chan.map(MapMode.READ_ONLY, 0, chan.size());
+		}
 	}
 
 	public static String niceToString(Object in)
@@ -354,6 +357,11 @@ public class U
 		return new String(data, U.standardCharset);
 	}
 
+	public static String toString(byte[] data, int offset, int length)
+	{
+		return new String(data, offset, length, U.standardCharset);
+	}
+
 	public static Instant toInstant(ByteBuffer data)
 	{
 		return Instant.ofEpochSecond(data.getLong(), data.getInt());
@@ -0,0 +1,209 @@
+package silentcrypt.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes variable length integers. Each byte holds seven bits of the value, least significant first, with
+ * the high bit set on every byte but the last; values under 128 take a single byte. Signed values are zigzag encoded
+ * first, so that small negative values are as short as small positive ones.
+ *
+ * @author Michael Wells
+ */
+public class Varint
+{
+	/**
+	 * The most bytes a single encoded value can take.
+	 */
+	public static final int MAX_SIZE = 10;
+
+	/**
+	 * @param value
+	 *            treated as unsigned.
+	 * @return the number of bytes {@link #put(ByteBuffer, long)} writes for the given value.
+	 */
+	public static int size(long value)
+	{
+		int res = 1;
+		while ((value & ~0x7FL) != 0)
+		{
+			value >>>= 7;
+			res++;
+		}
+		return res;
+	}
+
+	/**
+	 * @param value
+	 * @return the number of bytes {@link #putSigned(ByteBuffer, long)} writes for the given value.
+	 */
+	public static int sizeSigned(long value)
+	{
+		return size(zigzag(value));
+	}
+
+	/**
+	 * Writes the given value, treated as unsigned.
+	 *
+	 * @param buffer
+	 * @param value
+	 * @return the buffer.
+	 */
+	public static ByteBuffer put(ByteBuffer buffer, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			buffer.put((byte) (value & 0x7F | 0x80));
+			value >>>= 7;
+		}
+		return buffer.put((byte) value);
+	}
+
+	/**
+	 * Writes the given signed value.
+	 *
+	 * @param buffer
+	 * @param value
+	 * @return the buffer.
+	 */
+	public static ByteBuffer putSigned(ByteBuffer buffer, long value)
+	{
+		return put(buffer, zigzag(value));
+	}
+
+	/**
+	 * Reads a value written by {@link #put(ByteBuffer, long)}.
+	 *
+	 * @param buffer
+	 * @return the value.
+	 * @throws IllegalArgumentException
+	 *             if the value is longer than {@link #MAX_SIZE} bytes.
+	 * @throws BufferUnderflowException
+	 *             if the buffer ends part way through the value.
+	 */
+	public static long get(ByteBuffer buffer) throws IllegalArgumentException, BufferUnderflowException
+	{
+		long res = 0;
+		for (int shift = 0; shift < 7 * MAX_SIZE; shift += 7)
+		{
+			byte b = buffer.get();
+			res |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return res;
+		}
+		throw new IllegalArgumentException("Varint is longer than " + MAX_SIZE + " bytes.");
+	}
+
+	/**
+	 * Reads a value written by {@link #put(ByteBuffer, long)} at the given index, without changing the buffer's
+	 * position.
+	 *
+	 * @param buffer
+	 * @param index
+	 * @param limit
+	 *            the value must end before this index.
+	 * @return the value.
+	 * @throws IllegalArgumentException
+	 *             if the value is longer than {@link #MAX_SIZE} bytes.
+	 * @throws BufferUnderflowException
+	 *             if the value runs up to or past the limit.
+	 * @see #length(ByteBuffer, int, int)
+	 */
+	public static long get(ByteBuffer buffer, int index, int limit) throws IllegalArgumentException, BufferUnderflowException
+	{
+		long res = 0;
+		for (int shift = 0; shift < 7 * MAX_SIZE; shift += 7)
+		{
+			if (index >= limit)
+				throw new BufferUnderflowException();
+			byte b = buffer.get(index++);
+			res |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return res;
+		}
+		throw new IllegalArgumentException("Varint is longer than " + MAX_SIZE + " bytes.");
+	}
+
+	/**
+	 * @param buffer
+	 * @param index
+	 * @param limit
+	 *            the value must end before this index.
+	 * @return the number of bytes taken by the value at the given index, which may be more than {@link #size(long)}
+	 *         of its value if it was not written by this class.
+	 * @throws IllegalArgumentException
+	 *             if the value is longer than {@link #MAX_SIZE} bytes.
+	 * @throws BufferUnderflowException
+	 *             if the value runs up to or past the limit.
+	 */
+	public static int length(ByteBuffer buffer, int index, int limit) throws IllegalArgumentException, BufferUnderflowException
+	{
+		for (int res = 1; res <= MAX_SIZE; res++)
+		{
+			if (index >= limit)
+				throw new BufferUnderflowException();
+			if (buffer.get(index++) >= 0)
+				return res;
+		}
+		throw new IllegalArgumentException("Varint is longer than " + MAX_SIZE + " bytes.");
+	}
+
+	/**
+	 * Reads a value written by {@link #put(ByteBuffer, long)} which must fit in a non-negative int.
+	 *
+	 * @param buffer
+	 * @return the value.
+	 * @throws IllegalArgumentException
+	 *             if the value is malformed or too large.
+	 * @throws BufferUnderflowException
+	 *             if the buffer ends part way through the value.
+	 */
+	public static int getInt(ByteBuffer buffer) throws IllegalArgumentException, BufferUnderflowException
+	{
+		return toInt(get(buffer));
+	}
+
+	/**
+	 * @param value
+	 *            as read by one of the get methods.
+	 * @return the value as a non-negative int.
+	 * @throws IllegalArgumentException
+	 *             if the value is too large.
+	 */
+	public static int toInt(long value) throws IllegalArgumentException
+	{
+		if (value < 0 || value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Varint out of range: " + Long.toUnsignedString(value));
+		return (int) value;
+	}
+
+	/**
+	 * Reads a value written by {@link #putSigned(ByteBuffer, long)}.
+	 *
+	 * @param buffer
+	 * @return the value.
+	 * @throws IllegalArgumentException
+	 *             if the value is longer than {@link #MAX_SIZE} bytes.
+	 * @throws BufferUnderflowException
+	 *             if the buffer ends part way through the value.
+	 */
+	public static long getSigned(ByteBuffer buffer) throws IllegalArgumentException, BufferUnderflowException
+	{
+		return toSigned(get(buffer));
+	}
+
+	/**
+	 * @param value
+	 *            as read by one of the get methods, from a value written by {@link #putSigned(ByteBuffer, long)}.
+	 * @return the signed value.
+	 */
+	public static long toSigned(long value)
+	{
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	private static long zigzag(long value)
+	{
+		return value << 1 ^ value >> 63;
+	}
+}
@@ -0,0 +1,190 @@
+package silentcrypt.util;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+
+/**
+ * Remembers signatures which have already been verified, so that checking the same signature over the same content
+ * with the same key again (as happens with relayed announcements, repeated certificate checks and batch signed
+ * messages) costs a hash lookup instead of a public key operation.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of the key's fingerprint, the signed content and the signature. Only successful
+ * verifications are cached, so a flood of forged signatures can't push genuine entries out any faster than an equal
+ * number of genuine signatures would. The cache is split into independently locked stripes, each evicting its least
+ * recently used entries once full.
+ *
+ * @author Michael Wells
+ */
+public class VerificationCache
+{
+	private static final VerificationCache shared = new VerificationCache(4096, 16);
+
+	private final Map<ByteBuffer, Boolean>[]	stripes;
+	private final LongAdder						hits	= new LongAdder();
+	private final LongAdder						misses	= new LongAdder();
+
+	/**
+	 * @return the cache used for all signature checks within this process.
+	 */
+	public static VerificationCache get()
+	{
+		return VerificationCache.shared;
+	}
+
+	/**
+	 * @param capacity
+	 *            the total number of verifications to remember.
+	 * @param stripeCount
+	 *            the number of independently locked segments to split the cache into.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public VerificationCache(int capacity, int stripeCount)
+	{
+		int perStripe = Math.max(1, capacity / stripeCount);
+		this.stripes = new Map[stripeCount];
+		for (int i = 0; i < stripeCount; i++)
+			this.stripes[i] = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest)
+				{
+					return size() > perStripe;
+				}
+			};
+	}
+
+	/**
+	 * Checks whether the given signature over the given content has already been verified with the given key, and
+	 * otherwise runs the supplied verification and remembers it if it succeeds.
+	 *
+	 * @param key
+	 * @param content
+	 * @param sig
+	 * @param verifier
+	 *            performs the actual verification on a cache miss.
+	 * @return true iff the signature is valid.
+	 */
+	public boolean verify(AsymmetricKeyParameter key, byte[] content, byte[] sig, BooleanSupplier verifier)
+	{
+		byte[] fingerprint = fingerprint(key);
+		if (fingerprint == null)
+			return verifier.getAsBoolean();
+
+		ByteBuffer id = id(fingerprint, content, sig);
+		Map<ByteBuffer, Boolean> stripe = this.stripes[(id.hashCode() & Integer.MAX_VALUE) % this.stripes.length];
+		synchronized (stripe)
+		{
+			if (stripe.get(id) != null)
+			{
+				this.hits.increment();
+				return true;
+			}
+		}
+		this.misses.increment();
+		if (!verifier.getAsBoolean())
+			return false;
+		synchronized (stripe)
+		{
+			stripe.put(id, Boolean.TRUE);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of verifications answered from the cache.
+	 */
+	public long getHits()
+	{
+		return this.hits.sum();
+	}
+
+	/**
+	 * @return the number of verifications which had to be performed.
+	 */
+	public long getMisses()
+	{
+		return this.misses.sum();
+	}
+
+	/**
+	 * @return the fraction of verifications answered from the cache.
+	 */
+	public double getHitRate()
+	{
+		long h = getHits();
+		long total = h + getMisses();
+		return total == 0 ? 0 : h / (double) total;
+	}
+
+	/**
+	 * @return the number of verifications currently remembered.
+	 */
+	public int size()
+	{
+		int res = 0;
+		for (Map<ByteBuffer, Boolean> stripe : this.stripes)
+			synchronized (stripe)
+			{
+				res += stripe.size();
+			}
+		return res;
+	}
+
+	/**
+	 * Forgets every remembered verification. Metrics are kept.
+	 */
+	public void clear()
+	{
+		for (Map<ByteBuffer, Boolean> stripe : this.stripes)
+			synchronized (stripe)
+			{
+				stripe.clear();
+			}
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("VerificationCache size:%d hits:%d misses:%d hitRate:%.3f", size(), getHits(), getMisses(), getHitRate());
+	}
+
+	private static byte[] fingerprint(AsymmetricKeyParameter key)
+	{
+		if (key instanceof RSAKeyParameters)
+			return RsaUtil.toBytes((RSAKeyParameters) key);
+		if (key instanceof ECPublicKeyParameters)
+			return EcdsaUtil.toBytes((ECPublicKeyParameters) key);
+		return null;
+	}
+
+	private static ByteBuffer id(byte[] fingerprint, byte[] content, byte[] sig)
+	{
+		SHA256Digest digest = new SHA256Digest();
+		update(digest, fingerprint);
+		update(digest, content);
+		update(digest, sig);
+		byte[] res = new byte[digest.getDigestSize()];
+		digest.doFinal(res, 0);
+		return ByteBuffer.wrap(res);
+	}
+
+	private static void update(SHA256Digest digest, byte[] data)
+	{
+		// Length prefixed, so that bytes can't be shifted from one part into the next.
+		digest.update((byte) (data.length >>> 24));
+		digest.update((byte) (data.length >>> 16));
+		digest.update((byte) (data.length >>> 8));
+		digest.update((byte) data.length);
+		digest.update(data, 0, data.length);
+	}
+}